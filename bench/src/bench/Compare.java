@@ -0,0 +1,79 @@
+package bench;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Porównuje dwa pliki wyników JMH zapisane z -rf json, np. przed zmianą i po zmianie:
+ * java -cp target/benchmarks.jar bench.Compare bench/results/przed.json bench/results/po.json
+ */
+public class Compare {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Użycie: bench.Compare <wyniki-bazowe.json> <wyniki-nowe.json>");
+            System.exit(2);
+        }
+        Map<String, JSONObject> base = read(Path.of(args[0]));
+        Map<String, JSONObject> current = read(Path.of(args[1]));
+
+        System.out.printf("%-60s %14s %14s %9s%n", "Benchmark", "Bazowy", "Nowy", "Zmiana");
+        for (Map.Entry<String, JSONObject> entry : current.entrySet()) {
+            JSONObject now = entry.getValue().getJSONObject("primaryMetric");
+            JSONObject before = base.containsKey(entry.getKey()) ? base.get(entry.getKey()).getJSONObject("primaryMetric") : null;
+            String change = "nowy";
+            if (before != null) {
+                double delta = (now.getDouble("score") - before.getDouble("score")) / before.getDouble("score") * 100;
+                // Błąd pomiaru większy niż różnica oznacza, że zmiana nie jest istotna
+                boolean significant = Math.abs(now.getDouble("score") - before.getDouble("score"))
+                        > error(now) + error(before);
+                change = String.format("%+.1f%%%s", delta, significant ? "" : "~");
+            }
+            System.out.printf("%-60s %14s %14s %9s%n", entry.getKey(),
+                    before == null ? "-" : score(before), score(now), change);
+        }
+        for (String name : base.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.printf("%-60s %14s %14s %9s%n", name, score(base.get(name).getJSONObject("primaryMetric")), "-", "usunięty");
+            }
+        }
+        System.out.println("~ różnica mniejsza niż błąd pomiaru");
+    }
+
+    /**
+     * Wczytuje wyniki JMH, kluczem jest nazwa benchmarku razem z trybem i parametrami.
+     */
+    private static Map<String, JSONObject> read(Path file) throws IOException {
+        Map<String, JSONObject> results = new LinkedHashMap<>();
+        JSONArray array = new JSONArray(Files.readString(file));
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject result = array.getJSONObject(i);
+            StringBuilder name = new StringBuilder(result.getString("benchmark").replaceFirst("^bench\\.", ""));
+            name.append(" [").append(result.getString("mode")).append(']');
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> param : new TreeMap<>(params.toMap()).entrySet()) {
+                    name.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            results.put(name.toString(), result);
+        }
+        return results;
+    }
+
+    private static double error(JSONObject metric) {
+        double error = metric.optDouble("scoreError", 0);
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    private static String score(JSONObject metric) {
+        return String.format("%.3f %s", metric.getDouble("score"), metric.getString("scoreUnit"));
+    }
+}
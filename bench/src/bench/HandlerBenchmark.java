@@ -0,0 +1,80 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Czas obsługi pojedynczego żądania przez każdy handler serwera na wygenerowanej bazie danych.
+ * Mierzony jest kod handlera razem z bazą danych, bez sieci i wątków HttpServer.
+ * Zapisy przechodzą przez wątek zapisujący, więc ich czas zawiera okno grupowania transakcji.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBenchmark {
+
+    private static final byte[] empty = new byte[0];
+
+    private static final byte[] loginBody = ServerFixture.utf8(
+            "{\"serviceNumber\":\"" + SyntheticDatabase.serviceNumber + "\",\"password\":\"pass\"}");
+
+    private static final byte[] createTicketBody = ServerFixture.utf8(
+            "{\"driver\":\"Jan Kowalski\",\"pesel\":\"" + SyntheticDatabase.pesel(2) + "\",\"offense\":\"Wykroczenie 3\"," +
+                    "\"fine\":250,\"penaltyPoints\":4,\"serviceNumber\":\"" + SyntheticDatabase.serviceNumber + "\"}");
+
+    private static final byte[] driverLoginBody = ServerFixture.utf8(
+            "{\"action\":\"login\",\"pesel\":\"" + ServerFixture.driverPesel + "\",\"password\":\"haslo\"}");
+
+    /**
+     * Mandat zapisany przed każdym wywołaniem benchmarku anulowania, poza mierzonym czasem.
+     */
+    @State(Scope.Thread)
+    public static class TicketToCancel {
+        byte[] body;
+
+        @Setup(Level.Invocation)
+        public void insert(ServerFixture fixture) throws SQLException {
+            body = ServerFixture.utf8("{\"ticketId\":" + fixture.insertTicketDirectly() + "}");
+        }
+    }
+
+    @Benchmark
+    public long login(ServerFixture fixture) throws IOException {
+        return ServerFixture.call(fixture.loginHandler, "POST", "/api/login", loginBody).responseLength();
+    }
+
+    @Benchmark
+    public long offences(ServerFixture fixture) throws IOException {
+        return ServerFixture.call(fixture.offencesHandler, "GET", "/api/offences", empty).responseLength();
+    }
+
+    @Benchmark
+    public long createTicket(ServerFixture fixture) throws IOException {
+        return ServerFixture.call(fixture.createTicketHandler, "POST", "/api/createTicket", createTicketBody).responseLength();
+    }
+
+    @Benchmark
+    public long cancelTicket(ServerFixture fixture, TicketToCancel ticket) throws IOException {
+        return ServerFixture.call(fixture.cancelTicketHandler, "POST", "/api/cancelTicket", ticket.body).responseLength();
+    }
+
+    @Benchmark
+    public long driverLogin(ServerFixture fixture) throws IOException {
+        return ServerFixture.call(fixture.jsonHandler, "POST", "/api", driverLoginBody).responseLength();
+    }
+
+    @Benchmark
+    public long driverMainPage(ServerFixture fixture) throws IOException {
+        return ServerFixture.call(fixture.jsonHandler, "POST", "/api", fixture.mainPageBody).responseLength();
+    }
+
+    @Benchmark
+    public long driverPoints(ServerFixture fixture) throws IOException {
+        return ServerFixture.call(fixture.jsonHandler, "POST", "/api", fixture.pointsBody).responseLength();
+    }
+}
@@ -0,0 +1,99 @@
+package bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsowanie treści żądań i serializacja odpowiedzi JSON bez bazy danych.
+ * Parsowanie org.json jest mierzone obok JsonBodyReader jako punkt odniesienia.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    private static final MethodHandle newReader = ServerClasses.handle("JsonBodyReader", null, InputStream.class, long.class)
+            .asType(MethodType.methodType(Object.class, InputStream.class, long.class));
+
+    private static final MethodHandle readTicket = readMethod("Server$TicketRequest");
+
+    private static final MethodHandle readDriverRequest = readMethod("Server$JsonHandler$DriverRequest");
+
+    private static final MethodHandle readLogin = readMethod("Server$LoginHandler$LoginCredentials");
+
+    private static final MethodHandle sendResponse = ServerClasses.handle("Server", "sendResponse",
+            HttpExchange.class, int.class, JSONObject.class);
+
+    private static final byte[] ticketBody = ServerFixture.utf8(
+            "{\"driver\":\"Jan Kowalski\",\"pesel\":\"90010112345\",\"offense\":\"Przekroczenie prędkości o 21-30 km/h\"," +
+                    "\"fine\":400,\"penaltyPoints\":6,\"serviceNumber\":\"123nypd\"}");
+
+    private static final byte[] driverBody = ServerFixture.utf8(
+            "{\"action\":\"main_page\",\"pesel\":\"90010112345\",\"limit\":50,\"cursor\":\"MjAyNC0wMS0wMSAxMjowMDowMHwxMjM\"}");
+
+    private static final byte[] loginBody = ServerFixture.utf8("{\"serviceNumber\":\"123nypd\",\"password\":\"pass\"}");
+
+    private static final String ticketString = new String(ticketBody, StandardCharsets.UTF_8);
+
+    private static MethodHandle readMethod(String className) {
+        return ServerClasses.handle(className, "read", ServerClasses.type("JsonBodyReader"))
+                .asType(MethodType.methodType(Object.class, Object.class));
+    }
+
+    private static Object parse(MethodHandle read, byte[] body) throws Throwable {
+        Object reader = newReader.invokeExact((InputStream) new ByteArrayInputStream(body), (long) body.length);
+        return read.invokeExact(reader);
+    }
+
+    @Benchmark
+    public Object parseTicket() throws Throwable {
+        return parse(readTicket, ticketBody);
+    }
+
+    @Benchmark
+    public Object parseTicketOrgJson() {
+        JSONObject json = new JSONObject(ticketString);
+        return new Object[]{json.getString("driver"), json.getString("pesel"), json.getString("offense"),
+                json.getInt("fine"), json.getInt("penaltyPoints"), json.getString("serviceNumber")};
+    }
+
+    @Benchmark
+    public Object parseDriverRequest() throws Throwable {
+        return parse(readDriverRequest, driverBody);
+    }
+
+    @Benchmark
+    public Object parseLogin() throws Throwable {
+        return parse(readLogin, loginBody);
+    }
+
+    @Benchmark
+    public long serializeTicketResponse() throws Throwable {
+        BenchExchange exchange = new BenchExchange("POST", "/api/createTicket", new byte[0]);
+        sendResponse.invokeExact((HttpExchange) exchange, 200, new JSONObject().put("success", true).put("ticketId", 123456));
+        return exchange.responseLength();
+    }
+
+    @Benchmark
+    public long serializeBatchResponse() throws Throwable {
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < 100; i++) {
+            results.put(i % 10 == 0 ? new JSONObject().put("error", "Błąd zapisu mandatu") : new JSONObject().put("ticketId", 1000 + i));
+        }
+        BenchExchange exchange = new BenchExchange("POST", "/api/createTickets", new byte[0]);
+        sendResponse.invokeExact((HttpExchange) exchange, 200, new JSONObject().put("success", true).put("results", results));
+        return exchange.responseLength();
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram czasów odpowiedzi w mikrosekundach o stałym rozmiarze i względnej dokładności poniżej 1%.
+ * Wartości do 255 µs mają własne kubełki, większe są dzielone na 128 kubełków w każdej potędze dwójki.
+ * Zapis jest bezpieczny dla wielu wątków i nie alokuje pamięci.
+ */
+final class LatencyHistogram {
+
+    private static final int linear = 256;
+    private static final int subBuckets = 128;
+
+    /**
+     * Przesunięcie dla największej zapisywanej wartości, 2^40 µs to ok. 12 dni
+     */
+    private static final int maxShift = 33;
+
+    private final AtomicLongArray counts = new AtomicLongArray(linear + maxShift * subBuckets);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Zapisuje jeden czas odpowiedzi.
+     *
+     * @param micros czas w mikrosekundach
+     */
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return liczba zapisanych wartości
+     */
+    long count() {
+        return total.get();
+    }
+
+    /**
+     * @return największa zapisana wartość w mikrosekundach
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Zwraca wartość, poniżej której leży podana część zapisanych czasów.
+     *
+     * @param quantile kwantyl z przedziału 0..1, np. 0.999
+     * @return górna granica kubełka zawierającego kwantyl, w mikrosekundach
+     */
+    long percentile(double quantile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < linear) {
+            return (int) value;
+        }
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - 7, maxShift);
+        long top = Math.min(value >> shift, 2 * subBuckets - 1);
+        return linear + (shift - 1) * subBuckets + (int) (top - subBuckets);
+    }
+
+    private static long upperBound(int index) {
+        if (index < linear) {
+            return index;
+        }
+        int shift = (index - linear) / subBuckets + 1;
+        long top = (index - linear) % subBuckets + subBuckets;
+        return ((top + 1) << shift) - 1;
+    }
+}
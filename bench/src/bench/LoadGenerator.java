@@ -0,0 +1,327 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test obciążeniowy w zamkniętej pętli: uruchamia Server na syntetycznej bazie danych i symuluje
+ * policjantów (logowanie, katalog wykroczeń, wystawianie mandatów, czasem anulowanie) oraz kierowców
+ * (pliki strony, logowanie, lista mandatów). Każdy symulowany użytkownik wysyła następne żądanie dopiero
+ * po odpowiedzi na poprzednie, w tempie wynikającym z docelowej liczby żądań na sekundę.
+ * Czas odpowiedzi jest liczony od zaplanowanej chwili wysłania, więc opóźnienia serwera, przez które
+ * użytkownik nie zdążył wysłać żądania na czas, też trafiają do wyników.
+ *
+ * Parametry (-D):
+ * mandaty.load.officers, mandaty.load.drivers - liczba symulowanych policjantów i kierowców,
+ * mandaty.load.rate - docelowa łączna liczba żądań na sekundę,
+ * mandaty.load.duration, mandaty.load.warmup - czas pomiaru i rozgrzewki w sekundach,
+ * mandaty.load.cancelRatio - część wystawionych mandatów, które są anulowane,
+ * mandaty.load.dbDrivers, mandaty.load.dbTickets - rozmiar syntetycznej bazy,
+ * mandaty.load.target - adres działającego serwera zamiast uruchamiania własnego (baza musi mieć dane syntetyczne),
+ * mandaty.load.results - plik, do którego zostanie zapisany raport,
+ * mandaty.load.serverLog - true, aby nie wyciszać logu uruchomionego serwera.
+ */
+public class LoadGenerator {
+
+    private static final int officers = Integer.getInteger("mandaty.load.officers", 20);
+    private static final int drivers = Integer.getInteger("mandaty.load.drivers", 200);
+    private static final double rate = Double.parseDouble(System.getProperty("mandaty.load.rate", "500"));
+    private static final int durationSeconds = Integer.getInteger("mandaty.load.duration", 60);
+    private static final int warmupSeconds = Integer.getInteger("mandaty.load.warmup", 10);
+    private static final double cancelRatio = Double.parseDouble(System.getProperty("mandaty.load.cancelRatio", "0.1"));
+    private static final int dbDrivers = Integer.getInteger("mandaty.load.dbDrivers", 5000);
+    private static final int dbTickets = Integer.getInteger("mandaty.load.dbTickets", 40);
+
+    /**
+     * Liczba mandatów wystawianych przez policjanta między kolejnymi logowaniami
+     */
+    private static final int ticketsPerShift = 20;
+
+    /**
+     * Pliki pobierane przez przeglądarkę kierowcy przy wejściu na stronę
+     */
+    private static final List<String> staticAssets = List.of(
+            "/html/main_page.html", "/css/bootstrap.css", "/css/style.css", "/js/bootstrap.bundle.js", "/js/main_page.js");
+
+    private static final Pattern ticketId = Pattern.compile("\"ticketId\"\\s*:\\s*(\\d+)");
+
+    private static final Pattern sessionToken = Pattern.compile("\"token\"\\s*:\\s*\"([^\"]+)\"");
+
+    /**
+     * Wyniki jednego rodzaju żądania
+     */
+    private static final class Endpoint {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final HttpClient client;
+    private final String baseUrl;
+    private final long startNanos;
+    private final long measureFromNanos;
+    private final long endNanos;
+
+    private LoadGenerator(HttpClient client, String baseUrl) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        this.startNanos = System.nanoTime();
+        this.measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.endNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        String target = System.getProperty("mandaty.load.target");
+        if (target == null) {
+            target = startServer(out);
+        }
+
+        int users = officers + drivers;
+        out.printf("Obciążenie: %d policjantów, %d kierowców, %.0f żądań/s, rozgrzewka %d s, pomiar %d s, serwer %s%n",
+                officers, drivers, rate, warmupSeconds, durationSeconds, target);
+
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .executor(threads)
+                    .build();
+            LoadGenerator generator = new LoadGenerator(client, target);
+            // Każdy użytkownik wysyła żądanie co users / rate sekund, razem daje to docelowe tempo
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) * users / rate);
+            List<Future<?>> sessions = new ArrayList<>();
+            for (int i = 0; i < users; i++) {
+                long offset = ThreadLocalRandom.current().nextLong(Math.max(1, intervalNanos));
+                boolean officer = i < officers;
+                int user = i;
+                sessions.add(threads.submit(() -> generator.runUser(officer, user, offset, intervalNanos)));
+            }
+            for (Future<?> session : sessions) {
+                session.get();
+            }
+            String report = generator.report();
+            out.print(report);
+            String results = System.getProperty("mandaty.load.results");
+            if (results != null) {
+                Files.writeString(Path.of(results), report);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Tworzy syntetyczną bazę w katalogu tymczasowym i uruchamia w tym procesie Server na wolnym porcie.
+     *
+     * @param out strumień, na który wypisywany jest raport
+     * @return adres uruchomionego serwera
+     */
+    private static String startServer(PrintStream out) throws Exception {
+        Path directory = Files.createTempDirectory("mandaty-load");
+        String url = "jdbc:sqlite:" + directory.resolve("load.sqlite");
+        out.printf("Tworzenie syntetycznej bazy: %d kierowców po %d mandatów%n", dbDrivers, dbTickets);
+        SyntheticDatabase.create(url, dbDrivers, dbTickets);
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        // Konfiguracja serwera jest czytana przy inicjalizacji klasy Server, więc musi być ustawiona wcześniej
+        System.setProperty("mandaty.http.host", "127.0.0.1");
+        System.setProperty("mandaty.http.port", Integer.toString(port));
+        System.setProperty("mandaty.db.url", url);
+        // Wszyscy użytkownicy logują się z jednego adresu, a policjanci na jeden numer służbowy
+        System.getProperties().putIfAbsent("mandaty.login.addressRate", "100000000");
+        System.getProperties().putIfAbsent("mandaty.login.accountRate", "100000000");
+        if (!Boolean.getBoolean("mandaty.load.serverLog")) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        ServerClasses.invokeStatic("Server", "main", new Class<?>[]{String[].class}, (Object) new String[0]);
+        return "http://127.0.0.1:" + port;
+    }
+
+    /**
+     * Pętla jednego użytkownika: kolejne kroki jego scenariusza w zaplanowanych odstępach aż do końca pomiaru.
+     */
+    private void runUser(boolean officer, int user, long offsetNanos, long intervalNanos) {
+        Session session = officer ? new OfficerSession() : new DriverSession(user);
+        long intended = startNanos + offsetNanos;
+        while (intended < endNanos) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            session.step(intended);
+            intended += intervalNanos;
+        }
+    }
+
+    /**
+     * Scenariusz użytkownika wykonywany po jednym żądaniu na krok.
+     */
+    private interface Session {
+        void step(long intendedNanos);
+    }
+
+    /**
+     * Policjant: logowanie, pobranie katalogu wykroczeń, potem wystawianie mandatów,
+     * z których część jest zaraz anulowana.
+     */
+    private final class OfficerSession implements Session {
+        private int state;
+        private int issued;
+        private String toCancel;
+
+        @Override
+        public void step(long intended) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            switch (state) {
+                case 0 -> {
+                    post("POST /api/login", "/api/login",
+                            "{\"serviceNumber\":\"" + SyntheticDatabase.serviceNumber + "\",\"password\":\"" + SyntheticDatabase.officerPassword + "\"}",
+                            intended);
+                    state = 1;
+                }
+                case 1 -> {
+                    get("GET /api/offences", "/api/offences", intended);
+                    state = 2;
+                }
+                default -> {
+                    if (toCancel != null) {
+                        post("POST /api/cancelTicket", "/api/cancelTicket", "{\"ticketId\":" + toCancel + "}", intended);
+                        toCancel = null;
+                    } else {
+                        int driver = random.nextInt(dbDrivers);
+                        int offense = random.nextInt(SyntheticDatabase.offenses);
+                        String body = post("POST /api/createTicket", "/api/createTicket",
+                                "{\"driver\":\"" + SyntheticDatabase.driverName(driver) + "\",\"pesel\":\"" + SyntheticDatabase.pesel(driver) +
+                                        "\",\"offense\":\"" + SyntheticDatabase.offenseName(offense) + "\",\"fine\":" + (100 + offense * 50) +
+                                        ",\"penaltyPoints\":" + offense % 5 + ",\"serviceNumber\":\"" + SyntheticDatabase.serviceNumber + "\"}",
+                                intended);
+                        Matcher id = body == null ? null : ticketId.matcher(body);
+                        if (id != null && id.find() && random.nextDouble() < cancelRatio) {
+                            toCancel = id.group(1);
+                        }
+                        if (++issued % ticketsPerShift == 0) {
+                            state = 0;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Kierowca: pliki strony, logowanie i lista mandatów, po czym kolejna wizyta.
+     */
+    private final class DriverSession implements Session {
+        private final String pesel;
+        private String token;
+        private int state;
+
+        DriverSession(int user) {
+            this.pesel = SyntheticDatabase.pesel(user % dbDrivers);
+        }
+
+        @Override
+        public void step(long intended) {
+            if (state < staticAssets.size()) {
+                get("GET static", staticAssets.get(state), intended);
+                state++;
+            } else if (state == staticAssets.size()) {
+                String response = post("POST /api login", "/api",
+                        "{\"action\":\"login\",\"pesel\":\"" + pesel + "\",\"password\":\"" + SyntheticDatabase.driverPassword + "\"}", intended);
+                Matcher match = response == null ? null : sessionToken.matcher(response);
+                token = match != null && match.find() ? match.group(1) : null;
+                state++;
+            } else {
+                post("POST /api main_page", "/api", "{\"action\":\"main_page\",\"token\":\"" + token + "\"}", intended);
+                state = 0;
+            }
+        }
+    }
+
+    private String get(String name, String path, long intended) {
+        return send(name, HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Accept-Encoding", "gzip")
+                .GET(), intended);
+    }
+
+    private String post(String name, String path, String body, long intended) {
+        return send(name, HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8)), intended);
+    }
+
+    /**
+     * Wysyła żądanie i zapisuje jego czas od zaplanowanej chwili wysłania.
+     *
+     * @return treść odpowiedzi lub null przy błędzie
+     */
+    private String send(String name, HttpRequest.Builder request, long intended) {
+        String body = null;
+        boolean error;
+        try {
+            HttpResponse<byte[]> response = client.send(request.timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.ofByteArray());
+            error = response.statusCode() >= 400;
+            body = new String(response.body(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            error = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (intended >= measureFromNanos) {
+            Endpoint endpoint = endpoints.computeIfAbsent(name, key -> new Endpoint());
+            endpoint.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+            if (error) {
+                endpoint.errors.incrementAndGet();
+            }
+        }
+        return error ? null : body;
+    }
+
+    /**
+     * @return tabela z przepustowością i percentylami czasu odpowiedzi każdego rodzaju żądania
+     */
+    private String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-24s %10s %10s %8s %10s %10s %10s %10s%n",
+                "Żądanie", "Liczba", "Żądań/s", "Błędy", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        long total = 0;
+        for (String name : endpoints.keySet().stream().sorted().toList()) {
+            Endpoint endpoint = endpoints.get(name);
+            LatencyHistogram latency = endpoint.latency;
+            total += latency.count();
+            report.append(String.format("%-24s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f%n",
+                    name, latency.count(), (double) latency.count() / durationSeconds, endpoint.errors.get(),
+                    latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0,
+                    latency.percentile(0.999) / 1000.0, latency.max() / 1000.0));
+        }
+        report.append(String.format("Razem %d żądań, %.1f żądań/s (docelowo %.0f)%n", total, (double) total / durationSeconds, rate));
+        return report.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Dostęp do klas serwera z domyślnego pakietu. JMH wymaga, aby benchmarki leżały w nazwanym pakiecie,
+ * a z nazwanego pakietu nie da się importować klas z pakietu domyślnego, więc handlery i metody
+ * pomocnicze są pobierane przez refleksję raz, przy przygotowaniu benchmarku.
+ */
+final class ServerClasses {
+
+    private ServerClasses() {
+    }
+
+    /**
+     * Tworzy handler zagnieżdżony w klasie Server.
+     *
+     * @param simpleName nazwa klasy handlera, np. LoginHandler
+     * @return nowy handler
+     */
+    static HttpHandler handler(String simpleName) throws ReflectiveOperationException {
+        Constructor<?> constructor = Class.forName("Server$" + simpleName).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return (HttpHandler) constructor.newInstance();
+    }
+
+    /**
+     * Wywołuje statyczną metodę klasy serwera.
+     *
+     * @param className nazwa klasy, np. Server
+     * @param name nazwa metody
+     * @param parameterTypes typy parametrów
+     * @param args argumenty
+     * @return wynik metody
+     */
+    static Object invokeStatic(String className, String name, Class<?>[] parameterTypes, Object... args) throws ReflectiveOperationException {
+        Method method = Class.forName(className).getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return method.invoke(null, args);
+    }
+
+    /**
+     * Zwraca uchwyt do metody lub konstruktora klasy serwera. Uchwyt trzymany w polu static final
+     * jest wywoływany przez JIT bezpośrednio, bez kosztu refleksji w mierzonym kodzie.
+     *
+     * @param className nazwa klasy, np. Server$TicketRequest
+     * @param name nazwa metody statycznej albo null dla konstruktora
+     * @param parameterTypes typy parametrów
+     * @return uchwyt do metody
+     */
+    static MethodHandle handle(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Class<?> type = Class.forName(className);
+            if (name == null) {
+                Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+                constructor.setAccessible(true);
+                return MethodHandles.lookup().unreflectConstructor(constructor);
+            }
+            Method method = type.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @param className nazwa klasy serwera
+     * @return klasa serwera
+     */
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
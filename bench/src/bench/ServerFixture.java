@@ -0,0 +1,136 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Wygenerowana baza SQLite na dysku razem z handlerami serwera podłączonymi do niej tak jak w Server.main.
+ */
+@State(Scope.Benchmark)
+public class ServerFixture {
+
+    /**
+     * Pesel kierowcy, którego mandaty są pobierane w benchmarkach
+     */
+    static final String driverPesel = SyntheticDatabase.pesel(0);
+
+    /**
+     * Liczba kierowców w bazie
+     */
+    @Param("200")
+    public int drivers;
+
+    /**
+     * Liczba mandatów każdego kierowcy
+     */
+    @Param("100")
+    public int ticketsPerDriver;
+
+    Path directory;
+    String url;
+
+    HttpHandler loginHandler;
+    HttpHandler offencesHandler;
+    HttpHandler createTicketHandler;
+    HttpHandler cancelTicketHandler;
+    HttpHandler jsonHandler;
+
+    /**
+     * Treść żądania listy mandatów z tokenem sesji kierowcy
+     */
+    byte[] mainPageBody;
+
+    /**
+     * Treść żądania sumy punktów karnych z tokenem sesji kierowcy
+     */
+    byte[] pointsBody;
+
+    /**
+     * Połączenie używane do przygotowania danych poza mierzonym kodem
+     */
+    private Connection setupConnection;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("mandaty-bench");
+        url = "jdbc:sqlite:" + directory.resolve("bench.sqlite");
+        SyntheticDatabase.create(url, drivers, ticketsPerDriver);
+        // Benchmarki logowania powtarzają te same dane z jednego adresu, limit prób logowania nie może ich odrzucać
+        System.getProperties().putIfAbsent("mandaty.login.addressRate", "100000000");
+        System.getProperties().putIfAbsent("mandaty.login.accountRate", "100000000");
+        ServerClasses.invokeStatic("Server", "open_database", new Class<?>[]{String.class}, url);
+
+        setupConnection = DriverManager.getConnection(url);
+        try (Statement stmt = setupConnection.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = 5000");
+        }
+
+        loginHandler = ServerClasses.handler("LoginHandler");
+        offencesHandler = ServerClasses.handler("OffencesHandler");
+        createTicketHandler = ServerClasses.handler("CreateTicketHandler");
+        cancelTicketHandler = ServerClasses.handler("CancelTicketHandler");
+        jsonHandler = ServerClasses.handler("JsonHandler");
+
+        Field sessions = Class.forName("Server").getDeclaredField("sessions");
+        sessions.setAccessible(true);
+        Object store = sessions.get(null);
+        String token = (String) store.getClass().getMethod("create", String.class).invoke(store, driverPesel);
+        mainPageBody = utf8("{\"action\":\"main_page\",\"token\":\"" + token + "\"}");
+        pointsBody = utf8("{\"action\":\"points\",\"token\":\"" + token + "\"}");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        setupConnection.close();
+        ServerClasses.invokeStatic("Server", "close_database", new Class<?>[0]);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Zapisuje mandat z pominięciem serwera, np. aby benchmark anulowania miał co anulować.
+     *
+     * @return id zapisanego mandatu
+     */
+    synchronized long insertTicketDirectly() throws SQLException {
+        try (Statement stmt = setupConnection.createStatement()) {
+            stmt.executeUpdate("INSERT INTO tickets (driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id) " +
+                    "VALUES ('Kierowca do anulowania', '" + SyntheticDatabase.pesel(1) + "', 1, 100, 0, 1)");
+            try (ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * Obsługuje jedno żądanie podanym handlerem.
+     *
+     * @param handler handler serwera
+     * @param method metoda http
+     * @param path ścieżka żądania
+     * @param body treść żądania
+     * @return wymiana z kodem i długością odpowiedzi
+     */
+    static BenchExchange call(HttpHandler handler, String method, String path, byte[] body) throws IOException {
+        BenchExchange exchange = new BenchExchange(method, path, body);
+        handler.handle(exchange);
+        return exchange;
+    }
+
+    static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,106 @@
+package bench;
+
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Syntetyczna baza danych dla benchmarków i testu obciążeniowego. Schemat jest tworzony migracjami serwera,
+ * a dane są zawsze te same dla tych samych parametrów, więc wyniki kolejnych uruchomień są porównywalne.
+ */
+final class SyntheticDatabase {
+
+    /**
+     * Numer służbowy i hasło policjanta zapisanego w bazie
+     */
+    static final String serviceNumber = "123nypd";
+    static final String officerPassword = "pass";
+
+    /**
+     * Hasło każdego kierowcy zapisanego w bazie
+     */
+    static final String driverPassword = "haslo";
+
+    /**
+     * Liczba wykroczeń w katalogu
+     */
+    static final int offenses = 40;
+
+    private SyntheticDatabase() {
+    }
+
+    /**
+     * Tworzy schemat migracjami serwera i wypełnia bazę policjantem, katalogiem wykroczeń
+     * oraz kierowcami z mandatami wystawionymi w kolejnych dniach.
+     *
+     * @param url adres pustej bazy danych JDBC
+     * @param drivers liczba kierowców
+     * @param ticketsPerDriver liczba mandatów każdego kierowcy
+     */
+    static void create(String url, int drivers, int ticketsPerDriver) throws SQLException, ReflectiveOperationException {
+        ServerClasses.invokeStatic("Migrations", "migrate", new Class<?>[]{String.class}, url);
+        try (Connection connection = DriverManager.getConnection(url)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement user = connection.prepareStatement("INSERT INTO users (service_number, password) VALUES (?, ?)")) {
+                user.setString(1, serviceNumber);
+                user.setString(2, officerPassword);
+                user.executeUpdate();
+            }
+            try (PreparedStatement offense = connection.prepareStatement(
+                    "INSERT INTO offenses (name, penalty_points_min, penalty_points_max, fine_min, fine_max, is_recidivist) VALUES (?, ?, ?, ?, ?, ?)")) {
+                for (int i = 0; i < offenses; i++) {
+                    offense.setString(1, offenseName(i));
+                    offense.setInt(2, i % 5);
+                    offense.setInt(3, i % 5 + 5);
+                    offense.setInt(4, 100 + i * 50);
+                    offense.setInt(5, 500 + i * 100);
+                    offense.setBoolean(6, i % 4 == 0);
+                    offense.addBatch();
+                }
+                offense.executeBatch();
+            }
+
+            DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            LocalDateTime start = LocalDateTime.of(2020, 1, 1, 8, 0);
+            try (PreparedStatement driver = connection.prepareStatement("INSERT INTO driver (pesel, password) VALUES (?, ?)");
+                 PreparedStatement ticket = connection.prepareStatement(
+                         "INSERT INTO tickets (driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id, issue_date) VALUES (?, ?, ?, ?, ?, 1, ?)")) {
+                for (int d = 0; d < drivers; d++) {
+                    String pesel = pesel(d);
+                    driver.setString(1, pesel);
+                    driver.setString(2, driverPassword);
+                    driver.addBatch();
+                    for (int t = 0; t < ticketsPerDriver; t++) {
+                        ticket.setString(1, driverName(d));
+                        ticket.setString(2, pesel);
+                        // Wykroczenia mają id od 1 w kolejności dodania
+                        ticket.setInt(3, t % offenses + 1);
+                        ticket.setDouble(4, 100 + t % offenses * 50);
+                        ticket.setInt(5, t % 10);
+                        ticket.setString(6, start.plusHours((long) t * 13 + d).format(format));
+                        ticket.addBatch();
+                    }
+                    ticket.executeBatch();
+                }
+                driver.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    /**
+     * @param index numer kierowcy
+     * @return pesel kierowcy o podanym numerze
+     */
+    static String pesel(int index) {
+        return String.format("900101%05d", index);
+    }
+
+    static String driverName(int index) {
+        return "Kierowca " + index;
+    }
+
+    static String offenseName(int index) {
+        return "Wykroczenie " + index;
+    }
+}
@@ -22,5 +22,21 @@ CREATE TABLE driver(
     password TEXT NOT NULL
 );
 
+CREATE TABLE offenses (
+    id INTEGER PRIMARY KEY AUTOINCREMENT,
+    name TEXT UNIQUE NOT NULL,
+    penalty_points_min INTEGER NOT NULL,
+    penalty_points_max INTEGER NOT NULL,
+    fine_min INTEGER NOT NULL,
+    fine_max INTEGER NOT NULL,
+    is_recidivist BOOLEAN NOT NULL DEFAULT 0
+);
+
+CREATE INDEX tickets_pesel_issue_date ON tickets (pesel, issue_date);
+CREATE INDEX tickets_issued_by ON tickets (issued_by);
+
+-- Schemat po migracjach 1-2. Kolejne zmiany (punkty karne, klucze idempotentności, offense_id i officer_id,
+-- dziennik zdarzeń mandatów) istnieją tylko w klasie Migrations, którą serwer wykonuje przy starcie.
+
 --insert into users values (1,'123nypd','pass');
 --select * from tickets;
@@ -0,0 +1,299 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pula długo żyjących połączeń do bazy SQLite współdzielona przez wszystkie handlery serwera.
+ * Połączenia są otwierane raz przy starcie, konfigurowane pragmami i trzymają własną
+ * pamięć podręczną przygotowanych zapytań, dzięki czemu żądanie nie płaci za otwarcie pliku bazy
+ * ani za ponowne parsowanie schematu.
+ */
+public final class ConnectionPool implements AutoCloseable {
+
+    /**
+     * Tryb dziennika bazy. WAL pozwala czytać równolegle z zapisem, ale wymaga,
+     * aby wszystkie procesy korzystające z bazy działały na tym samym komputerze.
+     */
+    private final static String journalMode = System.getProperty("mandaty.db.journalMode", "WAL");
+
+    /**
+     * Poziom synchronizacji zapisu na dysk. NORMAL w trybie WAL nie traci spójności bazy.
+     */
+    private final static String synchronous = System.getProperty("mandaty.db.synchronous", "NORMAL");
+
+    /**
+     * Rozmiar pamięci podręcznej stron na połączenie (wartość ujemna oznacza KiB).
+     */
+    private final static int cacheSize = Integer.getInteger("mandaty.db.cacheSize", -16000);
+
+    /**
+     * Rozmiar obszaru bazy mapowanego w pamięci w bajtach.
+     */
+    private final static long mmapSize = Long.getLong("mandaty.db.mmapSize", 256L * 1024 * 1024);
+
+    /**
+     * Czas w milisekundach, przez jaki SQLite czeka na zwolnienie blokady zapisu.
+     */
+    private final static int busyTimeout = Integer.getInteger("mandaty.db.busyTimeout", 5000);
+
+    /**
+     * Wolne połączenia gotowe do wydania
+     */
+    private final BlockingQueue<PooledConnection> idle;
+
+    /**
+     * Wszystkie połączenia należące do puli
+     */
+    private final List<PooledConnection> all = new ArrayList<>();
+
+    /**
+     * Maksymalny czas oczekiwania na wolne połączenie w milisekundach
+     */
+    private final long acquireTimeoutMillis;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Otwiera wszystkie połączenia puli i ustawia na nich pragmy.
+     *
+     * @param url adres bazy danych JDBC
+     * @param size liczba połączeń w puli
+     * @param acquireTimeoutMillis maksymalny czas oczekiwania na wolne połączenie
+     * @throws SQLException jeśli nie uda się otworzyć któregoś z połączeń
+     */
+    public ConnectionPool(String url, int size, long acquireTimeoutMillis) throws SQLException {
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        try {
+            for (int i = 0; i < size; i++) {
+                PooledConnection connection = new PooledConnection(this, openConnection(url));
+                all.add(connection);
+                idle.add(connection);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Otwiera nowe połączenie i ustawia na nim pragmy używane przez serwer.
+     *
+     * @param url adres bazy danych JDBC
+     * @return skonfigurowane połączenie
+     * @throws SQLException jeśli nie uda się otworzyć połączenia
+     */
+    static Connection openConnection(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + busyTimeout);
+            stmt.execute("PRAGMA journal_mode = " + journalMode);
+            stmt.execute("PRAGMA synchronous = " + synchronous);
+            stmt.execute("PRAGMA cache_size = " + cacheSize);
+            stmt.execute("PRAGMA mmap_size = " + mmapSize);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Pobiera wolne połączenie z puli, czekając na nie najwyżej acquireTimeoutMillis.
+     * Połączenie wraca do puli po wywołaniu close().
+     *
+     * @return połączenie z puli
+     * @throws SQLException jeśli w wyznaczonym czasie nie zwolniło się żadne połączenie
+     */
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection connection = idle.poll();
+        if (connection == null) {
+            waiting.incrementAndGet();
+            try {
+                connection = idle.poll(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Przerwano oczekiwanie na połączenie z bazą danych", e);
+            } finally {
+                waiting.decrementAndGet();
+            }
+            if (connection == null) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Brak wolnego połączenia z bazą danych po " + acquireTimeoutMillis + " ms");
+            }
+        }
+        connection.released.set(false);
+        waitNanos.addAndGet(System.nanoTime() - start);
+        acquisitions.incrementAndGet();
+        peakInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+        return connection;
+    }
+
+    /**
+     * Zwraca połączenie do puli, wycofując niezakończoną transakcję.
+     *
+     * @param connection zwracane połączenie
+     */
+    void release(PooledConnection connection) {
+        try {
+            if (!connection.connection.getAutoCommit()) {
+                connection.connection.rollback();
+                connection.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            Log.warn("Błąd przywracania połączenia do puli", "error", e.getMessage());
+        }
+        inUse.decrementAndGet();
+        idle.offer(connection);
+    }
+
+    /**
+     * @return liczba połączeń w puli.
+     */
+    public int getSize() {
+        return all.size();
+    }
+
+    /**
+     * @return liczba połączeń aktualnie wydanych handlerom.
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return liczba wątków czekających na wolne połączenie.
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return największa liczba jednocześnie wydanych połączeń od startu serwera.
+     */
+    public int getPeakInUse() {
+        return peakInUse.get();
+    }
+
+    /**
+     * @return liczba wszystkich udanych pobrań połączenia.
+     */
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * @return liczba pobrań zakończonych przekroczeniem czasu oczekiwania.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return łączny czas oczekiwania na połączenia w nanosekundach.
+     */
+    public long getTotalWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /**
+     * Zamyka wszystkie połączenia puli wraz z ich przygotowanymi zapytaniami.
+     */
+    @Override
+    public void close() {
+        for (PooledConnection connection : all) {
+            try {
+                connection.connection.close();
+            } catch (SQLException e) {
+                Log.warn("Błąd zamykania połączenia z bazą danych", "error", e.getMessage());
+            }
+        }
+        idle.clear();
+    }
+
+    /**
+     * Połączenie wydane z puli. Przygotowane zapytania są przechowywane razem z połączeniem
+     * i nie należy ich zamykać - zamknięcie obiektu oddaje połączenie do puli.
+     */
+    public static class PooledConnection implements AutoCloseable {
+        private final ConnectionPool pool;
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        /**
+         * Czy połączenie zostało już oddane do puli, kasowane przy każdym wydaniu połączenia
+         */
+        private final AtomicBoolean released = new AtomicBoolean(true);
+
+        private PooledConnection(ConnectionPool pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        /**
+         * Zwraca przygotowane zapytanie z pamięci podręcznej połączenia lub przygotowuje je przy pierwszym użyciu.
+         *
+         * @param sql treść zapytania
+         * @return przygotowane zapytanie
+         * @throws SQLException jeśli zapytania nie da się przygotować
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+        /**
+         * Jak {@link #prepare(String)}, ale z możliwością odczytu wygenerowanych kluczy.
+         *
+         * @param sql treść zapytania
+         * @param autoGeneratedKeys np. Statement.RETURN_GENERATED_KEYS
+         * @return przygotowane zapytanie
+         * @throws SQLException jeśli zapytania nie da się przygotować
+         */
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys + ":" + sql;
+            PreparedStatement stmt = statements.get(key);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(key, stmt);
+            }
+            return stmt;
+        }
+
+        /**
+         * @return połączenie JDBC, np. do sterowania transakcją.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Oddaje połączenie do puli. Kolejne wywołania po oddaniu połączenia nic nie robią,
+         * więc to samo połączenie nie trafi do wolnych dwa razy.
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                pool.release(this);
+            }
+        }
+    }
+}
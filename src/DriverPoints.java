@@ -0,0 +1,129 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suma ważnych punktów karnych kierowców w tabeli driver_points.
+ * Tabela jest zmieniana przez wyzwalacze na tabeli tickets, więc każdy zapis i anulowanie mandatu
+ * zmienia sumę w tej samej transakcji. Mandat liczy się, dopóki nie minie okres ważności punktów.
+ * Mandaty, których okres minął, są odejmowane okresowo przez wątek zapisujący: granica points_window.cutoff
+ * przesuwa się do chwili sprzed okresu ważności, a od sum odejmowane są tylko mandaty z przedziału
+ * między starą a nową granicą.
+ */
+public final class DriverPoints {
+
+    /**
+     * Zapytanie o sumę punktów kierowcy, jeden odczyt po kluczu głównym
+     */
+    static final String pointsQuery = "SELECT points FROM driver_points WHERE pesel = ?";
+
+    /**
+     * Zapytanie o kierowców, którym punkty wygasają między starą a nową granicą
+     */
+    static final String expiringQuery =
+            "SELECT pesel, SUM(penalty_points) AS points FROM tickets " +
+                    "WHERE issue_date > (SELECT cutoff FROM points_window WHERE id = 1) AND issue_date <= ? AND cancelled_at IS NULL " +
+                    "GROUP BY pesel";
+
+    private final TicketWriter writer;
+
+    /**
+     * Okres ważności punktów w dniach
+     */
+    private final int validityDays;
+
+    private final ScheduledExecutorService expiry;
+
+    /**
+     * Tworzy sumy punktów i uruchamia wątek okresowo zlecający wygaszanie punktów.
+     *
+     * @param writer wątek zapisujący, w którym wykonywane jest wygaszanie
+     * @param validityDays okres ważności punktów w dniach
+     * @param intervalSeconds odstęp między kolejnymi wygaszeniami w sekundach
+     */
+    public DriverPoints(TicketWriter writer, int validityDays, long intervalSeconds) {
+        this.writer = writer;
+        this.validityDays = validityDays;
+        this.expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "points-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.expiry.scheduleWithFixedDelay(() -> {
+            try {
+                expire();
+            } catch (SQLException e) {
+                Log.error("Błąd wygaszania punktów karnych", "error", e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Zwraca sumę ważnych punktów kierowcy.
+     *
+     * @param connection połączenie z puli
+     * @param pesel pesel kierowcy
+     * @return suma punktów, 0 jeśli kierowca nie ma ważnych punktów
+     * @throws SQLException jeśli zapytanie się nie powiedzie
+     */
+    public static int get(ConnectionPool.PooledConnection connection, String pesel) throws SQLException {
+        PreparedStatement stmt = connection.prepare(pointsQuery);
+        stmt.setString(1, pesel);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Odejmuje punkty, których okres ważności minął od poprzedniego wygaszenia.
+     * Wywoływana przy starcie serwera, aby sumy były aktualne przed obsługą pierwszego żądania, a potem okresowo.
+     *
+     * @return liczba kierowców, którym zmieniła się suma punktów
+     * @throws SQLException jeśli transakcja się nie powiedzie
+     */
+    public int expire() throws SQLException {
+        int drivers = writer.execute(connection -> {
+            String cutoff;
+            PreparedStatement now = connection.prepare("SELECT datetime('now', ?)");
+            now.setString(1, "-" + validityDays + " days");
+            try (ResultSet rs = now.executeQuery()) {
+                rs.next();
+                cutoff = rs.getString(1);
+            }
+
+            int changed = 0;
+            PreparedStatement expiring = connection.prepare(expiringQuery);
+            expiring.setString(1, cutoff);
+            PreparedStatement subtract = connection.prepare("UPDATE driver_points SET points = points - ? WHERE pesel = ?");
+            try (ResultSet rs = expiring.executeQuery()) {
+                while (rs.next()) {
+                    subtract.setInt(1, rs.getInt("points"));
+                    subtract.setString(2, rs.getString("pesel"));
+                    changed += subtract.executeUpdate();
+                }
+            }
+
+            // Granica tylko rośnie, więc żaden mandat nie zostanie odjęty dwa razy
+            PreparedStatement window = connection.prepare("UPDATE points_window SET cutoff = ? WHERE id = 1 AND cutoff < ?");
+            window.setString(1, cutoff);
+            window.setString(2, cutoff);
+            window.executeUpdate();
+            connection.prepare("DELETE FROM driver_points WHERE points <= 0").executeUpdate();
+            return changed;
+        });
+        if (drivers > 0) {
+            Log.info("Wygaszono punkty karne", "drivers", drivers);
+        }
+        return drivers;
+    }
+
+    /**
+     * Zatrzymuje wątek wygaszający punkty.
+     */
+    public void close() {
+        expiry.shutdownNow();
+    }
+}
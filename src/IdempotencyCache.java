@@ -0,0 +1,134 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ostatnie wyniki zapisów według klucza idempotentności przesłanego przez klienta.
+ * Powtórzone żądanie z tym samym kluczem dostaje zapamiętany wynik bez ponownego zapisu.
+ * Razem z wynikiem pamiętany jest skrót treści żądania, więc ten sam klucz z inną treścią
+ * (kolizja kluczy lub błąd klienta) jest rozpoznawany i odrzucany zamiast zwracać wynik innego zapisu.
+ * Pamięć jest ograniczona: po przekroczeniu pojemności usuwane są najstarsze klucze, a dla nich
+ * źródłem prawdy pozostaje unikalna kolumna w bazie danych, sprawdzana przez sam zapis.
+ *
+ * @param <V> typ zapamiętanego wyniku, np. id mandatu
+ */
+public class IdempotencyCache<V> {
+
+    /**
+     * Maksymalna długość klucza idempotentności
+     */
+    public static final int max_key_length = 128;
+
+    /**
+     * Zapamiętany wynik zapisu.
+     *
+     * @param requestHash skrót treści żądania, które wykonało zapis
+     * @param result wynik zapisu
+     * @param <V> typ wyniku
+     */
+    public record Entry<V>(String requestHash, V result) {
+
+        /**
+         * @param hash skrót treści powtórzonego żądania
+         * @return true jeśli powtórzone żądanie ma tę samą treść co żądanie, które wykonało zapis
+         */
+        public boolean matches(String hash) {
+            return requestHash.equals(hash);
+        }
+    }
+
+    private final Map<String, Entry<V>> results = new ConcurrentHashMap<>();
+
+    /**
+     * Klucze w kolejności zapamiętania, do usuwania najstarszych
+     */
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+
+    private final int capacity;
+
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param capacity maksymalna liczba zapamiętanych kluczy
+     */
+    public IdempotencyCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Liczy skrót SHA-256 pól żądania, zapisywany razem z kluczem idempotentności.
+     *
+     * @param fields pola żądania w ustalonej kolejności, null jest rozróżniany od pustego napisu
+     * @return skrót szesnastkowo
+     */
+    public static String requestHash(Object... fields) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Object field : fields) {
+            if (field == null) {
+                digest.update((byte) 0);
+            } else {
+                digest.update((byte) 1);
+                digest.update(String.valueOf(field).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @param key klucz idempotentności
+     * @return zapamiętany wynik ze skrótem żądania albo null, jeśli klucza nie ma w pamięci
+     */
+    public Entry<V> get(String key) {
+        Entry<V> entry = results.get(key);
+        if (entry != null) {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Zapamiętuje wynik zatwierdzonego zapisu.
+     *
+     * @param key klucz idempotentności
+     * @param requestHash skrót treści żądania, które wykonało zapis
+     * @param result wynik zapisu
+     */
+    public void put(String key, String requestHash, V result) {
+        if (results.putIfAbsent(key, new Entry<>(requestHash, result)) == null) {
+            order.add(key);
+            while (results.size() > capacity) {
+                String oldest = order.poll();
+                if (oldest == null) {
+                    break;
+                }
+                results.remove(oldest);
+            }
+        }
+    }
+
+    /**
+     * @return liczba powtórzonych żądań obsłużonych z pamięci, łącznie z odrzuconymi z powodu innej treści
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return liczba zapamiętanych kluczy
+     */
+    public int size() {
+        return results.size();
+    }
+}
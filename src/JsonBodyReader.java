@@ -0,0 +1,434 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Strumieniowy parser JSON czytający treść żądania bezpośrednio z exchange.getRequestBody().
+ * Nie buduje drzewa ani kopii całej treści - handler pobiera kolejne tokeny i od razu wypełnia
+ * nimi rekord żądania. Treść dłuższa niż podany limit kończy się błędem 413, a niepoprawny JSON błędem 400.
+ */
+public class JsonBodyReader {
+
+    /**
+     * Domyślny limit rozmiaru treści żądania w bajtach
+     */
+    final static int defaultMaxBody = Integer.getInteger("mandaty.http.maxBody", 16 * 1024);
+
+    /**
+     * Składnia liczby JSON
+     */
+    private final static Pattern number = Pattern.compile("-?(0|[1-9]\\d*)(\\.\\d+)?([eE][+-]?\\d+)?");
+
+    /**
+     * Maksymalne zagnieżdżenie obiektów i tablic
+     */
+    private final static int maxDepth = 32;
+
+    /**
+     * Błąd treści żądania, który handler zamienia na odpowiedź o podanym kodzie.
+     */
+    public static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public BadRequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        /**
+         * @return kod odpowiedzi http dla tego błędu.
+         */
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Poprawny składniowo obiekt z brakującym lub niepoprawnym polem. Obiekt został odczytany
+     * do końca, więc parser może kontynuować od następnej wartości, np. następnego mandatu w partii.
+     */
+    public static class InvalidFieldException extends BadRequestException {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidFieldException(String message) {
+            super(400, message);
+        }
+    }
+
+    private final InputStream in;
+    private final long maxBytes;
+    private long consumed;
+
+    private final byte[] buffer = new byte[1024];
+    private int position;
+    private int limit;
+
+    /**
+     * Bufor na bajty odczytywanego napisu, używany ponownie dla kolejnych napisów
+     */
+    private byte[] scratch = new byte[64];
+    private int scratchLength;
+
+    /**
+     * Dla każdego poziomu zagnieżdżenia: czy odczytano już pierwszy element
+     */
+    private final boolean[] started = new boolean[maxDepth];
+    private int depth;
+
+    /**
+     * Konstruktor parsera.
+     *
+     * @param in strumień z treścią żądania
+     * @param maxBytes maksymalna liczba bajtów, jaką można odczytać
+     */
+    public JsonBodyReader(InputStream in, long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Tworzy parser treści żądania z domyślnym limitem rozmiaru.
+     *
+     * @param exchange wymiana zawierająca żądanie
+     * @return parser treści żądania
+     * @throws BadRequestException jeśli nagłówek Content-Length przekracza limit
+     */
+    public static JsonBodyReader of(HttpExchange exchange) throws BadRequestException {
+        return of(exchange, defaultMaxBody);
+    }
+
+    /**
+     * Tworzy parser treści żądania z podanym limitem rozmiaru.
+     *
+     * @param exchange wymiana zawierająca żądanie
+     * @param maxBytes maksymalny rozmiar treści w bajtach
+     * @return parser treści żądania
+     * @throws BadRequestException jeśli nagłówek Content-Length przekracza limit
+     */
+    public static JsonBodyReader of(HttpExchange exchange, long maxBytes) throws BadRequestException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxBytes) {
+                    throw tooLarge(maxBytes);
+                }
+            } catch (NumberFormatException e) {
+                throw new BadRequestException(400, "Niepoprawny nagłówek Content-Length");
+            }
+        }
+        return new JsonBodyReader(exchange.getRequestBody(), maxBytes);
+    }
+
+    /**
+     * Rozpoczyna odczyt obiektu.
+     */
+    public void beginObject() throws IOException {
+        expect('{');
+        push();
+    }
+
+    /**
+     * Kończy odczyt obiektu.
+     */
+    public void endObject() throws IOException {
+        expect('}');
+        depth--;
+    }
+
+    /**
+     * Rozpoczyna odczyt tablicy.
+     */
+    public void beginArray() throws IOException {
+        expect('[');
+        push();
+    }
+
+    /**
+     * Kończy odczyt tablicy.
+     */
+    public void endArray() throws IOException {
+        expect(']');
+        depth--;
+    }
+
+    /**
+     * Sprawdza, czy w bieżącym obiekcie lub tablicy jest kolejny element, i przechodzi za dzielący przecinek.
+     *
+     * @return true jeśli jest kolejny element, false jeśli następny jest znak zamykający
+     */
+    public boolean hasNext() throws IOException {
+        int c = peek();
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        if (started[depth - 1]) {
+            expect(',');
+        }
+        started[depth - 1] = true;
+        return true;
+    }
+
+    /**
+     * Odczytuje nazwę pola obiektu razem z dwukropkiem.
+     *
+     * @return nazwa pola
+     */
+    public String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Odczytuje wartość będącą napisem.
+     *
+     * @return odczytany napis
+     */
+    public String nextString() throws IOException {
+        expect('"');
+        readStringBody();
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Odczytuje wartość prostą (napis, liczbę, true, false lub null) jako tekst.
+     * Pozwala przyjmować liczby wysyłane przez klientów zarówno jako liczby, jak i napisy.
+     *
+     * @return tekst wartości lub null dla wartości null
+     */
+    public String nextScalar() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            return nextString();
+        }
+        if (c == '{' || c == '[') {
+            throw malformed("Oczekiwano wartości prostej");
+        }
+        scratchLength = 0;
+        while (true) {
+            c = peekRaw();
+            if (c == -1 || c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+                break;
+            }
+            appendScratch(read());
+        }
+        String literal = new String(scratch, 0, scratchLength, StandardCharsets.US_ASCII);
+        if (literal.equals("null")) {
+            return null;
+        }
+        if (literal.equals("true") || literal.equals("false") || isNumber(literal)) {
+            return literal;
+        }
+        throw malformed("Niepoprawna wartość: " + literal);
+    }
+
+    /**
+     * Pomija dowolną wartość, również zagnieżdżony obiekt lub tablicę.
+     */
+    public void skipValue() throws IOException {
+        int c = peek();
+        if (c == '{') {
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+        } else if (c == '[') {
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+        } else {
+            nextScalar();
+        }
+    }
+
+    /**
+     * Sprawdza, że po odczytanej wartości nie ma już nic poza białymi znakami.
+     */
+    public void endDocument() throws IOException {
+        if (peek() != -1) {
+            throw malformed("Nadmiarowe dane po końcu dokumentu");
+        }
+    }
+
+    /**
+     * Odczytuje treść napisu po otwierającym cudzysłowie do bufora scratch.
+     */
+    private void readStringBody() throws IOException {
+        scratchLength = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw malformed("Niezakończony napis");
+            }
+            if (c == '"') {
+                return;
+            }
+            if (c < 0x20) {
+                throw malformed("Niedozwolony znak w napisie");
+            }
+            if (c != '\\') {
+                appendScratch(c);
+                continue;
+            }
+            int escaped = read();
+            switch (escaped) {
+                case '"', '\\', '/' -> appendScratch(escaped);
+                case 'b' -> appendScratch('\b');
+                case 'f' -> appendScratch('\f');
+                case 'n' -> appendScratch('\n');
+                case 'r' -> appendScratch('\r');
+                case 't' -> appendScratch('\t');
+                case 'u' -> appendCodePoint(readUnicodeEscape());
+                default -> throw malformed("Niepoprawna sekwencja ucieczki");
+            }
+        }
+    }
+
+    /**
+     * Odczytuje sekwencję \\uXXXX, łącząc pary surogatów w jeden znak.
+     *
+     * @return kod znaku
+     */
+    private int readUnicodeEscape() throws IOException {
+        char high = readHex4();
+        if (!Character.isSurrogate(high)) {
+            return high;
+        }
+        if (Character.isHighSurrogate(high) && read() == '\\' && read() == 'u') {
+            char low = readHex4();
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(high, low);
+            }
+        }
+        throw malformed("Niepoprawna para surogatów");
+    }
+
+    private char readHex4() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+                throw malformed("Niepoprawna sekwencja \\u");
+            }
+            value = (value << 4) | digit;
+        }
+        return (char) value;
+    }
+
+    /**
+     * Dopisuje znak do bufora scratch zakodowany w UTF-8.
+     */
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            appendScratch(codePoint);
+        } else if (codePoint < 0x800) {
+            appendScratch(0xC0 | (codePoint >> 6));
+            appendScratch(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            appendScratch(0xE0 | (codePoint >> 12));
+            appendScratch(0x80 | ((codePoint >> 6) & 0x3F));
+            appendScratch(0x80 | (codePoint & 0x3F));
+        } else {
+            appendScratch(0xF0 | (codePoint >> 18));
+            appendScratch(0x80 | ((codePoint >> 12) & 0x3F));
+            appendScratch(0x80 | ((codePoint >> 6) & 0x3F));
+            appendScratch(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    private void appendScratch(int b) {
+        if (scratchLength == scratch.length) {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        }
+        scratch[scratchLength++] = (byte) b;
+    }
+
+    private void push() throws BadRequestException {
+        if (depth == maxDepth) {
+            throw malformed("Zbyt głębokie zagnieżdżenie");
+        }
+        started[depth++] = false;
+    }
+
+    /**
+     * Pomija białe znaki i sprawdza, że następny znak jest oczekiwanym znakiem.
+     */
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) {
+            throw malformed("Oczekiwano '" + expected + "'");
+        }
+        read();
+    }
+
+    /**
+     * Pomija białe znaki i zwraca następny znak bez jego odczytania.
+     *
+     * @return następny bajt lub -1 na końcu treści
+     */
+    private int peek() throws IOException {
+        int c;
+        while (isWhitespace(c = peekRaw())) {
+            read();
+        }
+        return c;
+    }
+
+    private int peekRaw() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * Uzupełnia bufor kolejną porcją treści, pilnując limitu rozmiaru.
+     *
+     * @return false na końcu treści
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        consumed += n;
+        if (consumed > maxBytes) {
+            throw tooLarge(maxBytes);
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static boolean isNumber(String literal) {
+        return number.matcher(literal).matches();
+    }
+
+    private static BadRequestException malformed(String message) {
+        return new BadRequestException(400, "Niepoprawny JSON: " + message);
+    }
+
+    private static BadRequestException tooLarge(long maxBytes) {
+        return new BadRequestException(413, "Treść żądania przekracza " + maxBytes + " bajtów");
+    }
+}
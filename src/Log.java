@@ -0,0 +1,325 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Asynchroniczny log serwera. Wątek obsługujący żądanie tylko wstawia wpis do ograniczonego bufora
+ * cyklicznego, a formatowaniem i zapisem na standardowe wyjście zajmuje się osobny wątek.
+ * Gdy bufor jest pełny, wpis jest pomijany i liczony zamiast blokować żądanie.
+ * Wpis składa się z poziomu, komunikatu i pól klucz=wartość, a wartości pól z danymi logowania
+ * są zastępowane gwiazdkami.
+ */
+public final class Log {
+
+    /**
+     * Poziomy wpisów, od najmniej ważnego.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Jeden wpis czekający w buforze.
+     */
+    private record Entry(long timeMillis, Level level, String thread, String message, Object[] fields) {
+    }
+
+    /**
+     * Minimalny poziom zapisywanych wpisów
+     */
+    private final static Level minLevel = Level.valueOf(System.getProperty("mandaty.log.level", "INFO").toUpperCase(Locale.ROOT));
+
+    /**
+     * Pojemność bufora, zaokrąglona w górę do potęgi dwójki
+     */
+    private final static int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("mandaty.log.buffer", 8192) - 1)) << 1;
+
+    /**
+     * Klucze pól, których wartości nie mogą trafić do logu
+     */
+    private final static Set<String> secretKeys = Set.of("password", "haslo", "token", "sessionToken", "authorization");
+
+    /**
+     * Dane logowania w treści komunikatu, np. fragment JSON "password":"..."
+     */
+    private final static Pattern secretInMessage = Pattern.compile(
+            "(?i)(\"?(?:password|haslo|token|sessionToken|authorization)\"?\\s*[:=]\\s*)(\"[^\"]*\"|[^\\s,}&]+)");
+
+    /**
+     * Bufor cykliczny wielu producentów i jednego konsumenta. Pozycja i jest wolna dla producenta
+     * zapisującego wpis numer n, gdy sequences[i] == n, a gotowa dla konsumenta, gdy sequences[i] == n + 1.
+     */
+    private final static AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(capacity);
+    private final static AtomicLongArray sequences = new AtomicLongArray(capacity);
+    private final static AtomicLong tail = new AtomicLong();
+    private static long head;
+
+    private final static AtomicLong dropped = new AtomicLong();
+    private final static AtomicLong written = new AtomicLong();
+
+    private final static Thread writer;
+
+    /**
+     * Ustawiane przez wątek zapisujący, zanim zaśnie przy pustym buforze. Producent, który to widzi, budzi go
+     */
+    private static volatile boolean idle;
+
+    /**
+     * Najdłuższy sen wątku zapisującego bez wpisów, po którym sprawdza pominięte wpisy
+     */
+    private final static long idle_park_nanos = TimeUnit.SECONDS.toNanos(1);
+
+    static {
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::run, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Wstawia wpis diagnostyczny, zapisywany tylko przy -Dmandaty.log.level=DEBUG.
+     *
+     * @param message komunikat
+     * @param fields na przemian klucze i wartości pól
+     */
+    public static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    /**
+     * Wstawia wpis o zwykłym zdarzeniu, np. uruchomieniu serwera lub logowaniu.
+     *
+     * @param message komunikat
+     * @param fields na przemian klucze i wartości pól
+     */
+    public static void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    /**
+     * Wstawia ostrzeżenie o błędzie, po którym serwer działa dalej, np. zerwanym połączeniu klienta.
+     *
+     * @param message komunikat
+     * @param fields na przemian klucze i wartości pól
+     */
+    public static void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    /**
+     * Wstawia wpis o błędzie, przez który żądanie lub zadanie serwera się nie powiodło.
+     *
+     * @param message komunikat
+     * @param fields na przemian klucze i wartości pól
+     */
+    public static void error(String message, Object... fields) {
+        log(Level.ERROR, message, fields);
+    }
+
+    /**
+     * @param level poziom wpisu
+     * @return true jeśli wpisy tego poziomu są zapisywane
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+
+    /**
+     * Wstawia wpis do bufora bez blokowania. Formatowanie wartości pól odbywa się dopiero w wątku zapisującym,
+     * więc pola powinny być wartościami niezmiennymi, np. napisami lub liczbami.
+     *
+     * @param level poziom wpisu
+     * @param message komunikat
+     * @param fields na przemian klucze i wartości pól
+     */
+    public static void log(Level level, String message, Object... fields) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), level, Thread.currentThread().getName(), message, fields);
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & (capacity - 1));
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    entries.set(index, entry);
+                    sequences.set(index, position + 1);
+                    wakeWriter();
+                    return;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // Bufor pełny, wątek zapisujący nie nadąża
+                dropped.incrementAndGet();
+                wakeWriter();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return liczba wpisów pominiętych z powodu pełnego bufora
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return liczba zapisanych wpisów
+     */
+    public static long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Budzi wątek zapisujący, jeśli śpi przy pustym buforze. Zapis do bufora poprzedza odczyt idle,
+     * a wątek zapisujący ustawia idle przed ponownym sprawdzeniem bufora, więc żaden wpis nie czeka na sen do końca.
+     */
+    private static void wakeWriter() {
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Pętla wątku zapisującego: opróżnia bufor, a gdy jest pusty, śpi do obudzenia przez producenta.
+     */
+    private static void run() {
+        long reportedDropped = 0;
+        while (true) {
+            int drained = drain();
+            long droppedNow = dropped.get();
+            if (droppedNow != reportedDropped) {
+                write(new Entry(System.currentTimeMillis(), Level.WARN, "log-writer",
+                        "Pominięto wpisy logu z powodu pełnego bufora", new Object[]{"dropped", droppedNow - reportedDropped}));
+                reportedDropped = droppedNow;
+            }
+            if (drained == 0) {
+                idle = true;
+                if (!ready() && dropped.get() == reportedDropped) {
+                    LockSupport.parkNanos(idle_park_nanos);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    /**
+     * @return true jeśli następny wpis w buforze jest gotowy do zapisania
+     */
+    private static synchronized boolean ready() {
+        return sequences.get((int) (head & (capacity - 1))) == head + 1;
+    }
+
+    /**
+     * Zapisuje wszystkie gotowe wpisy z bufora.
+     *
+     * @return liczba zapisanych wpisów
+     */
+    private static synchronized int drain() {
+        int count = 0;
+        PrintStream out = System.out;
+        while (true) {
+            int index = (int) (head & (capacity - 1));
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Entry entry = entries.get(index);
+            entries.set(index, null);
+            sequences.set(index, head + capacity);
+            head++;
+            out.print(format(entry));
+            count++;
+        }
+        if (count > 0) {
+            out.flush();
+            written.addAndGet(count);
+        }
+        return count;
+    }
+
+    private static void write(Entry entry) {
+        PrintStream out = System.out;
+        out.print(format(entry));
+        out.flush();
+    }
+
+    /**
+     * Zapisuje wpisy pozostałe w buforze, np. przy zamykaniu serwera.
+     */
+    public static void flush() {
+        drain();
+    }
+
+    /**
+     * Formatuje wpis jako jedną linię: czas, poziom, wątek, komunikat i pola klucz=wartość.
+     */
+    private static String format(Entry entry) {
+        StringBuilder line = new StringBuilder(128);
+        line.append(Instant.ofEpochMilli(entry.timeMillis())).append(' ')
+                .append(String.format("%-5s", entry.level())).append(" [").append(entry.thread()).append("] ")
+                .append(redact(entry.message()));
+        Object[] fields = entry.fields();
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            String key = String.valueOf(fields[i]);
+            line.append(' ').append(key).append('=');
+            if (secretKeys.contains(key)) {
+                line.append("***");
+            } else {
+                appendValue(line, redact(String.valueOf(fields[i + 1])));
+            }
+        }
+        return line.append(System.lineSeparator()).toString();
+    }
+
+    /**
+     * Dopisuje wartość pola, biorąc ją w cudzysłów, jeśli zawiera spacje, cudzysłowy lub znaki nowej linii.
+     */
+    private static void appendValue(StringBuilder line, String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c < 0x20;
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private static String redact(String text) {
+        if (text == null) {
+            return "null";
+        }
+        return secretInMessage.matcher(text).replaceAll("$1***");
+    }
+}
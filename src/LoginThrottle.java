@@ -0,0 +1,116 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ograniczenie liczby prób logowania na klucz, np. numer służbowy, pesel lub adres IP.
+ * Każdy klucz ma własne wiadro żetonów zapisane jako jedna liczba: chwila, w której wiadro byłoby
+ * znowu pełne. Pobranie żetonu to odczyt z mapy i jedna operacja compareAndSet, bez blokad.
+ * Wiadro, które zdążyło się napełnić, niczym nie różni się od braku wiadra, więc jest usuwane
+ * przy przeglądaniu mapy. Przeglądanie odbywa się średnio co kilka tysięcy prób oraz gdy mapa osiągnie limit kluczy.
+ */
+public class LoginThrottle {
+
+    /**
+     * Średnia liczba prób, co którą mapa jest przeglądana w poszukiwaniu pełnych wiader
+     */
+    private final static int sweep_interval = 4096;
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Czas uzupełnienia jednego żetonu w nanosekundach
+     */
+    private final long intervalNanos;
+
+    /**
+     * Pojemność wiadra wyrażona w czasie: ile najwyżej chwila pełnego wiadra może wyprzedzać bieżącą chwilę
+     */
+    private final long capacityNanos;
+
+    private final int maxKeys;
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param perMinute liczba prób na minutę dla jednego klucza, jest to również pojemność wiadra
+     * @param maxKeys maksymalna liczba kluczy w pamięci
+     */
+    public LoginThrottle(int perMinute, int maxKeys) {
+        this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / perMinute;
+        this.capacityNanos = intervalNanos * perMinute;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Pobiera żeton dla klucza.
+     *
+     * @param key klucz, np. adres IP
+     * @return 0 jeśli próba jest dozwolona, w przeciwnym razie czas do następnego żetonu w milisekundach
+     */
+    public long acquire(String key) {
+        long now = System.nanoTime();
+        if (ThreadLocalRandom.current().nextInt(sweep_interval) == 0) {
+            sweep(now);
+        }
+
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                sweep(now);
+                if (buckets.size() >= maxKeys) {
+                    // Mapa pełna nawet po usunięciu pełnych wiader, nowy klucz jest odrzucany zamiast zwiększać zużycie pamięci
+                    rejected.increment();
+                    return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+                }
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full - now, 0) + intervalNanos;
+            if (next > capacityNanos) {
+                rejected.increment();
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - capacityNanos));
+            }
+            if (bucket.compareAndSet(full, now + next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Usuwa pełne wiadra. Próba zapisana równolegle w usuwanym wiadrze może przepaść, co najwyżej
+     * dając kluczowi jedną próbę więcej.
+     */
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * @return liczba kluczy w pamięci
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * @return liczba odrzuconych prób
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
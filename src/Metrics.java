@@ -0,0 +1,318 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Rejestr metryk serwera wystawiany w formacie tekstowym Prometheusa.
+ * Dla każdego kontekstu http liczy żądania, błędy i histogram czasu obsługi, a także czas spędzony
+ * w JDBC, w serializacji JSON i w zapisie odpowiedzi. Liczniki są oparte na LongAdder, więc zapis
+ * z wielu wątków naraz nie wymaga blokad. Stan połączeń i kolejek jest odczytywany dopiero przy eksporcie.
+ */
+public class Metrics {
+
+    /**
+     * Górne granice kubełków histogramu czasu obsługi żądania w sekundach
+     */
+    private final static double[] buckets = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /**
+     * Czasy faz bieżącego żądania, ustawiane przez filtr kontekstu na czas obsługi
+     */
+    private final static ThreadLocal<Phases> current = new ThreadLocal<>();
+
+    /**
+     * Czasy faz jednego żądania w nanosekundach.
+     */
+    private static final class Phases {
+        long jdbc;
+        long json;
+        long write;
+    }
+
+    /**
+     * Strumień odpowiedzi doliczający czas zapisu do fazy zapisu żądania.
+     */
+    private static final class TimedOutputStream extends FilterOutputStream {
+        private final Phases phases;
+
+        TimedOutputStream(OutputStream out, Phases phases) {
+            super(out);
+            this.phases = phases;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            phases.write += System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            phases.write += System.nanoTime() - start;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            phases.write += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            out.close();
+            phases.write += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Liczniki jednego kontekstu http.
+     */
+    private static final class ContextStats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+        final LongAdder jdbcNanos = new LongAdder();
+        final LongAdder jsonNanos = new LongAdder();
+        final LongAdder writeNanos = new LongAdder();
+        final LongAdder[] latencyBuckets = new LongAdder[buckets.length];
+
+        ContextStats() {
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                latencyBuckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos, boolean error, Phases phases) {
+            requests.increment();
+            if (error) {
+                errors.increment();
+            }
+            latencyNanos.add(nanos);
+            jdbcNanos.add(phases.jdbc);
+            jsonNanos.add(phases.json);
+            writeNanos.add(phases.write);
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < buckets.length; i++) {
+                if (seconds <= buckets[i]) {
+                    latencyBuckets[i].increment();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Metryka odczytywana przy eksporcie z obiektu, który ją utrzymuje, np. z puli połączeń.
+     *
+     * @param name nazwa metryki
+     * @param type typ metryki Prometheusa: gauge lub counter
+     * @param help opis metryki
+     * @param value odczyt bieżącej wartości
+     * @param scale mnożnik wartości, np. 1e-9 dla nanosekund eksportowanych w sekundach
+     */
+    private record Gauge(String name, String type, String help, LongSupplier value, double scale) {
+    }
+
+    private final Map<String, ContextStats> contexts = new ConcurrentHashMap<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * Tworzy filtr mierzący żądania kontekstu. Powinien być pierwszym filtrem kontekstu,
+     * aby mierzyć również żądania odrzucone przez kolejne filtry.
+     *
+     * @param path ścieżka kontekstu używana jako etykieta metryk
+     * @return filtr do dodania do kontekstu
+     */
+    public Filter filter(String path) {
+        ContextStats stats = contexts.computeIfAbsent(path, key -> new ContextStats());
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                Phases phases = new Phases();
+                current.set(phases);
+                exchange.setStreams(null, new TimedOutputStream(exchange.getResponseBody(), phases));
+                long start = System.nanoTime();
+                boolean error = true;
+                try {
+                    chain.doFilter(exchange);
+                    error = exchange.getResponseCode() >= 400;
+                } finally {
+                    current.remove();
+                    stats.record(System.nanoTime() - start, error, phases);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Pomiar czasu obsługi żądań";
+            }
+        };
+    }
+
+    /**
+     * Zwraca bieżącą chwilę do pomiaru faz żądania. Czas zapisu treści odpowiedzi jest liczony osobno
+     * przez strumień odpowiedzi i nie wlicza się do faz mierzonych od tej chwili, więc np. serializacja
+     * wierszy przeplatana z zapisem do strumienia jest mierzona bez czasu zapisu.
+     *
+     * @return chwila w nanosekundach, do przekazania do {@link #jdbc(long)} lub {@link #json(long)}
+     */
+    public static long now() {
+        Phases phases = current.get();
+        return phases == null ? System.nanoTime() : System.nanoTime() - phases.write;
+    }
+
+    /**
+     * Dodaje czas od podanej chwili do czasu JDBC bieżącego żądania.
+     *
+     * @param start chwila rozpoczęcia z {@link #now()}
+     * @return bieżąca chwila, do użycia jako początek następnej fazy
+     */
+    public static long jdbc(long start) {
+        long now = now();
+        Phases phases = current.get();
+        if (phases != null) {
+            phases.jdbc += now - start;
+        }
+        return now;
+    }
+
+    /**
+     * Dodaje czas od podanej chwili do czasu serializacji JSON bieżącego żądania.
+     *
+     * @param start chwila rozpoczęcia z {@link #now()}
+     * @return bieżąca chwila, do użycia jako początek następnej fazy
+     */
+    public static long json(long start) {
+        long now = now();
+        Phases phases = current.get();
+        if (phases != null) {
+            phases.json += now - start;
+        }
+        return now;
+    }
+
+    /**
+     * Rejestruje metrykę typu gauge, np. liczbę zajętych połączeń.
+     *
+     * @param name nazwa metryki
+     * @param help opis metryki
+     * @param value odczyt bieżącej wartości
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, "gauge", help, value, 1));
+    }
+
+    /**
+     * Rejestruje licznik utrzymywany przez inny obiekt, np. liczbę zatwierdzonych transakcji.
+     *
+     * @param name nazwa metryki
+     * @param help opis metryki
+     * @param value odczyt bieżącej wartości
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, "counter", help, value, 1));
+    }
+
+    /**
+     * Rejestruje licznik czasu w nanosekundach eksportowany w sekundach.
+     *
+     * @param name nazwa metryki
+     * @param help opis metryki
+     * @param nanos odczyt bieżącej wartości w nanosekundach
+     */
+    public void counterSeconds(String name, String help, LongSupplier nanos) {
+        gauges.add(new Gauge(name, "counter", help, nanos, 1e-9));
+    }
+
+    /**
+     * Zwraca wszystkie metryki w formacie tekstowym Prometheusa (wersja 0.0.4).
+     *
+     * @return treść odpowiedzi /api/metrics
+     */
+    public String export() {
+        StringBuilder out = new StringBuilder(4096);
+        List<Map.Entry<String, ContextStats>> entries = new ArrayList<>(contexts.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+
+        header(out, "mandaty_http_requests_total", "counter", "Liczba obsłużonych żądań");
+        for (Map.Entry<String, ContextStats> entry : entries) {
+            sample(out, "mandaty_http_requests_total", entry.getKey(), null, entry.getValue().requests.sum());
+        }
+        header(out, "mandaty_http_errors_total", "counter", "Liczba żądań zakończonych kodem 4xx, 5xx lub wyjątkiem");
+        for (Map.Entry<String, ContextStats> entry : entries) {
+            sample(out, "mandaty_http_errors_total", entry.getKey(), null, entry.getValue().errors.sum());
+        }
+        seconds(out, entries, "mandaty_http_jdbc_seconds_total", "Czas spędzony w JDBC, łącznie z oczekiwaniem na połączenie i wątek zapisujący", s -> s.jdbcNanos);
+        seconds(out, entries, "mandaty_http_json_seconds_total", "Czas serializacji odpowiedzi JSON", s -> s.jsonNanos);
+        seconds(out, entries, "mandaty_http_write_seconds_total", "Czas zapisu treści odpowiedzi do połączenia", s -> s.writeNanos);
+
+        header(out, "mandaty_http_request_duration_seconds", "histogram", "Czas obsługi żądania");
+        for (Map.Entry<String, ContextStats> entry : entries) {
+            ContextStats stats = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += stats.latencyBuckets[i].sum();
+                sample(out, "mandaty_http_request_duration_seconds_bucket", entry.getKey(), BigDecimal.valueOf(buckets[i]).stripTrailingZeros().toPlainString(), cumulative);
+            }
+            long count = stats.requests.sum();
+            sample(out, "mandaty_http_request_duration_seconds_bucket", entry.getKey(), "+Inf", Math.max(count, cumulative));
+            out.append("mandaty_http_request_duration_seconds_sum{context=\"").append(entry.getKey()).append("\"} ")
+                    .append(format(stats.latencyNanos.sum() / 1e9)).append('\n');
+            sample(out, "mandaty_http_request_duration_seconds_count", entry.getKey(), null, count);
+        }
+
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name(), gauge.type(), gauge.help());
+            long value = gauge.value().getAsLong();
+            out.append(gauge.name()).append(' ')
+                    .append(gauge.scale() == 1 ? Long.toString(value) : format(value * gauge.scale())).append('\n');
+        }
+        return out.toString();
+    }
+
+    private interface Adder {
+        LongAdder of(ContextStats stats);
+    }
+
+    private static void seconds(StringBuilder out, List<Map.Entry<String, ContextStats>> entries, String name, String help, Adder adder) {
+        header(out, name, "counter", help);
+        for (Map.Entry<String, ContextStats> entry : entries) {
+            out.append(name).append("{context=\"").append(entry.getKey()).append("\"} ")
+                    .append(format(adder.of(entry.getValue()).sum() / 1e9)).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String context, String le, long value) {
+        out.append(name).append("{context=\"").append(context).append('"');
+        if (le != null) {
+            out.append(",le=\"").append(le).append('"');
+        }
+        out.append("} ").append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+}
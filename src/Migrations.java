@@ -0,0 +1,282 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Wersjonowane migracje schematu bazy danych uruchamiane przy starcie serwera.
+ * Numer ostatniej wykonanej migracji jest zapisany w nagłówku bazy (PRAGMA user_version),
+ * więc każda migracja wykonuje się dokładnie raz. Po migracji sprawdzane są plany
+ * zapytań wykonywanych przy każdym żądaniu, aby wychwycić pełne skany tabel.
+ */
+public class Migrations {
+
+    /**
+     * Wyzwalacz dodający punkty zapisanego mandatu do sumy kierowcy
+     */
+    private static final String pointsInsertTrigger =
+            "CREATE TRIGGER IF NOT EXISTS tickets_points_insert AFTER INSERT ON tickets " +
+                    "WHEN NEW.issue_date > (SELECT cutoff FROM points_window WHERE id = 1) BEGIN " +
+                    "INSERT INTO driver_points (pesel, points) VALUES (NEW.pesel, NEW.penalty_points) " +
+                    "ON CONFLICT (pesel) DO UPDATE SET points = points + excluded.points; " +
+                    "END";
+
+    /**
+     * Wyzwalacz odejmujący punkty anulowanego mandatu od sumy kierowcy
+     */
+    private static final String pointsDeleteTrigger =
+            "CREATE TRIGGER IF NOT EXISTS tickets_points_delete AFTER DELETE ON tickets " +
+                    "WHEN OLD.issue_date > (SELECT cutoff FROM points_window WHERE id = 1) BEGIN " +
+                    "UPDATE driver_points SET points = points - OLD.penalty_points WHERE pesel = OLD.pesel; " +
+                    "END";
+
+    /**
+     * Kolejne migracje. Migracja o indeksie i podnosi wersję bazy do i + 1.
+     * Nowe migracje dopisuje się wyłącznie na końcu listy.
+     */
+    private static final List<String[]> migrations = List.of(
+            // 1: schemat z mandaty.sql oraz tabela wykroczeń czytana przez /api/offences
+            new String[]{
+                    "CREATE TABLE IF NOT EXISTS users (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "service_number TEXT UNIQUE NOT NULL, " +
+                            "password TEXT NOT NULL)",
+                    "CREATE TABLE IF NOT EXISTS tickets (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "driver_name TEXT NOT NULL, " +
+                            "pesel TEXT NOT NULL, " +
+                            "offense TEXT NOT NULL, " +
+                            "fine_amount REAL NOT NULL, " +
+                            "penalty_points INTEGER NOT NULL, " +
+                            "issued_by INTEGER NOT NULL, " +
+                            "issue_date DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                            "FOREIGN KEY (issued_by) REFERENCES users (id))",
+                    "CREATE TABLE IF NOT EXISTS driver (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "pesel TEXT UNIQUE NOT NULL, " +
+                            "password TEXT NOT NULL)",
+                    "CREATE TABLE IF NOT EXISTS offenses (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "name TEXT UNIQUE NOT NULL, " +
+                            "penalty_points_min INTEGER NOT NULL, " +
+                            "penalty_points_max INTEGER NOT NULL, " +
+                            "fine_min INTEGER NOT NULL, " +
+                            "fine_max INTEGER NOT NULL, " +
+                            "is_recidivist BOOLEAN NOT NULL DEFAULT 0)"
+            },
+            // 2: indeksy dla listy mandatów kierowcy i mandatów wystawionych przez policjanta
+            new String[]{
+                    "CREATE INDEX IF NOT EXISTS tickets_pesel_issue_date ON tickets (pesel, issue_date)",
+                    "CREATE INDEX IF NOT EXISTS tickets_issued_by ON tickets (issued_by)"
+            },
+            // 3: suma ważnych punktów karnych kierowcy utrzymywana przez wyzwalacze w transakcji zapisu mandatu.
+            // Mandaty wystawione do chwili points_window.cutoff włącznie już się nie liczą, cutoff przesuwa DriverPoints.expire
+            new String[]{
+                    "CREATE TABLE IF NOT EXISTS driver_points (" +
+                            "pesel TEXT PRIMARY KEY, " +
+                            "points INTEGER NOT NULL)",
+                    "CREATE TABLE IF NOT EXISTS points_window (" +
+                            "id INTEGER PRIMARY KEY CHECK (id = 1), " +
+                            "cutoff DATETIME NOT NULL)",
+                    "INSERT INTO points_window (id, cutoff) VALUES (1, '')",
+                    "INSERT INTO driver_points (pesel, points) " +
+                            "SELECT pesel, SUM(penalty_points) FROM tickets WHERE issue_date > '' GROUP BY pesel",
+                    "CREATE INDEX IF NOT EXISTS tickets_issue_date ON tickets (issue_date)",
+                    pointsInsertTrigger,
+                    pointsDeleteTrigger
+            },
+            // 4: klucze idempotentności zapisów z aplikacji policjanta. Powtórzone żądanie z tym samym kluczem
+            // dostaje wynik pierwszego zapisu, także gdy klucz wypadł już z pamięci serwera
+            new String[]{
+                    "ALTER TABLE tickets ADD COLUMN idempotency_key TEXT",
+                    "CREATE UNIQUE INDEX IF NOT EXISTS tickets_idempotency_key ON tickets (idempotency_key)",
+                    "CREATE TABLE IF NOT EXISTS ticket_cancellations (" +
+                            "idempotency_key TEXT PRIMARY KEY, " +
+                            "ticket_id INTEGER NOT NULL, " +
+                            "success BOOLEAN NOT NULL)"
+            },
+            // 5: mandat wskazuje wykroczenie i policjanta przez ich id zamiast nazwy i numeru służbowego.
+            // SQLite nie usuwa kolumn z kluczem obcym, więc tabela tickets jest przepisywana do nowej.
+            // Nazwy wykroczeń spoza katalogu trafiają do offenses jako nieaktywne, aby kierowca nadal widział nazwę,
+            // a mandaty, których wystawcy nie ma w users, mają officer_id NULL
+            new String[]{
+                    "ALTER TABLE offenses ADD COLUMN active BOOLEAN NOT NULL DEFAULT 1",
+                    "INSERT INTO offenses (name, penalty_points_min, penalty_points_max, fine_min, fine_max, is_recidivist, active) " +
+                            "SELECT offense, MIN(penalty_points), MAX(penalty_points), CAST(MIN(fine_amount) AS INTEGER), " +
+                            "CAST(MAX(fine_amount) AS INTEGER), 0, 0 " +
+                            "FROM tickets WHERE offense NOT IN (SELECT name FROM offenses) GROUP BY offense",
+                    "CREATE TABLE tickets_new (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "driver_name TEXT NOT NULL, " +
+                            "pesel TEXT NOT NULL, " +
+                            "offense_id INTEGER NOT NULL, " +
+                            "fine_amount REAL NOT NULL, " +
+                            "penalty_points INTEGER NOT NULL, " +
+                            "officer_id INTEGER, " +
+                            "issue_date DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                            "idempotency_key TEXT, " +
+                            "FOREIGN KEY (offense_id) REFERENCES offenses (id), " +
+                            "FOREIGN KEY (officer_id) REFERENCES users (id))",
+                    "INSERT INTO tickets_new (id, driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id, issue_date, idempotency_key) " +
+                            "SELECT tickets.id, tickets.driver_name, tickets.pesel, offenses.id, tickets.fine_amount, tickets.penalty_points, " +
+                            "COALESCE((SELECT users.id FROM users WHERE users.service_number = tickets.issued_by), " +
+                            "(SELECT users.id FROM users WHERE users.id = tickets.issued_by)), " +
+                            "tickets.issue_date, tickets.idempotency_key " +
+                            "FROM tickets JOIN offenses ON offenses.name = tickets.offense",
+                    // Licznik id zostaje zachowany, aby id anulowanych mandatów nie zostały nadane ponownie
+                    "DELETE FROM sqlite_sequence WHERE name = 'tickets_new'",
+                    "INSERT INTO sqlite_sequence (name, seq) SELECT 'tickets_new', seq FROM sqlite_sequence WHERE name = 'tickets'",
+                    "DROP TABLE tickets",
+                    "ALTER TABLE tickets_new RENAME TO tickets",
+                    "CREATE INDEX tickets_pesel_issue_date ON tickets (pesel, issue_date)",
+                    "CREATE INDEX tickets_officer_id ON tickets (officer_id)",
+                    "CREATE INDEX tickets_issue_date ON tickets (issue_date)",
+                    "CREATE UNIQUE INDEX tickets_idempotency_key ON tickets (idempotency_key)",
+                    pointsInsertTrigger,
+                    pointsDeleteTrigger
+            },
+            // 6: dziennik zdarzeń mandatów tylko do dopisywania. Anulowanie nie usuwa już wiersza, tylko ustawia
+            // tickets.cancelled_at, a wyzwalacze dopisują zdarzenie w tej samej transakcji co zmiana w tickets.
+            // Anulowane mandaty są usuwane z tickets dopiero przez TicketEvents.compact, historia zostaje w ticket_events
+            new String[]{
+                    "CREATE TABLE IF NOT EXISTS ticket_events (" +
+                            "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "ticket_id INTEGER NOT NULL, " +
+                            "type TEXT NOT NULL CHECK (type IN ('issued', 'cancelled')), " +
+                            "occurred DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                            "driver_name TEXT, " +
+                            "pesel TEXT, " +
+                            "offense_id INTEGER, " +
+                            "fine_amount REAL, " +
+                            "penalty_points INTEGER, " +
+                            "officer_id INTEGER)",
+                    "CREATE INDEX IF NOT EXISTS ticket_events_ticket_id ON ticket_events (ticket_id)",
+                    "INSERT INTO ticket_events (ticket_id, type, occurred, driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id) " +
+                            "SELECT id, 'issued', issue_date, driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id " +
+                            "FROM tickets ORDER BY id",
+                    "CREATE TRIGGER IF NOT EXISTS ticket_events_no_update BEFORE UPDATE ON ticket_events BEGIN " +
+                            "SELECT RAISE(ABORT, 'ticket_events jest tylko do dopisywania'); " +
+                            "END",
+                    "CREATE TRIGGER IF NOT EXISTS ticket_events_no_delete BEFORE DELETE ON ticket_events BEGIN " +
+                            "SELECT RAISE(ABORT, 'ticket_events jest tylko do dopisywania'); " +
+                            "END",
+                    "ALTER TABLE tickets ADD COLUMN cancelled_at DATETIME",
+                    "CREATE TRIGGER IF NOT EXISTS tickets_event_issued AFTER INSERT ON tickets BEGIN " +
+                            "INSERT INTO ticket_events (ticket_id, type, occurred, driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id) " +
+                            "VALUES (NEW.id, 'issued', NEW.issue_date, NEW.driver_name, NEW.pesel, NEW.offense_id, NEW.fine_amount, NEW.penalty_points, NEW.officer_id); " +
+                            "END",
+                    "CREATE TRIGGER IF NOT EXISTS tickets_event_cancelled AFTER UPDATE OF cancelled_at ON tickets " +
+                            "WHEN OLD.cancelled_at IS NULL AND NEW.cancelled_at IS NOT NULL BEGIN " +
+                            "INSERT INTO ticket_events (ticket_id, type, occurred) VALUES (NEW.id, 'cancelled', NEW.cancelled_at); " +
+                            "END",
+                    // Punkty są odejmowane przy anulowaniu, a nie przy usunięciu wiersza przez kompaktowanie
+                    "DROP TRIGGER tickets_points_delete",
+                    "CREATE TRIGGER IF NOT EXISTS tickets_points_cancel AFTER UPDATE OF cancelled_at ON tickets " +
+                            "WHEN OLD.cancelled_at IS NULL AND NEW.cancelled_at IS NOT NULL " +
+                            "AND OLD.issue_date > (SELECT cutoff FROM points_window WHERE id = 1) BEGIN " +
+                            "UPDATE driver_points SET points = points - OLD.penalty_points WHERE pesel = OLD.pesel; " +
+                            "END",
+                    "CREATE INDEX IF NOT EXISTS tickets_cancelled_at ON tickets (cancelled_at) WHERE cancelled_at IS NOT NULL"
+            },
+            // 7: skrót treści żądania zapisany razem z kluczem idempotentności, aby ten sam klucz z inną treścią
+            // był odrzucany zamiast zwracać id innego mandatu. Starsze mandaty mają NULL i są traktowane jak zgodne
+            new String[]{
+                    "ALTER TABLE tickets ADD COLUMN request_hash TEXT"
+            },
+            // 8: wyzwalacze dziennika nie dopisują zdarzenia, które już w nim jest, aby TicketEvents.restore mógł
+            // odtworzyć wiersz tickets z jego zdarzeń bez dopisywania ich drugi raz
+            new String[]{
+                    "DROP TRIGGER tickets_event_issued",
+                    "CREATE TRIGGER IF NOT EXISTS tickets_event_issued AFTER INSERT ON tickets " +
+                            "WHEN NOT EXISTS (SELECT 1 FROM ticket_events WHERE ticket_id = NEW.id AND type = 'issued') BEGIN " +
+                            "INSERT INTO ticket_events (ticket_id, type, occurred, driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id) " +
+                            "VALUES (NEW.id, 'issued', NEW.issue_date, NEW.driver_name, NEW.pesel, NEW.offense_id, NEW.fine_amount, NEW.penalty_points, NEW.officer_id); " +
+                            "END",
+                    "DROP TRIGGER tickets_event_cancelled",
+                    "CREATE TRIGGER IF NOT EXISTS tickets_event_cancelled AFTER UPDATE OF cancelled_at ON tickets " +
+                            "WHEN OLD.cancelled_at IS NULL AND NEW.cancelled_at IS NOT NULL " +
+                            "AND NOT EXISTS (SELECT 1 FROM ticket_events WHERE ticket_id = NEW.id AND type = 'cancelled') BEGIN " +
+                            "INSERT INTO ticket_events (ticket_id, type, occurred) VALUES (NEW.id, 'cancelled', NEW.cancelled_at); " +
+                            "END"
+            }
+    );
+
+    /**
+     * Zapytanie wykonywane przy obsłudze żądań, którego plan jest sprawdzany przy starcie.
+     *
+     * @param name nazwa zapytania w logu
+     * @param sql treść zapytania
+     * @param scanExpected true jeśli zapytanie z założenia czyta całą tabelę
+     */
+    public record HotQuery(String name, String sql, boolean scanExpected) {
+    }
+
+    /**
+     * Wykonuje wszystkie migracje nowsze niż wersja zapisana w bazie, każdą w osobnej transakcji.
+     * Migracje korzystają z osobnego połączenia i powinny zostać wykonane przed otwarciem puli połączeń.
+     *
+     * @param url adres bazy danych JDBC
+     * @throws SQLException jeśli któraś migracja się nie powiedzie
+     */
+    public static void migrate(String url) throws SQLException {
+        try (Connection connection = ConnectionPool.openConnection(url);
+             Statement stmt = connection.createStatement()) {
+            int version = userVersion(stmt);
+            if (version > migrations.size()) {
+                throw new SQLException("Baza danych ma wersję " + version + ", nowszą niż znana serwerowi (" + migrations.size() + ")");
+            }
+            for (int i = version; i < migrations.size(); i++) {
+                connection.setAutoCommit(false);
+                for (String sql : migrations.get(i)) {
+                    stmt.execute(sql);
+                }
+                stmt.execute("PRAGMA user_version = " + (i + 1));
+                connection.commit();
+                connection.setAutoCommit(true);
+                Log.info("Wykonano migrację bazy danych", "version", i + 1);
+            }
+        }
+    }
+
+    /**
+     * Wypisuje plan (EXPLAIN QUERY PLAN) każdego z podanych zapytań i ostrzega,
+     * jeśli zapytanie, które powinno korzystać z indeksu, czyta całą tabelę.
+     *
+     * @param pool pula połączeń do bazy danych
+     * @param queries zapytania do sprawdzenia
+     * @throws SQLException jeśli któregoś zapytania nie da się przygotować
+     */
+    public static void explain(ConnectionPool pool, List<HotQuery> queries) throws SQLException {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire();
+             Statement stmt = pooled.getConnection().createStatement()) {
+            for (HotQuery query : queries) {
+                boolean scan = false;
+                StringBuilder plan = new StringBuilder();
+                try (ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN " + query.sql())) {
+                    while (rs.next()) {
+                        String detail = rs.getString("detail");
+                        plan.append(plan.isEmpty() ? "" : " | ").append(detail);
+                        if (detail.startsWith("SCAN ")) {
+                            scan = true;
+                        }
+                    }
+                }
+                Log.info("Plan zapytania", "query", query.name(), "plan", plan.toString());
+                if (scan && !query.scanExpected()) {
+                    Log.warn("Zapytanie czyta całą tabelę zamiast korzystać z indeksu", "query", query.name());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param stmt zapytanie na połączeniu z bazą
+     * @return numer ostatniej wykonanej migracji
+     */
+    private static int userVersion(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+}
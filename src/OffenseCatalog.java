@@ -0,0 +1,159 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Katalog wykroczeń trzymany w pamięci serwera.
+ * Odpowiedź dla /api/offences jest serializowana raz do tablicy bajtów razem z ETagiem
+ * wyliczonym ze skrótu jej treści, a z tych samych wierszy budowana jest tabela reguł do sprawdzania mandatów.
+ * Katalog zawiera tylko aktywne wykroczenia i jest wczytywany z bazy ponownie dopiero po
+ * jawnym wywołaniu {@link #invalidate()}.
+ */
+public class OffenseCatalog {
+
+    /**
+     * Zapytanie pobierające aktywne wykroczenia
+     */
+    static final String query = "SELECT * FROM offenses WHERE active = 1";
+
+    /**
+     * Gotowa odpowiedź z katalogiem wykroczeń.
+     *
+     * @param body treść odpowiedzi JSON w UTF-8
+     * @param etag ETag odpowiedzi razem z cudzysłowami
+     * @param rules reguły wykroczeń z tego samego katalogu
+     */
+    public record Snapshot(byte[] body, String etag, OffenseRules rules) {
+    }
+
+    /**
+     * Pula połączeń, z której wczytywany jest katalog
+     */
+    private final ConnectionPool pool;
+
+    /**
+     * Aktualna odpowiedź, null jeśli katalog trzeba wczytać ponownie
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Numer wersji katalogu zwiększany przy każdym unieważnieniu, chroniony monitorem katalogu
+     */
+    private long generation;
+
+    /**
+     * Blokada wczytywania, aby przy pustym katalogu bazę czytało tylko jedno żądanie. Wczytywanie nie trzyma
+     * monitora katalogu, więc {@link #invalidate()} nie czeka na zapytanie do bazy
+     */
+    private final Object loadLock = new Object();
+
+    /**
+     * Konstruktor katalogu wykroczeń.
+     *
+     * @param pool pula połączeń do bazy danych
+     */
+    public OffenseCatalog(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Zwraca gotową odpowiedź z katalogiem, wczytując go z bazy tylko wtedy, gdy nie ma go w pamięci.
+     *
+     * @return treść odpowiedzi i jej ETag
+     * @throws SQLException jeśli nie uda się wczytać katalogu z bazy danych
+     */
+    public Snapshot get() throws SQLException {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (loadLock) {
+            current = snapshot;
+            if (current != null) {
+                return current;
+            }
+            long loadedGeneration;
+            synchronized (this) {
+                loadedGeneration = generation;
+            }
+            Snapshot loaded = load();
+            synchronized (this) {
+                // Unieważnienie w trakcie wczytywania oznacza, że wczytane dane mogą być już nieaktualne,
+                // więc nie są zapamiętywane i następne żądanie wczyta katalog ponownie
+                if (loadedGeneration == generation) {
+                    snapshot = loaded;
+                }
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * Usuwa katalog z pamięci. Należy wywołać po każdej zmianie tabeli offenses,
+     * następne żądanie wczyta katalog z bazy.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            generation++;
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Wczytuje wykroczenia z bazy danych, serializuje je do odpowiedzi JSON i buduje z nich tabelę reguł.
+     *
+     * @return treść odpowiedzi, jej ETag i reguły
+     * @throws SQLException jeśli nie uda się wczytać katalogu z bazy danych
+     */
+    private Snapshot load() throws SQLException {
+        JSONObject responseJson = new JSONObject();
+        JSONArray offencesArray = new JSONArray();
+        List<OffenseRules.Rule> rules = new ArrayList<>();
+
+        try (ConnectionPool.PooledConnection connection = pool.acquire();
+             ResultSet rs = connection.prepare(query).executeQuery()) {
+            while (rs.next()) {
+                JSONObject offences = new JSONObject();
+                offences.put("id", rs.getInt("id"));
+                offences.put("name", rs.getString("name"));
+                offences.put("penalty_points_min", rs.getInt("penalty_points_min"));
+                offences.put("penalty_points_max", rs.getInt("penalty_points_max"));
+                offences.put("fine_min", rs.getInt("fine_min"));
+                offences.put("fine_max", rs.getInt("fine_max"));
+                offences.put("is_recidivist", rs.getBoolean("is_recidivist"));
+
+                offencesArray.put(offences);
+                rules.add(new OffenseRules.Rule(rs.getInt("id"), rs.getString("name"),
+                        rs.getInt("penalty_points_min"), rs.getInt("penalty_points_max"),
+                        rs.getInt("fine_min"), rs.getInt("fine_max"), rs.getBoolean("is_recidivist")));
+            }
+        }
+        responseJson.put("offences", offencesArray);
+
+        byte[] body = responseJson.toString().getBytes(StandardCharsets.UTF_8);
+        return new Snapshot(body, etag(body), new OffenseRules(rules));
+    }
+
+    /**
+     * Wylicza ETag jako skrót SHA-256 treści odpowiedzi.
+     *
+     * @param body treść odpowiedzi
+     * @return ETag w cudzysłowach
+     */
+    static String etag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Brak algorytmu SHA-256", e);
+        }
+    }
+}
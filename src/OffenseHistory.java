@@ -0,0 +1,200 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ostatnie wykroczenia kierowców trzymane w pamięci serwera, do sprawdzania recydywy bez zapytania do bazy.
+ * Dla każdego peselu pamiętana jest niewielka tablica mandatów z okresu recydywy: id mandatu, id wykroczenia
+ * i chwila wystawienia. Indeks jest wczytywany z bazy przy starcie serwera, a potem zmieniany przez handlery
+ * po zatwierdzeniu zapisu lub anulowania mandatu. Tablica kierowcy jest podmieniana w całości, więc odczyt nie wymaga blokad.
+ * Mandaty starsze niż okres recydywy są usuwane przy zmianie tablicy kierowcy oraz przy przeglądaniu całej mapy,
+ * które odbywa się średnio co kilka tysięcy zapisów.
+ */
+public class OffenseHistory {
+
+    /**
+     * Zapytanie o mandaty z okresu recydywy, wczytywane przy starcie serwera
+     */
+    static final String loadQuery =
+            "SELECT id, pesel, offense_id, CAST(strftime('%s', issue_date) AS INTEGER) AS issued FROM tickets " +
+                    "WHERE issue_date > datetime('now', ?) AND cancelled_at IS NULL";
+
+    /**
+     * Średnia liczba zapisów, co którą mapa jest przeglądana w poszukiwaniu wygasłych mandatów
+     */
+    private final static int sweep_interval = 4096;
+
+    /**
+     * Mandat w indeksie.
+     *
+     * @param ticketId id mandatu
+     * @param offenseId id wykroczenia
+     * @param issued chwila wystawienia w sekundach od początku epoki
+     */
+    public record Entry(int ticketId, int offenseId, long issued) {
+    }
+
+    private static final Entry[] empty = new Entry[0];
+
+    private final Map<String, Entry[]> byPesel = new ConcurrentHashMap<>();
+
+    /**
+     * Okres recydywy w dniach
+     */
+    private final int windowDays;
+
+    /**
+     * Okres recydywy w sekundach
+     */
+    private final long windowSeconds;
+
+    /**
+     * @param windowDays okres recydywy w dniach, liczony od wystawienia poprzedniego mandatu
+     */
+    public OffenseHistory(int windowDays) {
+        this.windowDays = windowDays;
+        this.windowSeconds = TimeUnit.DAYS.toSeconds(windowDays);
+    }
+
+    /**
+     * Wczytuje z bazy mandaty z okresu recydywy. Wywoływana przy starcie serwera, przed obsługą pierwszego żądania.
+     *
+     * @param connection połączenie z puli
+     * @return liczba wczytanych mandatów
+     * @throws SQLException jeśli zapytanie się nie powiedzie
+     */
+    public int load(ConnectionPool.PooledConnection connection) throws SQLException {
+        int loaded = 0;
+        long cutoff = Instant.now().getEpochSecond() - windowSeconds;
+        PreparedStatement stmt = connection.prepare(loadQuery);
+        stmt.setString(1, "-" + windowDays + " days");
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                insert(rs.getString("pesel"), new Entry(rs.getInt("id"), rs.getInt("offense_id"), rs.getLong("issued")), cutoff);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Dodaje zatwierdzony mandat do indeksu. Mandat, który już jest w indeksie, nie jest dodawany ponownie.
+     *
+     * @param pesel pesel kierowcy
+     * @param ticketId id mandatu
+     * @param offenseId id wykroczenia
+     * @param issued chwila wystawienia w sekundach od początku epoki
+     */
+    public void add(String pesel, int ticketId, int offenseId, long issued) {
+        long cutoff = Instant.now().getEpochSecond() - windowSeconds;
+        if (ThreadLocalRandom.current().nextInt(sweep_interval) == 0) {
+            sweep(cutoff);
+        }
+        insert(pesel, new Entry(ticketId, offenseId, issued), cutoff);
+    }
+
+    /**
+     * Dodaje mandat do tablicy kierowcy, przy okazji usuwając z niej mandaty wystawione do chwili cutoff.
+     */
+    private void insert(String pesel, Entry added, long cutoff) {
+        if (added.issued() <= cutoff) {
+            return;
+        }
+        byPesel.compute(pesel, (key, entries) -> {
+            Entry[] current = entries == null ? empty : entries;
+            for (Entry entry : current) {
+                if (entry.ticketId() == added.ticketId()) {
+                    return current;
+                }
+            }
+            Entry[] kept = retain(current, cutoff, -1);
+            Entry[] result = Arrays.copyOf(kept, kept.length + 1);
+            result[kept.length] = added;
+            return result;
+        });
+    }
+
+    /**
+     * Usuwa anulowany mandat z indeksu.
+     *
+     * @param pesel pesel kierowcy
+     * @param ticketId id anulowanego mandatu
+     */
+    public void remove(String pesel, int ticketId) {
+        long cutoff = Instant.now().getEpochSecond() - windowSeconds;
+        byPesel.computeIfPresent(pesel, (key, entries) -> {
+            Entry[] kept = retain(entries, cutoff, ticketId);
+            return kept.length == 0 ? null : kept;
+        });
+    }
+
+    /**
+     * Zwraca ostatni mandat kierowcy za to samo wykroczenie z okresu recydywy.
+     *
+     * @param pesel pesel kierowcy
+     * @param offenseId id wykroczenia
+     * @return ostatni mandat albo null, jeśli kierowca nie jest recydywistą dla tego wykroczenia
+     */
+    public Entry lastOffense(String pesel, int offenseId) {
+        Entry[] entries = byPesel.get(pesel);
+        if (entries == null) {
+            return null;
+        }
+        long cutoff = Instant.now().getEpochSecond() - windowSeconds;
+        Entry last = null;
+        for (Entry entry : entries) {
+            if (entry.offenseId() == offenseId && entry.issued() > cutoff && (last == null || entry.issued() > last.issued())) {
+                last = entry;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return liczba kierowców w indeksie
+     */
+    public int size() {
+        return byPesel.size();
+    }
+
+    /**
+     * @return tablica bez mandatów wystawionych do chwili cutoff i bez mandatu o id removedTicketId
+     */
+    private static Entry[] retain(Entry[] entries, long cutoff, int removedTicketId) {
+        int kept = 0;
+        for (Entry entry : entries) {
+            if (entry.issued() > cutoff && entry.ticketId() != removedTicketId) {
+                kept++;
+            }
+        }
+        if (kept == entries.length) {
+            return entries;
+        }
+        Entry[] result = new Entry[kept];
+        int i = 0;
+        for (Entry entry : entries) {
+            if (entry.issued() > cutoff && entry.ticketId() != removedTicketId) {
+                result[i++] = entry;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Usuwa wygasłe mandaty wszystkich kierowców i kierowców bez mandatów z okresu recydywy.
+     */
+    private void sweep(long cutoff) {
+        for (String pesel : byPesel.keySet()) {
+            byPesel.computeIfPresent(pesel, (key, entries) -> {
+                Entry[] kept = retain(entries, cutoff, -1);
+                return kept.length == 0 ? null : kept;
+            });
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Widełki kwot i punktów karnych aktywnych wykroczeń, według których serwer sprawdza każdy mandat.
+ * Reguły są trzymane w tablicy indeksowanej id wykroczenia, więc sprawdzenie mandatu to jeden odczyt
+ * z tablicy, bez zapytania do bazy danych. Gdy id są rzadkie, np. po ręcznym dopisaniu wykroczenia z dużym id,
+ * reguły trafiają do mapy, aby tablica nie rosła do największego id. Tabela jest budowana razem z katalogiem wykroczeń
+ * i podmieniana przy jego unieważnieniu.
+ */
+public class OffenseRules {
+
+    /**
+     * Reguła jednego wykroczenia.
+     *
+     * @param id id wykroczenia w tabeli offenses
+     * @param name nazwa wykroczenia
+     * @param penaltyPointsMin minimalna liczba punktów karnych
+     * @param penaltyPointsMax maksymalna liczba punktów karnych
+     * @param fineMin minimalna kwota mandatu
+     * @param fineMax maksymalna kwota mandatu
+     * @param recidivist czy wykroczenie podlega recydywie, czyli podwojeniu kwoty mandatu
+     */
+    public record Rule(int id, String name, int penaltyPointsMin, int penaltyPointsMax, int fineMin, int fineMax, boolean recidivist) {
+
+        /**
+         * @param fine kwota mandatu
+         * @param repeat czy kierowca popełnił to wykroczenie ponownie w okresie recydywy
+         * @return true jeśli kwota mieści się w widełkach, a dla recydywisty, gdy wykroczenie podlega recydywie, także w podwojonych widełkach
+         */
+        public boolean allowsFine(int fine, boolean repeat) {
+            if (fine >= fineMin && fine <= fineMax) {
+                return true;
+            }
+            return repeat && recidivist && fine >= 2 * fineMin && fine <= 2 * fineMax;
+        }
+
+        /**
+         * @param penaltyPoints liczba punktów karnych
+         * @return true jeśli liczba punktów mieści się w widełkach
+         */
+        public boolean allowsPenaltyPoints(int penaltyPoints) {
+            return penaltyPoints >= penaltyPointsMin && penaltyPoints <= penaltyPointsMax;
+        }
+    }
+
+    /**
+     * Największe id, do którego tablica reguł jest zawsze dopuszczalna, niezależnie od liczby wykroczeń
+     */
+    private final static int dense_min_ids = 1024;
+
+    /**
+     * Dopuszczalna liczba pozycji tablicy na jedno wykroczenie powyżej dense_min_ids
+     */
+    private final static int dense_factor = 4;
+
+    /**
+     * Reguły według id wykroczenia, null dla id bez aktywnego wykroczenia, albo null, jeśli id są rzadkie
+     */
+    private final Rule[] byId;
+
+    /**
+     * Reguły według id wykroczenia, gdy id są zbyt rzadkie na tablicę, albo null
+     */
+    private final Map<Integer, Rule> sparseById;
+
+    /**
+     * Reguły według nazwy, dla klientów przesyłających nazwę wykroczenia zamiast id
+     */
+    private final Map<String, Rule> byName = new HashMap<>();
+
+    /**
+     * @param rules reguły aktywnych wykroczeń
+     */
+    public OffenseRules(List<Rule> rules) {
+        int maxId = 0;
+        int minId = 1;
+        for (Rule rule : rules) {
+            maxId = Math.max(maxId, rule.id());
+            minId = Math.min(minId, rule.id());
+        }
+        if (minId > 0 && (maxId < dense_min_ids || maxId / dense_factor <= rules.size())) {
+            this.byId = new Rule[maxId + 1];
+            this.sparseById = null;
+        } else {
+            this.byId = null;
+            this.sparseById = new HashMap<>();
+        }
+        for (Rule rule : rules) {
+            if (byId != null) {
+                byId[rule.id()] = rule;
+            } else {
+                sparseById.put(rule.id(), rule);
+            }
+            byName.put(rule.name(), rule);
+        }
+    }
+
+    /**
+     * @param id id wykroczenia
+     * @return reguła wykroczenia albo null, jeśli nie ma aktywnego wykroczenia o tym id
+     */
+    public Rule get(int id) {
+        if (byId == null) {
+            return sparseById.get(id);
+        }
+        return id > 0 && id < byId.length ? byId[id] : null;
+    }
+
+    /**
+     * @param name nazwa wykroczenia
+     * @return reguła wykroczenia albo null, jeśli nie ma aktywnego wykroczenia o tej nazwie
+     */
+    public Rule get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return liczba aktywnych wykroczeń
+     */
+    public int size() {
+        return byName.size();
+    }
+}
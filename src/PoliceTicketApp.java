@@ -1,16 +1,35 @@
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
 import java.io.*;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import org.json.*;
 
@@ -30,15 +49,87 @@ public class PoliceTicketApp extends Application {
      */
     private String serviceNumber;
 
+    /**
+     * Lista żądań do serwera w toku, każde z postępem i przyciskiem przerwania.
+     * Jest przenoszona do każdego kolejnego widoku, więc żądania nie giną przy zmianie widoku.
+     */
+    private final VBox pendingCalls = new VBox(4);
+
+    /**
+     * Lokalny dziennik mandatów wysyłanych w tle, null jeśli nie udało się go otworzyć
+     */
+    private TicketJournal journal;
+
+    /**
+     * Stan wysyłania mandatów z dziennika oraz ostatni wysłany mandat, widoczne w widokach po zalogowaniu
+     */
+    private final Label syncStatus = new Label();
+    private final Label lastSent = new Label();
+    private final VBox syncPanel = new VBox(2, syncStatus, lastSent);
+
+    /**
+     * Lista wykroczeń w formularzu mandatu, odświeżana po pobraniu nowego katalogu
+     */
+    private ComboBox<String> offenseChoice;
+
     /**
      * Zmienna zawierająca adres url serwera
      */
     private static final String SERVER_URL = "http://localhost:8080/api";
 
+    /**
+     * Maksymalny czas nawiązywania połączenia z serwerem
+     */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * Maksymalny czas oczekiwania na odpowiedź serwera
+     */
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(15);
+
+    /**
+     * Maksymalna liczba ponowień żądania, które można bezpiecznie powtórzyć
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * Plik lokalnego dziennika mandatów czekających na wysłanie
+     */
+    private static final Path JOURNAL_PATH = Path.of(System.getProperty("mandaty.journal",
+            System.getProperty("user.home") + File.separator + ".mandaty" + File.separator + "mandaty.journal"));
+
+    /**
+     * Plik z ostatnio pobranym katalogiem wykroczeń i jego ETagiem
+     */
+    private static final Path OFFENSES_PATH = Path.of(System.getProperty("mandaty.offences",
+            System.getProperty("user.home") + File.separator + ".mandaty" + File.separator + "offences.json"));
+
+    /**
+     * Token sesji zalogowanego policjanta wysyłany w nagłówku Authorization, null przed zalogowaniem
+     */
+    private static volatile String officerToken;
+
+    /**
+     * Wspólny klient http dla wszystkich żądań aplikacji. Utrzymuje otwarte połączenia z serwerem,
+     * więc kolejne żądania nie płacą za nawiązanie nowego połączenia TCP.
+     */
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+
+    /**
+     * Wątki wykonujące żądania do serwera poza wątkiem JavaFX, aby interfejs nie zamarzał w czasie oczekiwania na sieć
+     */
+    private static final ExecutorService BACKGROUND = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("server-call-", 0).factory());
+
     /**
      * klasa reprezentująca wykroczenia ich widełki ilościowe punktów karnych, widełki cenowe oraz czy podlegają recydywie.
      */
     private static class Offense {
+        private final int id;
         private final int penaltyPointsMin;
         private final int penaltyPointsMax;
         private final int fineMin;
@@ -48,13 +139,15 @@ public class PoliceTicketApp extends Application {
         /**
          * Konstruktor klasy wykroczeń.
          *
+         * @param id id wykroczenia na serwerze.
          * @param penaltyPointsMin minimalna ilość punktów karnych dla danego wykroczenia.
          * @param penaltyPointsMax maksymalna ilość punktów karnych dla danego wykroczenia.
          * @param fineMin minimalna wysokość mandatu,
          * @param fineMax maksymalna wysokość mandatu,
          * @param recidivist czy kierowca jest recydywistą,
          */
-        public Offense(int penaltyPointsMin, int penaltyPointsMax, int fineMin, int fineMax, boolean recidivist) {
+        public Offense(int id, int penaltyPointsMin, int penaltyPointsMax, int fineMin, int fineMax, boolean recidivist) {
+            this.id = id;
             this.penaltyPointsMin = penaltyPointsMin;
             this.penaltyPointsMax = penaltyPointsMax;
             this.fineMin = fineMin;
@@ -62,6 +155,13 @@ public class PoliceTicketApp extends Application {
             this.recidivist = recidivist;
         }
 
+        /**
+         * @return zwraca id wykroczenia na serwerze.
+         */
+        public int getId() {
+            return id;
+        }
+
         /**
          * @return zwraca minimalną wysokość mandatu.
          */
@@ -99,63 +199,237 @@ public class PoliceTicketApp extends Application {
     }
 
     /**
-     * Mapa wykroczeń, ich ilości punktów karnych, widełek cenowych oraz
+     * Mapa wykroczeń, ich ilości punktów karnych, widełek cenowych oraz recydywy.
+     * Po pobraniu nowego katalogu mapa jest podmieniana w całości, więc nie zostają w niej wykroczenia usunięte z serwera.
      */
-    static HashMap<String,Offense> offenses = new HashMap<>();
+    static volatile Map<String,Offense> offenses = new HashMap<>();
 
     /**
-     * Pobiera od serwera dane wykroczeń po czym dodaje do mapy offenses - możliwe wykroczenia,
-     * ich klamerki punktów karnych oraz klamerki wysokości mandatu.
+     * ETag katalogu wykroczeń w mapie offenses, przesyłany w If-None-Match przy odświeżaniu
      */
-    public static void addOffenses() {
-        try {
-            URL url = new URL(SERVER_URL + "/offences");
-
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Accept", "application/json");
-
-            int status = connection.getResponseCode();
-
-            if (status != HttpURLConnection.HTTP_OK) {
-                System.out.println("Błąd połączenia z serwerem. Kod odpowiedzi: " + status);
-                return;
-            }
+    private static volatile String offensesEtag;
 
-            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            StringBuilder responseBuilder = new StringBuilder();
-            String line;
-            while ((line = in.readLine()) != null) {
-                responseBuilder.append(line);
-            }
+    /**
+     * Wczytuje katalog wykroczeń zapisany na dysku przy poprzednim pobraniu, aby formularz mandatu
+     * był gotowy od razu po uruchomieniu aplikacji, bez czekania na serwer.
+     *
+     * @return true jeśli katalog został wczytany z pliku
+     */
+    static boolean loadOffenses() {
+        if (!Files.exists(OFFENSES_PATH)) {
+            return false;
+        }
+        try {
+            JSONObject saved = new JSONObject(Files.readString(OFFENSES_PATH, StandardCharsets.UTF_8));
+            offenses = parseOffenses(saved.getJSONObject("catalog"));
+            offensesEtag = saved.optString("etag", null);
+            return true;
+        } catch (IOException | JSONException e) {
+            // Uszkodzony plik zostanie nadpisany przy najbliższym pobraniu katalogu
+            System.out.println("Nie udało się wczytać zapisanego katalogu wykroczeń: " + e.getMessage());
+            return false;
+        }
+    }
 
-            in.close();
+    /**
+     * Pobiera od serwera katalog wykroczeń, jeśli zmienił się od ostatniego pobrania. Serwer porównuje ETag
+     * z nagłówka If-None-Match i przy aktualnym katalogu odpowiada kodem 304 bez treści.
+     * Nowy katalog zastępuje mapę offenses i jest zapisywany na dysku razem ze swoim ETagiem.
+     *
+     * @return true jeśli pobrano nowy katalog, false jeśli katalog w pamięci jest aktualny
+     * @throws IOException jeśli nie uda się połączyć z serwerem lub serwer odpowie błędem
+     */
+    public static boolean refreshOffenses() throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(SERVER_URL + "/offences"))
+                .header("Accept", "application/json")
+                .GET();
+        String etag = offensesEtag;
+        if (etag != null && !offenses.isEmpty()) {
+            builder.header("If-None-Match", etag);
+        }
+        HttpResponse<String> response = send(builder.build(), true);
+        int status = response.statusCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return false;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Serwer odpowiedział kodem " + status);
+        }
 
-            JSONObject jsonResponse = new JSONObject(responseBuilder.toString());
+        JSONObject catalog;
+        try {
+            catalog = new JSONObject(response.body());
+            offenses = parseOffenses(catalog);
+        } catch (JSONException e) {
+            throw new IOException("Niepoprawny katalog wykroczeń", e);
+        }
+        offensesEtag = response.headers().firstValue("ETag").orElse(null);
+        try {
+            saveOffenses(catalog, offensesEtag);
+        } catch (IOException e) {
+            // Katalog w pamięci jest aktualny, przy następnym uruchomieniu zostanie pobrany ponownie
+            System.out.println("Nie udało się zapisać katalogu wykroczeń: " + e.getMessage());
+        }
+        return true;
+    }
 
-            // Sprawdzamy, czy odpowiedź zawiera tablicę wykroczeń
-            if (jsonResponse.has("offences")) {
-                JSONArray offensesArray = jsonResponse.getJSONArray("offences");
+    /**
+     * Tworzy mapę wykroczeń z odpowiedzi /api/offences - możliwe wykroczenia,
+     * ich klamerki punktów karnych oraz klamerki wysokości mandatu.
+     *
+     * @param catalog odpowiedź serwera z tablicą offences
+     * @return mapa wykroczeń według nazwy
+     */
+    private static Map<String,Offense> parseOffenses(JSONObject catalog) {
+        Map<String,Offense> parsed = new HashMap<>();
+        JSONArray offensesArray = catalog.optJSONArray("offences");
+        if (offensesArray == null) {
+            return parsed;
+        }
+        for (int i = 0; i < offensesArray.length(); i++) {
+            JSONObject offenseObject = offensesArray.getJSONObject(i);
+
+            String name = offenseObject.getString("name");
+            int id = offenseObject.getInt("id");
+            int penaltyPointsMin = offenseObject.getInt("penalty_points_min");
+            int penaltyPointsMax = offenseObject.getInt("penalty_points_max");
+            int fineMin = offenseObject.getInt("fine_min");
+            int fineMax = offenseObject.getInt("fine_max");
+            boolean isRecidivist = offenseObject.getBoolean("is_recidivist");
+
+            parsed.put(name, new Offense(id, penaltyPointsMin, penaltyPointsMax, fineMin, fineMax, isRecidivist));
+        }
+        return parsed;
+    }
 
-                for (int i = 0; i < offensesArray.length(); i++) {
-                    JSONObject offenseObject = offensesArray.getJSONObject(i);
+    /**
+     * Zapisuje katalog wykroczeń na dysk. Nowy plik zastępuje stary dopiero po zapisaniu go w całości,
+     * więc przerwanie w trakcie nie zostawia uszkodzonego katalogu.
+     *
+     * @param catalog odpowiedź serwera z tablicą offences
+     * @param etag ETag katalogu lub null
+     * @throws IOException jeśli nie uda się zapisać pliku
+     */
+    private static void saveOffenses(JSONObject catalog, String etag) throws IOException {
+        JSONObject saved = new JSONObject().put("catalog", catalog);
+        if (etag != null) {
+            saved.put("etag", etag);
+        }
+        Files.createDirectories(OFFENSES_PATH.toAbsolutePath().getParent());
+        Path temporary = OFFENSES_PATH.resolveSibling(OFFENSES_PATH.getFileName() + ".tmp");
+        Files.writeString(temporary, saved.toString(), StandardCharsets.UTF_8);
+        Files.move(temporary, OFFENSES_PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
-                    String name = offenseObject.getString("name");
-                    int penaltyPointsMin = offenseObject.getInt("penalty_points_min");
-                    int penaltyPointsMax = offenseObject.getInt("penalty_points_max");
-                    int fineMin = offenseObject.getInt("fine_min");
-                    int fineMax = offenseObject.getInt("fine_max");
-                    boolean isRecidivist = offenseObject.getBoolean("is_recidivist");
+    /**
+     * Tworzy żądanie POST z treścią JSON do podanego adresu api serwera.
+     *
+     * @param path ścieżka za adresem api, np. "/login"
+     * @param json treść żądania
+     * @return żądanie do wysłania przez {@link #send(HttpRequest, boolean)}
+     */
+    private static HttpRequest postJson(String path, JSONObject json) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(SERVER_URL + path))
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json.toString(), StandardCharsets.UTF_8));
+        String token = officerToken;
+        if (token != null) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder.build();
+    }
 
-                    Offense offense = new Offense(penaltyPointsMin, penaltyPointsMax, fineMin, fineMax, isRecidivist);
-                    offenses.put(name, offense);
+    /**
+     * Wysyła żądanie przez wspólnego klienta http i zwraca odpowiedź.
+     * Żądanie jest ponawiane z rosnącym odstępem tylko wtedy, gdy powtórzenie nie może zmienić stanu serwera:
+     * gdy nie udało się nawiązać połączenia, gdy serwer odrzucił żądanie kodem 503 przed jego obsługą
+     * albo, dla żądań bezpiecznych do powtórzenia, przy każdym błędzie sieci. Bezpieczne są żądania tylko
+     * odczytujące dane i zapisy z kluczem idempotentności, dla których serwer zwraca wynik pierwszego zapisu.
+     *
+     * @param request żądanie do wysłania
+     * @param retrySafe true jeśli żądanie może być powtórzone po każdym błędzie
+     * @return odpowiedź serwera
+     * @throws IOException jeśli żądanie nie powiodło się po wszystkich próbach
+     */
+    private static HttpResponse<String> send(HttpRequest request, boolean retrySafe) throws IOException {
+        HttpRequest timed = HttpRequest.newBuilder(request, (name, value) -> true).timeout(REQUEST_TIMEOUT).build();
+        long backoffMillis = 200;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                HttpResponse<String> response = HTTP_CLIENT.send(timed, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+                if (response.statusCode() != 503 || attempt == MAX_RETRIES) {
+                    return response;
+                }
+                // Serwer przeciążony, czekamy tyle ile podał w Retry-After, ale nie dłużej niż 5 s
+                OptionalLong retryAfter = response.headers().firstValueAsLong("Retry-After");
+                if (retryAfter.isPresent()) {
+                    backoffMillis = Math.min(retryAfter.getAsLong(), 5) * 1000;
+                }
+            } catch (ConnectException | HttpConnectTimeoutException e) {
+                if (attempt == MAX_RETRIES) {
+                    throw e;
                 }
+            } catch (IOException e) {
+                // Żądanie mogło dotrzeć do serwera, więc zapis bez klucza idempotentności nie jest powtarzany
+                if (!retrySafe || attempt == MAX_RETRIES) {
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Przerwano oczekiwanie na odpowiedź serwera");
             }
-        } catch (IOException e) {
-            System.out.println("Błąd połączenia z serwerem: " + e.getMessage());
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Przerwano oczekiwanie na ponowienie żądania");
+            }
+            backoffMillis *= 2;
         }
     }
 
+    /**
+     * Wykonuje żądanie do serwera w tle. W czasie jego trwania na liście żądań w toku widać opis,
+     * wskaźnik postępu i przycisk przerwania. Wynik lub błąd jest przekazywany z powrotem do wątku JavaFX.
+     *
+     * @param description opis żądania widoczny na liście żądań w toku
+     * @param work żądanie wykonywane w tle, nie może dotykać kontrolek
+     * @param onSuccess obsługa wyniku w wątku JavaFX
+     * @param onFailure obsługa błędu w wątku JavaFX, przy przerwaniu dostaje CancellationException
+     * @param <T> typ wyniku
+     */
+    private <T> void runInBackground(String description, Callable<T> work, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        Task<T> task = new Task<>() {
+            @Override
+            protected T call() throws Exception {
+                return work.call();
+            }
+        };
+
+        ProgressIndicator progress = new ProgressIndicator();
+        progress.setPrefSize(16, 16);
+        Button abortButton = new Button("Przerwij");
+        // Przerwanie wątku przerywa też oczekiwanie na odpowiedź serwera
+        abortButton.setOnAction(e -> task.cancel(true));
+        HBox row = new HBox(8, progress, new Label(description), abortButton);
+        row.setAlignment(Pos.CENTER_LEFT);
+        pendingCalls.getChildren().add(row);
+
+        task.setOnSucceeded(e -> {
+            pendingCalls.getChildren().remove(row);
+            onSuccess.accept(task.getValue());
+        });
+        task.setOnFailed(e -> {
+            pendingCalls.getChildren().remove(row);
+            onFailure.accept(task.getException());
+        });
+        task.setOnCancelled(e -> {
+            pendingCalls.getChildren().remove(row);
+            onFailure.accept(new CancellationException());
+        });
+        BACKGROUND.execute(task);
+    }
 
     /**
      * Metoda główna aplikacji, która uruchamia aplikację JavaFX.
@@ -175,7 +449,63 @@ public class PoliceTicketApp extends Application {
         this.mainStage = primaryStage;
         primaryStage.setTitle("Aplikacja Policjanta");
 
+        openJournal();
+        loadOffenses();
         loginScene();
+        updateOffenses();
+    }
+
+    /**
+     * Odświeża w tle katalog wykroczeń. Jeśli serwer zwróci nowy katalog, lista wykroczeń w otwartym
+     * formularzu mandatu jest uzupełniana bez zmiany wybranego wykroczenia.
+     * Błąd połączenia nie przeszkadza w pracy, formularz korzysta wtedy z katalogu zapisanego na dysku.
+     */
+    private void updateOffenses() {
+        runInBackground("Odświeżanie katalogu wykroczeń", PoliceTicketApp::refreshOffenses, changed -> {
+            if (changed && offenseChoice != null) {
+                String selected = offenseChoice.getValue();
+                offenseChoice.getItems().setAll(offenses.keySet());
+                offenseChoice.setValue(offenses.containsKey(selected) ? selected : null);
+            }
+        }, error -> {
+            if (!(error instanceof CancellationException)) {
+                System.out.println("Nie udało się odświeżyć katalogu wykroczeń: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Otwiera lokalny dziennik mandatów i uruchamia wysyłanie w tle mandatów, które w nim czekają,
+     * także tych wystawionych przed ponownym uruchomieniem aplikacji.
+     * Stan wysyłania jest przekazywany do wątku JavaFX i pokazywany pod formularzem.
+     */
+    private void openJournal() {
+        syncStatus.setWrapText(true);
+        lastSent.setWrapText(true);
+        try {
+            journal = new TicketJournal(JOURNAL_PATH, PoliceTicketApp::sendTickets, new TicketJournal.Listener() {
+                @Override
+                public void stateChanged(int pending, String message) {
+                    Platform.runLater(() -> syncStatus.setText("Do wysłania: " + pending + ". " + message));
+                }
+
+                @Override
+                public void sent(JSONObject ticket, int ticketId) {
+                    Platform.runLater(() -> lastSent.setText("Wysłano mandat dla: " + ticket.optString("driver") + ", ID: " + ticketId));
+                }
+
+                @Override
+                public void rejected(JSONObject ticket, String error) {
+                    Platform.runLater(() -> showAlert("Mandat odrzucony", "Serwer odrzucił mandat dla: " + ticket.optString("driver")
+                            + " (PESEL " + ticket.optString("pesel") + "): " + error));
+                }
+            });
+            syncStatus.setText("Do wysłania: " + journal.getPending() + ".");
+        } catch (IOException e) {
+            // Bez dziennika mandaty są wysyłane bezpośrednio na serwer
+            System.out.println("Nie udało się otworzyć dziennika mandatów: " + e.getMessage());
+            syncStatus.setText("Dziennik mandatów niedostępny, mandaty są wysyłane bezpośrednio.");
+        }
     }
 
     /**
@@ -211,6 +541,7 @@ public class PoliceTicketApp extends Application {
         loginGrid.add(passwordLabel, 0, 1);
         loginGrid.add(passwordInput, 1, 1);
         loginGrid.add(loginButton, 1, 2);
+        loginGrid.add(pendingCalls, 0, 3, 2, 1);
         GridPane.setHalignment(loginButton, HPos.RIGHT);
 
         loginButton.setOnAction(e -> {
@@ -222,17 +553,32 @@ public class PoliceTicketApp extends Application {
                 showAlert("Błąd logowania", "Pola nie mogą być puste.");
             }
             else {
-                if (authenticate(serviceNumber, password)) {
-                    addOffenses();
-                    ticketScene();
-                } else {
-                    showAlert("Błąd logowania", "Nieprawidłowy numer służbowy lub hasło.");
-                }
+                // Logowanie odbywa się w tle, przycisk jest zablokowany do czasu odpowiedzi.
+                // Katalog wykroczeń jest już wczytany z dysku i odświeżany osobno, więc logowanie na niego nie czeka
+                loginButton.setDisable(true);
+                String login = serviceNumber;
+                runInBackground("Logowanie...", () -> authenticate(login, password), authenticated -> {
+                    loginButton.setDisable(false);
+                    if (authenticated) {
+                        ticketScene();
+                        if (offenses.isEmpty()) {
+                            // Pierwsze uruchomienie bez połączenia z serwerem, katalogu nie ma jeszcze na dysku
+                            updateOffenses();
+                        }
+                    } else {
+                        showAlert("Błąd logowania", "Nieprawidłowy numer służbowy lub hasło.");
+                    }
+                }, error -> {
+                    loginButton.setDisable(false);
+                    if (!(error instanceof CancellationException)) {
+                        showAlert("Błąd logowania", "Błąd komunikacji z serwerem: " + error.getMessage());
+                    }
+                });
             }
         });
 
         //v - szerokość | v1 - wysokość
-        Scene loginScene = new Scene(loginGrid, 280, 130);
+        Scene loginScene = new Scene(loginGrid, 280, 170);
         mainStage.setScene(loginScene);
         mainStage.show();
     }
@@ -271,6 +617,7 @@ public class PoliceTicketApp extends Application {
         Label offenseLabel = new Label("Wykroczenie:");
         ComboBox<String> offenseInput = new ComboBox<>();
         offenseInput.getItems().addAll(offenses.keySet());
+        offenseChoice = offenseInput;
 
         Label fineLabel = new Label("Kwota mandatu:");
         TextField fineInput = new TextField();
@@ -288,6 +635,27 @@ public class PoliceTicketApp extends Application {
         isRecidivistInput.getItems().add("Tak");
         isRecidivistInput.getItems().add("Nie");
 
+        // Po wpisaniu peselu i wybraniu wykroczenia recydywa jest sprawdzana na serwerze i ustawiana automatycznie.
+        // Gdy serwer jest nieosiągalny, policjant wybiera ją ręcznie jak dotychczas
+        Runnable checkRepeatOffense = () -> {
+            String pesel = peselInput.getText();
+            Offense offense = offenseInput.getValue() == null ? null : offenses.get(offenseInput.getValue());
+            isRecidivistInput.setDisable(false);
+            isRecidivistInput.setValue(null);
+            if (!validatePesel(pesel) || offense == null) {
+                return;
+            }
+            runInBackground("Sprawdzanie recydywy", () -> isRepeatOffense(pesel, offense.getId()), repeat -> {
+                // Odpowiedź dotyczy danych, które są nadal w formularzu
+                if (pesel.equals(peselInput.getText()) && offense == offenses.get(offenseInput.getValue())) {
+                    isRecidivistInput.setValue(repeat ? "Tak" : "Nie");
+                    isRecidivistInput.setDisable(true);
+                }
+            }, error -> System.out.println("Nie udało się sprawdzić recydywy: " + error.getMessage()));
+        };
+        peselInput.textProperty().addListener((observable, oldValue, newValue) -> checkRepeatOffense.run());
+        offenseInput.valueProperty().addListener((observable, oldValue, newValue) -> checkRepeatOffense.run());
+
         Label penaltyPointsLabel = new Label("Punkty karne:");
         TextField penaltyPointsInput = new TextField();
         //niepozwolenie na wpisanie czegoś innego niż intów
@@ -317,6 +685,8 @@ public class PoliceTicketApp extends Application {
         ticketFormLayout.add(penaltyPointsInput, 1, 5);
         ticketFormLayout.add(goToCancelTicketButton, 0, 6);
         ticketFormLayout.add(submitTicketButton, 1, 6);
+        ticketFormLayout.add(syncPanel, 0, 7, 2, 1);
+        ticketFormLayout.add(pendingCalls, 0, 8, 2, 1);
         GridPane.setHalignment(submitTicketButton, HPos.RIGHT);
 
         goToCancelTicketButton.setOnAction(e -> {
@@ -366,17 +736,52 @@ public class PoliceTicketApp extends Application {
                 }
                 else {
                     //jeśli kierowca jest recydywistą i wykroczenie podlega recydywie dwuktornie zwiększa wysokość mandatu.
+                    //recydywa jest ustalana przez serwer na podstawie mandatów kierowcy, ręcznie tylko bez połączenia z serwerem.
                     if (isRecidivist.equals("Tak") && offense.getRecidivist()) {
                         fineInt *= 2;
                     }
-                    fine = Integer.toString(fineInt);
-                    //jeśli wszystkie pola są poprawnie wypełnione to wysyła dane do serwera
-                    submitTicket(driver, pesel, selectedOffense, fine, penaltyPoints);
+                    String fineValue = Integer.toString(fineInt);
+                    //jeśli wszystkie pola są poprawnie wypełnione to zapisuje mandat w dzienniku, z którego zostanie wysłany w tle
+                    if (journal != null) {
+                        try {
+                            journal.append(ticketJson(driver, pesel, selectedOffense, fineValue, penaltyPoints));
+                        } catch (IOException ex) {
+                            showAlert("Błąd", "Nie udało się zapisać mandatu dla: " + driver + ". " + ex.getMessage());
+                            return;
+                        }
+                    } else {
+                        // Bez dziennika mandat jest wysyłany bezpośrednio na serwer
+                        runInBackground("Wysyłanie mandatu: " + driver,
+                                () -> submitTicket(driver, pesel, selectedOffense, fineValue, penaltyPoints),
+                                ticketId -> {
+                                    if (ticketId != -1) {
+                                        showAlert("Sukces", "Mandat o ID: " + ticketId + " został wystawiony.");
+                                    } else {
+                                        showAlert("Błąd", "Nie udało się wystawić mandatu dla: " + driver + ".");
+                                    }
+                                },
+                                error -> {
+                                    if (error instanceof CancellationException) {
+                                        showAlert("Przerwano", "Przerwano wysyłanie mandatu dla: " + driver
+                                                + ". Jeśli dotarł do serwera, mógł zostać wystawiony.");
+                                    } else {
+                                        showAlert("Błąd", "Nie udało się wystawić mandatu dla: " + driver + ". " + error.getMessage());
+                                    }
+                                });
+                    }
+
+                    // Formularz jest od razu gotowy na kolejny mandat, poprzedni wysyła się w tle
+                    driverInput.clear();
+                    peselInput.clear();
+                    offenseInput.setValue(null);
+                    fineInput.clear();
+                    isRecidivistInput.setValue(null);
+                    penaltyPointsInput.clear();
                 }
             }
         });
 
-        Scene ticketScene = new Scene(ticketFormLayout, 340, 270);
+        Scene ticketScene = new Scene(ticketFormLayout, 340, 400);
         mainStage.setScene(ticketScene);
         mainStage.show();
     }
@@ -419,43 +824,31 @@ public class PoliceTicketApp extends Application {
      * @param serviceNumber numer policjanta (login)
      * @param password hasło
      * @return zwraca false dla niepoprawnych danych logowania lub true dla poprawnych
+     * @throws IOException jeśli nie uda się połączyć z serwerem lub serwer odrzuci próbę logowania z powodu limitu prób
      */
-    private boolean authenticate(String serviceNumber, String password) {
+    private boolean authenticate(String serviceNumber, String password) throws IOException {
+        JSONObject json = new JSONObject();
+        json.put("serviceNumber", serviceNumber);
+        json.put("password", password);
+
+        // Wysłanie danych do serwera i odebranie odpowiedzi, logowanie niczego nie zmienia więc może być ponowione
+        HttpResponse<String> response = send(postJson("/login", json), true);
+
         try {
-            URL url = new URL(SERVER_URL + "/login");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-
-            JSONObject json = new JSONObject();
-            json.put("serviceNumber", serviceNumber);
-            json.put("password", password);
-
-            // Wysłanie danych do serwera
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = json.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+            JSONObject jsonResponse = new JSONObject(response.body());
+            if (response.statusCode() == 429) {
+                throw new IOException(jsonResponse.optString("message", "Zbyt wiele prób logowania"));
             }
-
-            // Odbieranie odpowiedzi z serwera
-            BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
-            StringBuilder response = new StringBuilder();
-            String line;
-            while ((line = in.readLine()) != null) {
-                response.append(line);
+            boolean success = jsonResponse.optBoolean("success", false);
+            if (!success) {
+                System.out.println("Logowanie nieudane, kod odpowiedzi: " + response.statusCode());
+            } else {
+                // Token jest potrzebny do pytań o dane kierowcy, np. o recydywę
+                officerToken = jsonResponse.optString("token", null);
             }
-            in.close();
-
-            System.out.println("response: " + response.toString());
-
-            JSONObject jsonResponse = new JSONObject(response.toString());
-            return jsonResponse.optBoolean("success", false);
-
-        } catch (IOException e) {
-            System.out.println("Błąd komunikacji z serwerem: " + e.getMessage());
-            return false;
+            return success;
+        } catch (JSONException e) {
+            throw new IOException("Niepoprawna odpowiedź serwera", e);
         }
     }
 
@@ -467,44 +860,71 @@ public class PoliceTicketApp extends Application {
      * @param offense wykroczenie popełnione
      * @param fine grzywna
      * @param penaltyPoints ilość punktów karnych
-     * @return true jeśli uda się wstawić dane do bazy danych, false jeśli się nie uda
+     * @return id wystawionego mandatu lub -1, jeśli serwer nie zapisał mandatu
+     * @throws IOException jeśli nie uda się połączyć z serwerem
      */
-    public boolean submitTicket(String driver, String pesel, String offense, String fine, String penaltyPoints) {
-        try {
-            URL url = new URL(SERVER_URL + "/createTicket");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-
-            JSONObject ticketData = new JSONObject();
-            ticketData.put("driver", driver);
-            ticketData.put("pesel", pesel);
-            ticketData.put("offense", offense);
-            ticketData.put("fine", fine);
-            ticketData.put("penaltyPoints", penaltyPoints);
-            ticketData.put("serviceNumber", serviceNumber);
-
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = ticketData.toString().getBytes("utf-8");
-                os.write(input, 0, input.length);
-            }
-
-            int status = connection.getResponseCode();
-            if (status == HttpURLConnection.HTTP_OK) {
-                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"));
-                String response = in.readLine();
-                JSONObject jsonResponse = new JSONObject(response);
+    public int submitTicket(String driver, String pesel, String offense, String fine, String penaltyPoints) throws IOException {
+        JSONObject ticketData = ticketJson(driver, pesel, offense, fine, penaltyPoints);
+
+        // Ponowienia niosą ten sam klucz idempotentności, więc serwer nie zapisze mandatu dwa razy
+        HttpResponse<String> response = send(postJson("/createTicket", ticketData), true);
+        if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+            try {
+                JSONObject jsonResponse = new JSONObject(response.body());
                 if (jsonResponse.getBoolean("success")) {
-                    showAlert("Sukces", "Mandat o ID: " + jsonResponse.getInt("ticketId") + " został wystawiony.");
-                    return true;
+                    return jsonResponse.getInt("ticketId");
                 }
+            } catch (JSONException e) {
+                System.out.println("Niepoprawna odpowiedź serwera: " + e.getMessage());
             }
-            showAlert("Błąd", "Nie udało się wystawić mandatu.");
-        } catch (IOException | JSONException e) {
-            System.out.println("Błąd komunikacji z serwerem: " + e.getMessage());
         }
-        return false;
+        return -1;
+    }
+
+    /**
+     * Tworzy dane mandatu w formacie żądania /api/createTicket, wystawianego przez zalogowanego policjanta.
+     * Mandat dostaje nowy klucz idempotentności, wysyłany bez zmian przy każdym ponowieniu.
+     *
+     * @param driver dane kierowcy
+     * @param pesel pesel kierowcy
+     * @param offense wykroczenie popełnione
+     * @param fine grzywna
+     * @param penaltyPoints ilość punktów karnych
+     * @return dane mandatu
+     */
+    private JSONObject ticketJson(String driver, String pesel, String offense, String fine, String penaltyPoints) {
+        JSONObject ticketData = new JSONObject();
+        ticketData.put("driver", driver);
+        ticketData.put("pesel", pesel);
+        ticketData.put("offense", offense);
+        Offense known = offenses.get(offense);
+        if (known != null) {
+            ticketData.put("offenseId", known.getId());
+        }
+        ticketData.put("fine", fine);
+        ticketData.put("penaltyPoints", penaltyPoints);
+        ticketData.put("serviceNumber", serviceNumber);
+        ticketData.put("idempotencyKey", UUID.randomUUID().toString());
+        return ticketData;
+    }
+
+    /**
+     * Wysyła partię mandatów z dziennika jednym żądaniem /api/createTickets.
+     *
+     * @param tickets mandaty do wysłania
+     * @return wyniki w kolejności mandatów, każdy z ticketId albo error
+     * @throws IOException jeśli serwer jest nieosiągalny albo nie przyjął partii
+     */
+    private static JSONArray sendTickets(JSONArray tickets) throws IOException {
+        HttpResponse<String> response = send(postJson("/createTickets", new JSONObject().put("tickets", tickets)), true);
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Serwer odpowiedział kodem " + response.statusCode());
+        }
+        try {
+            return new JSONObject(response.body()).getJSONArray("results");
+        } catch (JSONException e) {
+            throw new IOException("Niepoprawna odpowiedź serwera", e);
+        }
     }
 
     /**
@@ -539,6 +959,8 @@ public class PoliceTicketApp extends Application {
         cancelTicketFormLayout.add(ticketIdInput, 1, 0);
         cancelTicketFormLayout.add(goBackButton, 0, 1);
         cancelTicketFormLayout.add(cancelTicketButton, 1, 1);
+        cancelTicketFormLayout.add(syncPanel, 0, 2, 2, 1);
+        cancelTicketFormLayout.add(pendingCalls, 0, 3, 2, 1);
         GridPane.setHalignment(cancelTicketButton, HPos.RIGHT);
 
         goBackButton.setOnAction(e -> {
@@ -551,16 +973,27 @@ public class PoliceTicketApp extends Application {
                 showAlert("Błąd anulowania mandatu", "Pola nie mogą być puste.");
             }
             else {
-                if(cancelTicket(id)) {
-                    showAlert("Sukces", "Mandat został anulowany.");
-                }
-                else {
-                    showAlert("Błąd", "Wystąpił problem podczas anulowania mandatu.");
-                }
+                runInBackground("Anulowanie mandatu " + id, () -> cancelTicket(id),
+                        cancelled -> {
+                            if (cancelled) {
+                                showAlert("Sukces", "Mandat " + id + " został anulowany.");
+                            } else {
+                                showAlert("Błąd", "Wystąpił problem podczas anulowania mandatu " + id + ".");
+                            }
+                        },
+                        error -> {
+                            if (error instanceof CancellationException) {
+                                showAlert("Przerwano", "Przerwano anulowanie mandatu " + id
+                                        + ". Jeśli żądanie dotarło do serwera, mandat mógł zostać anulowany.");
+                            } else {
+                                showAlert("Błąd", "Wystąpił błąd podczas anulowania mandatu " + id + ": " + error.getMessage());
+                            }
+                        });
+                ticketIdInput.clear();
             }
         });
 
-        Scene cancelTicketScene = new Scene(cancelTicketFormLayout, 250, 90);
+        Scene cancelTicketScene = new Scene(cancelTicketFormLayout, 300, 220);
         mainStage.setScene(cancelTicketScene);
         mainStage.show();
     }
@@ -570,55 +1003,49 @@ public class PoliceTicketApp extends Application {
      *
      * @param ticketId id mandatu do anulowania
      * @return zwraca true, jeżeli uda się anulować mandat, false, jeżeli się nie powiedzie
+     * @throws IOException jeśli nie uda się połączyć z serwerem lub serwer odpowie błędem
      */
-    private boolean cancelTicket(String ticketId) {
-        //System.out.println("cancelTicket() called at: " + System.currentTimeMillis());
-        HttpURLConnection connection = null;
-        try {
-            JSONObject ticketData = new JSONObject();
-            ticketData.put("ticketId", ticketId);
-
-            HttpURLConnection.setFollowRedirects(false);
-            System.setProperty("sun.net.http.retryPost", "false");
-
-            URL url = new URL(SERVER_URL + "/cancelTicket");
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Expect", "");
-            connection.setRequestProperty("Connection", "close");
-            System.setProperty("http.keepAlive", "false");
-
-            connection.setDoOutput(true);
-
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = ticketData.toString().getBytes("utf-8");
-                os.write(input, 0, input.length);
-                os.flush();
-                os.close();
-            }
+    private boolean cancelTicket(String ticketId) throws IOException {
+        JSONObject ticketData = new JSONObject();
+        ticketData.put("ticketId", ticketId);
+        ticketData.put("idempotencyKey", UUID.randomUUID().toString());
 
-            // Odczytanie odpowiedzi z serwera
-            int status = connection.getResponseCode();
-            //System.out.println("Response Code: " + status);
+        HttpResponse<String> response = send(postJson("/cancelTicket", ticketData), true);
 
-            if (status == HttpURLConnection.HTTP_OK) {
-                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "utf-8"));
-                String response = in.readLine();
-                JSONObject jsonResponse = new JSONObject(response);
+        // Odczytanie odpowiedzi z serwera
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Serwer odpowiedział kodem " + response.statusCode());
+        }
+        try {
+            return new JSONObject(response.body()).getBoolean("success");
+        } catch (JSONException e) {
+            throw new IOException("Niepoprawna odpowiedź serwera", e);
+        }
+    }
 
-                return jsonResponse.getBoolean("success");
-            } else {
-                showAlert("Błąd", "Wystąpił problem podczas komunikacji z serwerem.");
-            }
-        } catch (IOException | JSONException e) {
-            showAlert("Błąd", "XD Wystąpił błąd podczas anulowania mandatu: " + e.getMessage());
-        }finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+    /**
+     * Pyta serwer, czy kierowca popełnił to samo wykroczenie w okresie recydywy.
+     *
+     * @param pesel pesel kierowcy
+     * @param offenseId id wykroczenia
+     * @return true jeśli kierowca jest recydywistą dla tego wykroczenia
+     * @throws IOException jeśli nie uda się połączyć z serwerem lub serwer odpowie błędem
+     */
+    private static boolean isRepeatOffense(String pesel, int offenseId) throws IOException {
+        JSONObject question = new JSONObject();
+        question.put("pesel", pesel);
+        question.put("offenseId", offenseId);
+
+        // Pytanie niczego nie zmienia na serwerze, więc może być ponowione
+        HttpResponse<String> response = send(postJson("/repeatOffense", question), true);
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Serwer odpowiedział kodem " + response.statusCode());
+        }
+        try {
+            return new JSONObject(response.body()).getBoolean("repeat");
+        } catch (JSONException e) {
+            throw new IOException("Niepoprawna odpowiedź serwera", e);
         }
-        return false;
     }
 
     /**
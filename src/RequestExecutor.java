@@ -0,0 +1,210 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor obsługujący żądania serwera http poza wątkiem dyspozytora HttpServer.
+ * Działa w jednym z dwóch trybów:
+ * <ul>
+ *     <li>virtual - każde żądanie dostaje własny wirtualny wątek, a liczba żądań w toku jest ograniczona,</li>
+ *     <li>bounded - stała pula wątków platformowych z ograniczoną kolejką.</li>
+ * </ul>
+ * Żądanie, które nie mieści się w limicie, jest od razu odrzucane odpowiedzią 503 z nagłówkiem Retry-After
+ * zamiast czekać w nieograniczonej kolejce.
+ */
+public class RequestExecutor implements Executor {
+
+    /**
+     * Znacznik ustawiany na czas obsługi żądania, które zostało odrzucone z powodu przeciążenia
+     */
+    private static final ThreadLocal<Boolean> shedding = new ThreadLocal<>();
+
+    /**
+     * Executor wykonujący żądania przyjęte do obsługi
+     */
+    private final ExecutorService delegate;
+
+    /**
+     * Maksymalna liczba żądań przyjętych i jeszcze nie zakończonych w trybie virtual, 0 oznacza brak limitu
+     */
+    private final int maxInFlight;
+
+    /**
+     * Wartość nagłówka Retry-After w sekundach
+     */
+    private final int retryAfterSeconds;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private RequestExecutor(ExecutorService delegate, int maxInFlight, int retryAfterSeconds) {
+        this.delegate = delegate;
+        this.maxInFlight = maxInFlight;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Tworzy executor z wątkiem wirtualnym na każde żądanie.
+     *
+     * @param maxInFlight maksymalna liczba żądań obsługiwanych jednocześnie, 0 oznacza brak limitu
+     * @param retryAfterSeconds wartość nagłówka Retry-After dla odrzuconych żądań
+     * @return nowy executor
+     */
+    public static RequestExecutor virtual(int maxInFlight, int retryAfterSeconds) {
+        ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 0).factory());
+        return new RequestExecutor(executor, maxInFlight, retryAfterSeconds);
+    }
+
+    /**
+     * Tworzy executor ze stałą pulą wątków platformowych i ograniczoną kolejką.
+     *
+     * @param threads liczba wątków obsługujących żądania
+     * @param queueCapacity maksymalna liczba żądań czekających w kolejce
+     * @param retryAfterSeconds wartość nagłówka Retry-After dla odrzuconych żądań
+     * @return nowy executor
+     */
+    public static RequestExecutor bounded(int threads, int queueCapacity, int retryAfterSeconds) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), Thread.ofPlatform().name("http-", 0).factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.prestartAllCoreThreads();
+        return new RequestExecutor(pool, 0, retryAfterSeconds);
+    }
+
+    /**
+     * Tworzy executor na podstawie właściwości systemowych mandaty.http.*.
+     *
+     * @return executor skonfigurowany zgodnie z vm options
+     */
+    public static RequestExecutor fromSystemProperties() {
+        String mode = System.getProperty("mandaty.http.executor", "virtual");
+        int retryAfter = Integer.getInteger("mandaty.http.retryAfter", 1);
+        if ("bounded".equalsIgnoreCase(mode)) {
+            int threads = Integer.getInteger("mandaty.http.threads", 16);
+            int queue = Integer.getInteger("mandaty.http.queue", 64);
+            return bounded(threads, queue, retryAfter);
+        } else if ("virtual".equalsIgnoreCase(mode)) {
+            return virtual(Integer.getInteger("mandaty.http.maxInFlight", 256), retryAfter);
+        }
+        throw new IllegalArgumentException("Nieznany tryb executora: " + mode);
+    }
+
+    /**
+     * Przekazuje żądanie do obsługi albo, przy przeciążeniu, do szybkiej odpowiedzi 503.
+     *
+     * @param task zadanie HttpServer obsługujące jedno żądanie
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (maxInFlight > 0 && pending.get() >= maxInFlight) {
+            shed(task);
+            return;
+        }
+        pending.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                inFlight.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                    pending.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            shed(task);
+        }
+    }
+
+    /**
+     * Obsługuje odrzucone żądanie na osobnym wątku wirtualnym, tak aby nie blokować dyspozytora.
+     * Zadanie przechodzi przez filtry kontekstu, a {@link #sheddingFilter()} odpowiada kodem 503.
+     *
+     * @param task zadanie HttpServer obsługujące jedno żądanie
+     */
+    private void shed(Runnable task) {
+        rejected.incrementAndGet();
+        Thread.ofVirtual().name("http-shed").start(() -> {
+            shedding.set(Boolean.TRUE);
+            try {
+                task.run();
+            } finally {
+                shedding.remove();
+            }
+        });
+    }
+
+    /**
+     * Zwraca filtr, który trzeba dodać do każdego kontekstu serwera. Dla odrzuconych żądań
+     * wysyła 503 z nagłówkiem Retry-After bez wywoływania handlera.
+     *
+     * @return filtr odrzucający żądania przy przeciążeniu
+     */
+    public Filter sheddingFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (shedding.get() == null) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+
+            @Override
+            public String description() {
+                return "Odrzucanie żądań przy przeciążeniu serwera";
+            }
+        };
+    }
+
+    /**
+     * @return liczba żądań aktualnie obsługiwanych przez handlery.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return liczba żądań przyjętych, ale jeszcze nie rozpoczętych.
+     */
+    public int getQueueDepth() {
+        return Math.max(0, pending.get() - inFlight.get());
+    }
+
+    /**
+     * @return liczba żądań obsłużonych od startu serwera.
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return liczba żądań odrzuconych odpowiedzią 503.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Zatrzymuje przyjmowanie nowych żądań i czeka na zakończenie żądań w toku.
+     *
+     * @param timeoutMillis maksymalny czas oczekiwania na żądania w toku w milisekundach
+     * @return true jeśli wszystkie żądania zakończyły się w wyznaczonym czasie
+     * @throws InterruptedException jeśli oczekiwanie zostało przerwane
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        delegate.shutdown();
+        return delegate.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
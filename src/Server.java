@@ -1,14 +1,22 @@
 import java.io.*;
 import java.sql.*;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.json.*;
 
@@ -20,31 +28,271 @@ public class Server {
     /**
      * Stała zawierająca adres ip serwera
      */
-    private final static String host_ip = "172.20.10.7";
+    private final static String host_ip = System.getProperty("mandaty.http.host", "172.20.10.7");
 
     /**
      * Stała zawierająca port do obługi aplikacji klienta
      */
-    private final static int port_klient = 8080;
+    private final static int port_klient = Integer.getInteger("mandaty.http.port", 8080);
+
+    /**
+     * Stała zawierająca czas w sekundach, przez jaki zamykany serwer czeka na zakończenie żądań w toku
+     */
+    private final static int shutdown_grace = Integer.getInteger("mandaty.http.shutdownGrace", 5);
 
     /**
      * Stała zaweierająca adres do bazy danych
      */
-    private final static String dburl = "jdbc:sqlite:Z:\\identifier.sqlite";
+    private final static String dburl = System.getProperty("mandaty.db.url", "jdbc:sqlite:Z:\\identifier.sqlite");
     //private final static String dburl = "jdbc:sqlite:C:\\Users\\User\\DataGripProjects\\Mandaty\\identifier.sqlite";
 
+    /**
+     * Stała zawierająca liczbę połączeń w puli połączeń do bazy danych
+     */
+    private final static int db_pool_size = Integer.getInteger("mandaty.db.poolSize", 4);
+
+    /**
+     * Stała zawierająca maksymalny czas oczekiwania na wolne połączenie z bazą danych w milisekundach
+     */
+    private final static long db_acquire_timeout = Long.getLong("mandaty.db.acquireTimeout", 5000);
+
+    /**
+     * Stała określająca, czy /api/metrics jest dostępne spoza tego samego komputera, np. dla zdalnego Prometheusa
+     */
+    private final static boolean metrics_remote = Boolean.getBoolean("mandaty.metrics.remote");
+
+    /**
+     * Stała zawierająca czas bezczynności, po którym sesja kierowcy wygasa, w sekundach
+     */
+    private final static long session_ttl = Long.getLong("mandaty.session.ttl", 1800);
+
+    /**
+     * Stała zawierająca dokładność wygasania sesji kierowców w sekundach
+     */
+    private final static long session_tick = Long.getLong("mandaty.session.tick", 10);
+
+    /**
+     * Stała zawierająca dozwoloną liczbę prób logowania na minutę dla jednego konta (numeru służbowego lub peselu)
+     */
+    private final static int login_account_rate = Integer.getInteger("mandaty.login.accountRate", 10);
+
+    /**
+     * Stała zawierająca dozwoloną liczbę prób logowania na minutę z jednego adresu IP
+     */
+    private final static int login_address_rate = Integer.getInteger("mandaty.login.addressRate", 60);
+
+    /**
+     * Stała zawierająca maksymalną liczbę kont i adresów, dla których pamiętane są próby logowania
+     */
+    private final static int login_max_keys = Integer.getInteger("mandaty.login.maxKeys", 100_000);
+
+    /**
+     * Stała zawierająca okres ważności punktów karnych w dniach
+     */
+    private final static int points_validity_days = Integer.getInteger("mandaty.points.validityDays", 365);
+
+    /**
+     * Stała zawierająca odstęp między kolejnymi wygaszeniami punktów karnych w sekundach
+     */
+    private final static long points_expiry_interval = Long.getLong("mandaty.points.expiryInterval", 3600);
+
+    /**
+     * Stała zawierająca okres recydywy w dniach, liczony od poprzedniego mandatu za to samo wykroczenie
+     */
+    private final static int repeat_window_days = Integer.getInteger("mandaty.repeat.windowDays", 730);
+
+    /**
+     * Stała zawierająca liczbę ostatnich kluczy idempotentności zapamiętanych w pamięci dla każdego rodzaju zapisu
+     */
+    private final static int idempotency_cache_size = Integer.getInteger("mandaty.idempotency.cacheSize", 10_000);
+
+    /**
+     * Stała zawierająca okres przechowywania anulowanych mandatów w tabeli tickets w dniach, po którym zostają tylko w dzienniku zdarzeń
+     */
+    private final static int cancelled_retention_days = Integer.getInteger("mandaty.tickets.cancelledRetentionDays", 30);
+
+    /**
+     * Stała zawierająca odstęp między kolejnymi kompaktowaniami tabeli tickets w sekundach
+     */
+    private final static long compaction_interval = Long.getLong("mandaty.tickets.compactionInterval", 3600);
+
+    /**
+     * Stała zawierająca maksymalną liczbę otwartych strumieni zmian mandatów wszystkich kierowców
+     */
+    private final static int feed_max_subscribers = Integer.getInteger("mandaty.feed.maxSubscribers", 10_000);
+
+    /**
+     * Stała zawierająca odstęp między komentarzami podtrzymującymi strumień zmian mandatów w sekundach
+     */
+    private final static long feed_heartbeat = Long.getLong("mandaty.feed.heartbeat", 15);
+
+    /**
+     * Zapytania wykonywane przy obsłudze żądań, których plany są wypisywane przy starcie serwera
+     */
+    private final static List<Migrations.HotQuery> hot_queries = List.of(
+            new Migrations.HotQuery("logowanie policjanta", LoginHandler.loginQuery, false),
+            new Migrations.HotQuery("logowanie kierowcy", JsonHandler.driverLoginQuery, false),
+            new Migrations.HotQuery("mandaty kierowcy", JsonHandler.ticketsFirstPageQuery, false),
+            new Migrations.HotQuery("mandaty kierowcy (kolejna strona)", JsonHandler.ticketsNextPageQuery, false),
+            new Migrations.HotQuery("anulowanie mandatu", CancelTicketHandler.cancelQuery, false),
+            new Migrations.HotQuery("powtórzony mandat", Server.ticketByKeyQuery, false),
+            new Migrations.HotQuery("powtórzone anulowanie", CancelTicketHandler.cancellationByKeyQuery, false),
+            new Migrations.HotQuery("punkty karne kierowcy", DriverPoints.pointsQuery, false),
+            new Migrations.HotQuery("mandaty z okresu recydywy", OffenseHistory.loadQuery, false),
+            new Migrations.HotQuery("wygasające punkty karne", DriverPoints.expiringQuery, false),
+            new Migrations.HotQuery("historia mandatu", TicketEvents.historyQuery, false),
+            new Migrations.HotQuery("kompaktowanie mandatów", TicketEvents.compactQuery, false),
+            new Migrations.HotQuery("katalog wykroczeń", OffenseCatalog.query, true)
+    );
+
+    /**
+     * Pula połączeń do bazy danych współdzielona przez wszystkie handlery
+     */
+    static ConnectionPool pool;
+
+    /**
+     * Wątek zapisujący, przez który przechodzą wszystkie zapisy mandatów
+     */
+    static TicketWriter writer;
+
+    /**
+     * Executor obsługujący żądania http poza wątkiem dyspozytora serwera
+     */
+    static RequestExecutor executor;
+
+    /**
+     * Serwer http, null dopóki nie zostanie uruchomiony
+     */
+    static HttpServer httpServer;
+
+    /**
+     * Katalog wykroczeń trzymany w pamięci serwera
+     */
+    static OffenseCatalog offenseCatalog;
+
+    /**
+     * Sumy ważnych punktów karnych kierowców
+     */
+    static DriverPoints driverPoints;
+
+    /**
+     * Ostatnie wykroczenia kierowców do sprawdzania recydywy
+     */
+    static OffenseHistory offenseHistory;
+
+    /**
+     * Dziennik zdarzeń mandatów i kompaktowanie anulowanych mandatów
+     */
+    static TicketEvents ticketEvents;
+
+    /**
+     * Metryki serwera wystawiane pod /api/metrics
+     */
+    static Metrics metrics;
+
+    /**
+     * Sesje zalogowanych kierowców
+     */
+    static final SessionStore sessions = new SessionStore(session_ttl, session_tick);
+
+    /**
+     * Sesje zalogowanych policjantów, przypisane do numeru służbowego
+     */
+    static final SessionStore officerSessions = new SessionStore(session_ttl, session_tick);
+
+    /**
+     * Otwarte strumienie zmian mandatów kierowców
+     */
+    static final TicketFeed ticketFeed = new TicketFeed(sessions, feed_max_subscribers, feed_heartbeat);
+
+    /**
+     * Limity prób logowania policjantów i kierowców, sprawdzane przed zapytaniem do bazy danych
+     */
+    static final LoginThrottle accountThrottle = new LoginThrottle(login_account_rate, login_max_keys);
+    static final LoginThrottle addressThrottle = new LoginThrottle(login_address_rate, login_max_keys);
+
+    /**
+     * Wyniki ostatnich zapisów mandatów (id mandatu) i anulowań (powodzenie) według klucza idempotentności,
+     * razem ze skrótem treści żądania
+     */
+    static final IdempotencyCache<Integer> createKeys = new IdempotencyCache<>(idempotency_cache_size);
+    static final IdempotencyCache<Boolean> cancelKeys = new IdempotencyCache<>(idempotency_cache_size);
+
 
     /**
-     * Metoda uruchamia serwer http
+     * Metoda wykonuje migracje bazy danych, otwiera pulę połączeń i uruchamia serwer http
      */
     public static void main(String[] args) {
         try {
+            open_database(dburl);
+            Runtime.getRuntime().addShutdownHook(new Thread(Server::shutdown, "shutdown"));
+            Migrations.explain(pool, hot_queries);
             start_http();
+        } catch (SQLException e) {
+            Log.error("Błąd połączenia z bazą danych", "error", e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
-            System.out.println("Błąd uruchomienia serwera hhtp: " + e.getMessage());
+            Log.error("Błąd uruchomienia serwera http", "error", e.getMessage());
+            // Zakończenie uruchamia hak zamknięcia, który zapisuje polecenia z kolejki i zamyka bazę danych
+            System.exit(1);
         }
     }
 
+    /**
+     * Wykonuje migracje bazy danych i przygotowuje pulę połączeń, wątek zapisujący, katalog wykroczeń,
+     * sumy punktów karnych i dziennik zdarzeń mandatów używane przez handlery. Wywoływana również przez benchmarki, które uruchamiają handlery bez serwera http.
+     *
+     * @param url adres bazy danych JDBC
+     * @throws SQLException jeśli nie uda się wykonać migracji lub otworzyć połączeń
+     */
+    static void open_database(String url) throws SQLException {
+        Migrations.migrate(url);
+        pool = new ConnectionPool(url, db_pool_size, db_acquire_timeout);
+        writer = new TicketWriter(url);
+        offenseCatalog = new OffenseCatalog(pool);
+        driverPoints = new DriverPoints(writer, points_validity_days, points_expiry_interval);
+        driverPoints.expire();
+        ticketEvents = new TicketEvents(writer, cancelled_retention_days, compaction_interval);
+        offenseHistory = new OffenseHistory(repeat_window_days);
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            int loaded = offenseHistory.load(connection);
+            Log.info("Wczytano mandaty z okresu recydywy", "tickets", loaded, "drivers", offenseHistory.size());
+        }
+    }
+
+    /**
+     * Zapisuje polecenia pozostałe w kolejce zapisu i zamyka połączenia z bazą danych.
+     */
+    static void close_database() {
+        driverPoints.close();
+        ticketEvents.close();
+        writer.close();
+        pool.close();
+    }
+
+    /**
+     * Zamyka serwer w kolejności odwrotnej do uruchamiania: najpierw przestaje przyjmować połączenia i czeka
+     * na żądania w toku, potem zatrzymuje wygaszanie sesji, a na końcu zapisuje kolejkę wątku zapisującego,
+     * zamyka bazę danych i wypisuje pozostałe wpisy logu. Wywoływana przez hook zamknięcia JVM.
+     */
+    static void shutdown() {
+        if (httpServer != null) {
+            httpServer.stop(shutdown_grace);
+            try {
+                if (!executor.shutdown(TimeUnit.SECONDS.toMillis(shutdown_grace))) {
+                    Log.warn("Nie wszystkie żądania zakończyły się przed zamknięciem serwera");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sessions.close();
+        officerSessions.close();
+        close_database();
+        Log.info("Serwer zatrzymany");
+        Log.flush();
+    }
+
     /**
      * Metoda statyczna uruchamiająca serwer http
      *
@@ -53,40 +301,116 @@ public class Server {
     private static void start_http() throws IOException {
         // Urochomienie serwera na porcie port_klient
         HttpServer server = HttpServer.create(new InetSocketAddress(host_ip, port_klient), 0);
+        executor = RequestExecutor.fromSystemProperties();
+        metrics = new Metrics();
+        register_metrics();
+
         // Obsługa plików statycznych
-        server.createContext("/", new StaticFileHandler("src/klient"));
+        createContext(server, "/", new StaticFileHandler("src/klient"));
 
         // Obsługa API JSON
-        server.createContext("/api", new JsonHandler());
+        createContext(server, "/api", new JsonHandler());
 
         // Obłusga API dla funkcjonalnośći aplikacji policjanta
-        server.createContext("/api/login", new LoginHandler());
-        server.createContext("/api/offences", new OffencesHandler());
-        server.createContext("/api/createTicket", new CreateTicketHandler());
-        server.createContext("/api/cancelTicket", new CancelTicketHandler());
+        createContext(server, "/api/login", new LoginHandler());
+        createContext(server, "/api/offences", new OffencesHandler());
+        createContext(server, "/api/offences/invalidate", new InvalidateOffencesHandler());
+        createContext(server, "/api/createTicket", new CreateTicketHandler());
+        createContext(server, "/api/createTickets", new CreateTicketsHandler());
+        createContext(server, "/api/cancelTicket", new CancelTicketHandler());
+        createContext(server, "/api/repeatOffense", new RepeatOffenseHandler());
+        createContext(server, "/api/ticketHistory", new TicketHistoryHandler());
+        createContext(server, "/api/ticketEvents/restore", new RestoreTicketsHandler());
+
+        // Strumień zmian mandatów dla strony kierowcy
+        createContext(server, "/api/ticketFeed", new TicketFeedHandler());
+
+        // Metryki serwera w formacie Prometheusa
+        createContext(server, "/api/metrics", new MetricsHandler());
 
         // Uruchomienie serwera
-        server.setExecutor(null);
+        server.setExecutor(executor);
         server.start();
-        System.out.println("Serwer HTTP działa na http://" + host_ip + ":" + port_klient);
+        httpServer = server;
+        Log.info("Serwer HTTP działa", "url", "http://" + host_ip + ":" + port_klient);
+    }
+
+    /**
+     * Rejestruje handler pod podaną ścieżką razem z filtrami wspólnymi dla wszystkich kontekstów.
+     *
+     * @param server serwer http
+     * @param path ścieżka kontekstu
+     * @param handler handler obsługujący żądania kontekstu
+     */
+    private static void createContext(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(metrics.filter(path));
+        context.getFilters().add(executor.sheddingFilter());
+    }
+
+    /**
+     * Rejestruje metryki stanu puli połączeń, executora żądań i wątku zapisującego.
+     */
+    private static void register_metrics() {
+        metrics.gauge("mandaty_db_pool_size", "Liczba połączeń w puli", () -> pool.getSize());
+        metrics.gauge("mandaty_db_pool_in_use", "Liczba połączeń wypożyczonych z puli", () -> pool.getInUse());
+        metrics.gauge("mandaty_db_pool_waiting", "Liczba wątków czekających na połączenie", () -> pool.getWaiting());
+        metrics.gauge("mandaty_db_pool_peak_in_use", "Największa liczba jednocześnie wypożyczonych połączeń", () -> pool.getPeakInUse());
+        metrics.counter("mandaty_db_pool_acquisitions_total", "Liczba wypożyczeń połączenia", () -> pool.getAcquisitions());
+        metrics.counter("mandaty_db_pool_timeouts_total", "Liczba przekroczeń czasu oczekiwania na połączenie", () -> pool.getTimeouts());
+        metrics.counterSeconds("mandaty_db_pool_wait_seconds_total", "Łączny czas oczekiwania na połączenie", () -> pool.getTotalWaitNanos());
+
+        metrics.gauge("mandaty_http_in_flight", "Liczba żądań w trakcie obsługi", () -> executor.getInFlight());
+        metrics.gauge("mandaty_http_queue_depth", "Liczba żądań czekających na wątek", () -> executor.getQueueDepth());
+        metrics.counter("mandaty_http_completed_total", "Liczba żądań obsłużonych przez executor", () -> executor.getCompleted());
+        metrics.counter("mandaty_http_rejected_total", "Liczba żądań odrzuconych z powodu przeciążenia", () -> executor.getRejected());
+
+        metrics.gauge("mandaty_db_write_queue_depth", "Liczba poleceń czekających na wątek zapisujący", () -> writer.getQueueDepth());
+        metrics.counter("mandaty_db_write_commands_total", "Liczba zapisanych poleceń", () -> writer.getCommands());
+        metrics.counter("mandaty_db_write_transactions_total", "Liczba zatwierdzonych transakcji zapisu", () -> writer.getTransactions());
+        metrics.counter("mandaty_db_write_failed_transactions_total", "Liczba transakcji zapisu, których nie udało się zatwierdzić", () -> writer.getFailedTransactions());
+        metrics.gauge("mandaty_db_write_largest_group", "Największa liczba poleceń w jednej transakcji", () -> writer.getLargestGroup());
+
+        metrics.counter("mandaty_log_written_total", "Liczba zapisanych wpisów logu", Log::getWritten);
+        metrics.counter("mandaty_log_dropped_total", "Liczba wpisów logu pominiętych z powodu pełnego bufora", Log::getDropped);
+        metrics.gauge("mandaty_sessions", "Liczba sesji kierowców w pamięci", sessions::size);
+        metrics.gauge("mandaty_officer_sessions", "Liczba sesji policjantów w pamięci", officerSessions::size);
+        metrics.gauge("mandaty_feed_subscribers", "Liczba otwartych strumieni zmian mandatów", ticketFeed::size);
+        metrics.counter("mandaty_feed_events_total", "Liczba zmian mandatów wysłanych do strumieni kierowców", ticketFeed::getPublished);
+        metrics.counter("mandaty_feed_dropped_total", "Liczba strumieni rozłączonych z powodu przepełnionej kolejki", ticketFeed::getDropped);
+        metrics.counter("mandaty_tickets_compacted_total", "Liczba anulowanych mandatów usuniętych z tabeli tickets przez kompaktowanie",
+                () -> ticketEvents.getCompacted());
+        metrics.gauge("mandaty_offense_history_drivers", "Liczba kierowców z mandatami z okresu recydywy w pamięci", () -> offenseHistory.size());
+        metrics.counter("mandaty_login_throttled_total", "Liczba prób logowania odrzuconych kodem 429",
+                () -> accountThrottle.getRejected() + addressThrottle.getRejected());
+        metrics.gauge("mandaty_login_throttle_keys", "Liczba kont i adresów z zapamiętanymi próbami logowania",
+                () -> accountThrottle.size() + addressThrottle.size());
+        metrics.counter("mandaty_idempotent_replays_total", "Liczba powtórzonych zapisów obsłużonych z pamięci bez zapisu do bazy",
+                () -> createKeys.getHits() + cancelKeys.getHits());
+        metrics.gauge("mandaty_idempotency_keys", "Liczba kluczy idempotentności w pamięci",
+                () -> createKeys.size() + cancelKeys.size());
     }
 
     /**
-     * Metoda do obługi plików, które są używane do aplikacji klienta
+     * Metoda do obługi plików, które są używane do aplikacji klienta.
+     * Pliki są serwowane z pamięci podręcznej, z obsługą nagłówków ETag, Last-Modified i kompresji gzip.
      */
     static class StaticFileHandler implements HttpHandler {
         /**
-         * Ścieżka do do katalogu głównego klienta
+         * Pliki klienta wczytane do pamięci
          */
-        private final String basePath;
+        private final StaticAssetCache cache;
 
         /**
-         * Konstrucktor klasy StaticFileHandler
+         * Konstrucktor klasy StaticFileHandler. Wczytuje pliki klienta do pamięci
+         * i uruchamia obserwację zmian w katalogu.
          *
          * @param basePath Ścieżka do do katalogu głównego klienta
+         * @throws IOException wyrzcuca błąd IOException, jeśli nie uda się wczytać plików
          */
-        public StaticFileHandler(String basePath) {
-            this.basePath = basePath;
+        public StaticFileHandler(String basePath) throws IOException {
+            this.cache = new StaticAssetCache(basePath);
+            this.cache.watch();
         }
 
         /**
@@ -109,31 +433,76 @@ public class Server {
                 requestedPath = "/html/index.html";
             }
 
-            // Tworzenie pełnej ścieżki do pliku
-            String filePath = basePath + requestedPath;
-            File file = new File(filePath);
+            StaticAssetCache.Asset asset = cache.get(requestedPath);
+            if (asset == null) {
+                // Plik nie znaleziony
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+
+            // Wybór wersji skompresowanej, jeśli klient ją akceptuje
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            boolean gzip = asset.gzip() != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+            String etag = gzip ? asset.gzipEtag() : asset.etag();
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", asset.contentType());
+            headers.set("ETag", etag);
+            headers.set("Last-Modified", asset.lastModifiedHeader());
+            headers.set("Vary", "Accept-Encoding");
+            // Strony html są zawsze sprawdzane, pozostałe pliki mogą być trzymane przez przeglądarkę
+            headers.set("Cache-Control", requestedPath.endsWith(".html") ? "no-cache" : "public, max-age=3600");
+
+            if (isNotModified(exchange, asset, etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
 
-            if (file.exists() && !file.isDirectory()) {
-                // Odczytanie zawartości pliku
-                byte[] response = Files.readAllBytes(file.toPath());
+            byte[] response = gzip ? asset.gzip() : asset.raw();
+            if (gzip) {
+                headers.set("Content-Encoding", "gzip");
+            }
 
-                // Ustalanie typu MIME
-                String contentType = Files.probeContentType(file.toPath());
-                if (contentType == null) {
-                    contentType = "application/octet-stream";
-                }
+            if (exchange.getRequestMethod().equalsIgnoreCase("HEAD")) {
+                headers.set("Content-Length", Integer.toString(response.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
 
-                // Wysyłanie nagłówków i treści
-                exchange.getResponseHeaders().add("Content-Type", contentType + "; charset=UTF-8");
-                exchange.sendResponseHeaders(200, response.length);
+            // Wysyłanie nagłówków i treści
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        }
 
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response);
+        /**
+         * Sprawdza nagłówki warunkowe żądania. If-None-Match ma pierwszeństwo przed If-Modified-Since.
+         *
+         * @param exchange wymiana zawierająca żądanie od klienta
+         * @param asset żądany plik
+         * @param etag ETag wysyłanej wersji pliku
+         * @return true jeśli klient ma aktualną wersję pliku
+         */
+        private boolean isNotModified(HttpExchange exchange, StaticAssetCache.Asset asset, String etag) {
+            Headers requestHeaders = exchange.getRequestHeaders();
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                return etagMatches(ifNoneMatch, etag);
+            }
+            String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                try {
+                    Instant since = StaticAssetCache.httpDate.parse(ifModifiedSince, Instant::from);
+                    return !asset.lastModified().isAfter(since);
+                } catch (DateTimeParseException e) {
+                    return false;
                 }
-            } else {
-                // Plik nie znaleziony
-                exchange.sendResponseHeaders(404, -1);
             }
+            return false;
         }
     }
 
@@ -141,87 +510,127 @@ public class Server {
      * Metoda obługująca wymianę danych z serwera do klienta przez Jsona
      */
     static class JsonHandler implements HttpHandler {
+        /**
+         * Domyślna liczba mandatów na stronie listy kierowcy
+         */
+        private final static int default_tickets_page_size = 50;
+
+        /**
+         * Maksymalna liczba mandatów na stronie listy kierowcy
+         */
+        private final static int max_tickets_page_size = 200;
+
+        /**
+         * Zapytanie o dane logowania kierowcy
+         */
+        final static String driverLoginQuery = "SELECT driver.id, driver.pesel, driver.password FROM driver WHERE driver.pesel = ?";
+
+        /**
+         * Zapytanie o pierwszą stronę mandatów kierowcy, od najnowszych
+         */
+        final static String ticketsFirstPageQuery =
+                "SELECT tickets.id, tickets.driver_name, offenses.name AS offense, tickets.fine_amount, tickets.penalty_points, tickets.issue_date " +
+                        "FROM tickets " +
+                        "JOIN driver ON driver.pesel = tickets.pesel " +
+                        "JOIN offenses ON offenses.id = tickets.offense_id " +
+                        "WHERE tickets.pesel = ? AND tickets.cancelled_at IS NULL " +
+                        "ORDER BY tickets.issue_date DESC, tickets.id DESC LIMIT ?";
+
+        /**
+         * Zapytanie o kolejną stronę mandatów kierowcy, zaczynającą się za mandatem wskazanym przez kursor
+         */
+        final static String ticketsNextPageQuery =
+                "SELECT tickets.id, tickets.driver_name, offenses.name AS offense, tickets.fine_amount, tickets.penalty_points, tickets.issue_date " +
+                        "FROM tickets " +
+                        "JOIN driver ON driver.pesel = tickets.pesel " +
+                        "JOIN offenses ON offenses.id = tickets.offense_id " +
+                        "WHERE tickets.pesel = ? AND tickets.cancelled_at IS NULL AND (tickets.issue_date, tickets.id) < (?, ?) " +
+                        "ORDER BY tickets.issue_date DESC, tickets.id DESC LIMIT ?";
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             String method = exchange.getRequestMethod();
             String jsonResponse = null;
 
             if ("POST".equalsIgnoreCase(method)) {
-                // Odczytanie treści żądania POST
-                String requestBody = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))
-                        .lines().collect(Collectors.joining("\n"));
-                // Parsowanie JSON
-                Map<String, String> data = parseJson(requestBody);
+                // Odczytanie i parsowanie treści żądania POST
+                DriverRequest data;
+                try {
+                    JsonBodyReader reader = JsonBodyReader.of(exchange);
+                    data = DriverRequest.read(reader);
+                    reader.endDocument();
+                } catch (JsonBodyReader.BadRequestException e) {
+                    sendResponse(exchange, e.getStatus(), new JSONObject().put("message", e.getMessage()));
+                    return;
+                }
 
                 // Pobieranie akcji od Jsona
-                String action = data.get("action");
-                System.out.println("Wartość action: " + action);
+                String action = data.action();
+                Log.debug("Żądanie kierowcy", "action", action);
                 if ("login".equalsIgnoreCase(action)) {
-                    try (Connection connection = DriverManager.getConnection(dburl)) {
-                        if (connection != null) {
-                            // Wyszukiwanie użytkownika w bazie danych
-                            PreparedStatement pstmt = connection.prepareStatement("SELECT driver.id, driver.pesel, driver.password FROM driver WHERE driver.pesel = ?");
-                            pstmt.setString(1, data.get("pesel"));
-                            ResultSet rs = pstmt.executeQuery();
-
+                    if (throttled(exchange, "kierowca:" + data.pesel(),
+                            new JSONObject().put("message", "Zbyt wiele prób logowania, spróbuj ponownie później"))) {
+                        return;
+                    }
+                    long start = Metrics.now();
+                    try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                        // Wyszukiwanie użytkownika w bazie danych
+                        PreparedStatement pstmt = connection.prepare(driverLoginQuery);
+                        pstmt.setString(1, data.pesel());
+                        try (ResultSet rs = pstmt.executeQuery()) {
                             // Pobranie danych z bazy danych
                             if (rs.next()) {
                                 String passwordFromDb = rs.getString("password");
-                                if (passwordFromDb != null && passwordFromDb.equals(data.get("password"))) {
-                                    jsonResponse = "{ \"message\": \"Poprawnie zalogowano\" }";
-                                    System.out.println("Poprawnie zalogowano użytkownika:" + rs.getString("pesel"));
+                                if (passwordFromDb != null && passwordFromDb.equals(data.password())) {
+                                    // Kolejne żądania kierowcy są przypisywane do niego po tokenie sesji, a nie po peselu z treści żądania
+                                    jsonResponse = new JSONObject()
+                                            .put("message", "Poprawnie zalogowano")
+                                            .put("token", sessions.create(rs.getString("pesel")))
+                                            .toString();
+                                    Log.info("Poprawnie zalogowano kierowcę", "pesel", rs.getString("pesel"));
                                 } else {
                                     jsonResponse = "{ \"message\": \"Podano złe hasło lub użytkownik nie istnieje\" }";
-                                    System.out.println("Błedna próba zalogowania użytkowniaka (złe hasło):" + rs.getString("pesel"));
+                                    Log.info("Błędna próba zalogowania kierowcy: złe hasło", "pesel", rs.getString("pesel"));
                                 }
                             } else {
                                 jsonResponse = "{ \"message\": \"Podano złe hasło lub użytkownik nie istnieje\" }";
-                                System.out.println("Błedna próba zalogowania użytkowniaka (nie istnieje):" + rs.getString("pesel"));
+                                Log.info("Błędna próba zalogowania kierowcy: kierowca nie istnieje", "pesel", data.pesel());
                             }
                         }
                     } catch (SQLException e) {
-                        System.out.println("Błąd połączenia z bazą danych: " + e.getMessage());
+                        Log.error("Błąd połączenia z bazą danych", "error", e.getMessage());
                         jsonResponse = "{ \"message\": \"Błąd wewnętrzny serwera\" }";
                     }
+                    Metrics.jdbc(start);
                 } else if ("main_page".equalsIgnoreCase(action)) {
-                    // Odczytanie PESEL z treści żądania POST
-                    String pesel = data.get("pesel");
-
-                    try (Connection connection = DriverManager.getConnection(dburl)) {
-                        if (connection != null) {
-                            // Zapytanie o bilety dla kierowcy na podstawie PESEL
-                            PreparedStatement pstmt = connection.prepareStatement(
-                                    "SELECT tickets.driver_name, tickets.offense, tickets.fine_amount, tickets.penalty_points, tickets.issue_date " +
-                                            "FROM tickets " +
-                                            "JOIN driver ON driver.pesel = tickets.pesel " +
-                                            "WHERE driver.pesel = ?"
-                            );
-                            pstmt.setString(1, pesel);
-                            ResultSet rs = pstmt.executeQuery();
-
-                            // Tworzenie odpowiedzi JSON z danymi o biletach
-                            StringBuilder ticketsJson = new StringBuilder("[");
-                            boolean hasTickets = false;
-                            while (rs.next()) {
-                                hasTickets = true;
-                                ticketsJson.append("{")
-                                        .append("\"driver_name\":\"").append(rs.getString("driver_name")).append("\",")
-                                        .append("\"offense\":\"").append(rs.getString("offense")).append("\",")
-                                        .append("\"fine_amount\":\"").append(rs.getDouble("fine_amount")).append("\",")
-                                        .append("\"penalty_points\":\"").append(rs.getInt("penalty_points")).append("\",")
-                                        .append("\"issue_date\":\"").append(rs.getString("issue_date")).append("\"")
-                                        .append("},");
-                            }
-                            if (hasTickets) {
-                                ticketsJson.deleteCharAt(ticketsJson.length() - 1); // Usuwamy ostatni przecinek
-                            }
-                            ticketsJson.append("]");
-                            jsonResponse = ticketsJson.toString();
-                        }
+                    String pesel = sessions.resolve(data.token());
+                    if (pesel == null) {
+                        sendResponse(exchange, 401, new JSONObject().put("message", "Sesja wygasła, zaloguj się ponownie"));
+                        return;
+                    }
+                    // Mandaty są wysyłane strumieniowo, odpowiedź jest wysyłana w całości przez sendTicketsPage
+                    sendTicketsPage(exchange, pesel, data);
+                    return;
+                } else if ("points".equalsIgnoreCase(action)) {
+                    String pesel = sessions.resolve(data.token());
+                    if (pesel == null) {
+                        sendResponse(exchange, 401, new JSONObject().put("message", "Sesja wygasła, zaloguj się ponownie"));
+                        return;
+                    }
+                    long start = Metrics.now();
+                    try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                        int points = DriverPoints.get(connection, pesel);
+                        Metrics.jdbc(start);
+                        sendResponse(exchange, 200, new JSONObject().put("points", points).put("validity_days", points_validity_days));
                     } catch (SQLException e) {
-                        System.out.println("Błąd połączenia z bazą danych: " + e.getMessage());
-                        jsonResponse = "{ \"message\": \"Błąd wewnętrzny serwera\" }";
+                        Metrics.jdbc(start);
+                        Log.error("Błąd odczytu punktów karnych", "error", e.getMessage());
+                        sendResponse(exchange, 500, new JSONObject().put("message", "Błąd wewnętrzny serwera"));
                     }
+                    return;
+                } else if ("logout".equalsIgnoreCase(action)) {
+                    sessions.invalidate(data.token());
+                    jsonResponse = "{ \"message\": \"Wylogowano\" }";
                 } else {
                     jsonResponse = "{ \"message\": \"Podano złą metodę\" }";
                 }
@@ -242,39 +651,253 @@ public class Server {
 
 
         /**
-         * Metoda służaca zamiany zapytanie Json na Mapę Stringów
+         * Wysyła jedną stronę mandatów kierowcy, od najnowszych. Wiersze są przepisywane z ResultSet
+         * prosto do odpowiedzi wysyłanej kodowaniem chunked, więc zużycie pamięci nie zależy od liczby mandatów.
+         * Odpowiedź ma postać {"tickets": [...], "next_cursor": "..."}, a next_cursor przekazany w kolejnym
+         * żądaniu jako "cursor" zwraca następną stronę (null oznacza ostatnią stronę).
+         *
+         * @param exchange wymiana zawierająca żądanie od klienta i służąca do wysłania odpowiedzi
+         * @param pesel pesel kierowcy przypisanego do sesji
+         * @param data dane żądania: opcjonalnie limit i cursor
+         * @throws IOException wyrzcuca błąd IOException
+         */
+        private void sendTicketsPage(HttpExchange exchange, String pesel, DriverRequest data) throws IOException {
+            int limit = parseLimit(data.limit());
+            String[] cursor = decodeCursor(data.cursor());
+            if (data.cursor() != null && cursor == null) {
+                byte[] error = "{ \"message\": \"Niepoprawne zapytanie\" }".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(400, error.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(error);
+                }
+                return;
+            }
+
+            // Czas odczytu wierszy i ich serializacji jest liczony osobno, zapis odpowiedzi liczy strumień odpowiedzi
+            long phase = Metrics.now();
+            try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                // Zapytanie o mandaty kierowcy na podstawie PESEL, strona zaczyna się za kursorem
+                PreparedStatement pstmt;
+                if (cursor == null) {
+                    pstmt = connection.prepare(ticketsFirstPageQuery);
+                    pstmt.setString(1, pesel);
+                    pstmt.setInt(2, limit + 1);
+                } else {
+                    pstmt = connection.prepare(ticketsNextPageQuery);
+                    pstmt.setString(1, pesel);
+                    pstmt.setString(2, cursor[0]);
+                    pstmt.setLong(3, Long.parseLong(cursor[1]));
+                    pstmt.setInt(4, limit + 1);
+                }
+
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    phase = Metrics.jdbc(phase);
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, 0);
+
+                    try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                        out.write("{\"tickets\":[");
+                        int written = 0;
+                        String lastDate = null;
+                        long lastId = 0;
+                        boolean hasMore = false;
+                        while (true) {
+                            boolean hasRow = rs.next();
+                            phase = Metrics.jdbc(phase);
+                            if (!hasRow) {
+                                break;
+                            }
+                            // Wiersz ponad limit oznacza jedynie, że istnieje następna strona
+                            if (written == limit) {
+                                hasMore = true;
+                                break;
+                            }
+                            if (written > 0) {
+                                out.write(',');
+                            }
+                            lastId = rs.getLong("id");
+                            lastDate = rs.getString("issue_date");
+                            out.write("{\"id\":");
+                            out.write(Long.toString(lastId));
+                            out.write(",\"driver_name\":");
+                            JSONObject.quote(rs.getString("driver_name"), out);
+                            out.write(",\"offense\":");
+                            JSONObject.quote(rs.getString("offense"), out);
+                            out.write(",\"fine_amount\":");
+                            JSONObject.quote(Double.toString(rs.getDouble("fine_amount")), out);
+                            out.write(",\"penalty_points\":");
+                            JSONObject.quote(Integer.toString(rs.getInt("penalty_points")), out);
+                            out.write(",\"issue_date\":");
+                            JSONObject.quote(lastDate, out);
+                            out.write('}');
+                            written++;
+                            phase = Metrics.json(phase);
+                        }
+                        out.write("],\"next_cursor\":");
+                        if (hasMore) {
+                            JSONObject.quote(encodeCursor(lastDate, lastId), out);
+                        } else {
+                            out.write("null");
+                        }
+                        out.write('}');
+                        Metrics.json(phase);
+                    }
+                }
+            } catch (SQLException e) {
+                Log.error("Błąd połączenia z bazą danych", "error", e.getMessage());
+                if (exchange.getResponseCode() == -1) {
+                    byte[] error = "{ \"message\": \"Błąd wewnętrzny serwera\" }".getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(500, error.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(error);
+                    }
+                } else {
+                    // Nagłówki zostały już wysłane, zerwanie połączenia sygnalizuje klientowi niepełną odpowiedź
+                    exchange.close();
+                }
+            }
+        }
+
+        /**
+         * Odczytuje rozmiar strony z żądania.
+         *
+         * @param limit wartość pola limit lub null
+         * @return rozmiar strony ograniczony do przedziału 1..max_tickets_page_size
+         */
+        private int parseLimit(String limit) {
+            if (limit == null) {
+                return default_tickets_page_size;
+            }
+            try {
+                return Math.max(1, Math.min(max_tickets_page_size, Integer.parseInt(limit)));
+            } catch (NumberFormatException e) {
+                return default_tickets_page_size;
+            }
+        }
+
+        /**
+         * Koduje pozycję ostatniego wysłanego mandatu jako nieprzezroczysty kursor.
+         *
+         * @param issueDate data wystawienia ostatniego mandatu
+         * @param id id ostatniego mandatu
+         * @return kursor następnej strony
+         */
+        private String encodeCursor(String issueDate, long id) {
+            String value = issueDate + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Dekoduje kursor przesłany przez klienta.
+         *
+         * @param cursor kursor lub null
+         * @return tablica {data wystawienia, id} albo null, jeśli kursora brak lub jest niepoprawny
+         */
+        private String[] decodeCursor(String cursor) {
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = value.lastIndexOf('|');
+                if (separator < 0) {
+                    return null;
+                }
+                String id = value.substring(separator + 1);
+                Long.parseLong(id);
+                return new String[]{value.substring(0, separator), id};
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Żądanie kierowcy wysyłane na /api.
          *
-         * @param json zapytanie Json
-         * @return Mapa przekonwertowanego Jsona
+         * @param action akcja: login, main_page, points lub logout
+         * @param pesel pesel kierowcy, tylko dla akcji login
+         * @param password hasło kierowcy, tylko dla akcji login
+         * @param token token sesji zwrócony przy logowaniu, dla akcji main_page, points i logout
+         * @param limit rozmiar strony mandatów, tylko dla akcji main_page
+         * @param cursor kursor kolejnej strony mandatów, tylko dla akcji main_page
          */
-        private Map<String, String> parseJson(String json) {
-            Map<String, String> data = new HashMap<>();
-            json = json.replace("{", "").replace("}", "").replace("\"", "");
-            String[] pairs = json.split(",");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split(":");
-                data.put(keyValue[0].trim(), keyValue[1].trim());
+        record DriverRequest(String action, String pesel, String password, String token, String limit, String cursor) {
+
+            /**
+             * Odczytuje żądanie z parsera, pomijając nieznane pola.
+             *
+             * @param reader parser treści żądania
+             * @return odczytane żądanie
+             * @throws IOException jeśli treść nie jest poprawnym obiektem JSON
+             */
+            static DriverRequest read(JsonBodyReader reader) throws IOException {
+                String action = null, pesel = null, password = null, token = null, limit = null, cursor = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "action" -> action = reader.nextScalar();
+                        case "pesel" -> pesel = reader.nextScalar();
+                        case "password" -> password = reader.nextScalar();
+                        case "token" -> token = reader.nextScalar();
+                        case "limit" -> limit = reader.nextScalar();
+                        case "cursor" -> cursor = reader.nextScalar();
+                        default -> reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return new DriverRequest(action, pesel, password, token, limit, cursor);
             }
-            return data;
         }
     }
 
     /**
-     *  Funkcja czyta strumień i wstawia go do jednego Stringa
-     * @param inputStream strumień danych
-     * @return Zwraca string zbudowany z strumienia danych
-     * @throws IOException zwraca błąd IOEcxeption
+     * Pobiera żetony prób logowania dla adresu klienta i dla konta. Jeśli któryś limit jest wyczerpany,
+     * wysyła odpowiedź 429 z nagłówkiem Retry-After bez sięgania do bazy danych.
+     *
+     * @param exchange wymiana z żądaniem logowania
+     * @param account klucz konta, np. "kierowca:" i pesel
+     * @param rejection treść odpowiedzi dla odrzuconej próby
+     * @return true jeśli próba została odrzucona i odpowiedź jest już wysłana
+     * @throws IOException wyrzcuca błąd IOException
      */
+    static boolean throttled(HttpExchange exchange, String account, JSONObject rejection) throws IOException {
+        String address = exchange.getRemoteAddress().getAddress().getHostAddress();
+        long waitMillis = addressThrottle.acquire(address);
+        if (waitMillis == 0) {
+            waitMillis = accountThrottle.acquire(account);
+        }
+        if (waitMillis == 0) {
+            return false;
+        }
+        Log.info("Odrzucono próbę logowania z powodu limitu", "address", address, "account", account);
+        exchange.getResponseHeaders().set("Retry-After", Long.toString((waitMillis + 999) / 1000));
+        sendResponse(exchange, 429, rejection);
+        return true;
+    }
 
-    private static String readInputStream(InputStream inputStream) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                stringBuilder.append(line);
+    /**
+     * Sprawdza, czy wartość nagłówka If-None-Match wskazuje podany ETag.
+     *
+     * @param ifNoneMatch wartość nagłówka If-None-Match lub null
+     * @param etag aktualny ETag zasobu
+     * @return true jeśli klient ma aktualną wersję zasobu
+     */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
             }
         }
-        return stringBuilder.toString();
+        return false;
     }
 
     /**
@@ -282,6 +905,11 @@ public class Server {
      * Sprawdza, czy numer służbowy i hasło są zgodne z danymi w bazie danych.
      */
     static class LoginHandler implements HttpHandler {
+        /**
+         * Zapytanie sprawdzające dane logowania policjanta
+         */
+        final static String loginQuery = "SELECT * FROM users WHERE service_number = ? AND password = ?";
+
         /**
          * Obsługuje żądanie logowania. Odczytuje dane i sprawdza czy zgadzają się z tymi
          * w bazie danych i zwraca odpowiednią odpowiedź JSON.
@@ -291,188 +919,199 @@ public class Server {
          */
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            InputStream inputStream = exchange.getRequestBody();
-            String requestBody = readInputStream(inputStream);
-            System.out.println("Otrzymano żądanie logowania: " + requestBody);
-
-            LoginCredentials credentials = parseJson(requestBody);
-
-            String query = "SELECT * FROM users WHERE service_number = ? AND password = ?";
-
-            try (Connection connection = DriverManager.getConnection(dburl)) {
-                if (connection != null) {
-                    try (PreparedStatement statement = connection.prepareStatement(query)) {
-                        statement.setString(1, credentials.getServiceNumber());
-                        statement.setString(2, credentials.getPassword());
-
-                        try (ResultSet rs = statement.executeQuery()) {
-                            JSONObject jsonResponse = new JSONObject();
-
-                            if (rs.next()) {
-                                // Użytkownik znaleziony i dane logowania są poprawne
-                                jsonResponse.put("success", true);
-                                jsonResponse.put("message", "Zalogowano pomyślnie");
-                            } else {
-                                // Użytkownik nie znaleziony ale dane logowania są niepoprawne
-                                jsonResponse.put("success", false);
-                                jsonResponse.put("message", "Nieprawidłowe dane logowania");
-                            }
-
-                            exchange.getResponseHeaders().set("Content-Type", "application/json");
-                            // Wysyłanie odpowiedzi
-                            String response = jsonResponse.toString();
-                            exchange.sendResponseHeaders(200, response.getBytes().length);
+            LoginCredentials credentials;
+            try {
+                JsonBodyReader reader = JsonBodyReader.of(exchange);
+                credentials = LoginCredentials.read(reader);
+                reader.endDocument();
+            } catch (JsonBodyReader.BadRequestException e) {
+                sendResponse(exchange, e.getStatus(), new JSONObject().put("success", false).put("message", e.getMessage()));
+                return;
+            }
+            Log.debug("Otrzymano żądanie logowania", "serviceNumber", credentials.serviceNumber());
+            if (throttled(exchange, "policjant:" + credentials.serviceNumber(),
+                    new JSONObject().put("success", false).put("message", "Zbyt wiele prób logowania, spróbuj ponownie później"))) {
+                return;
+            }
 
-                            OutputStream os = exchange.getResponseBody();
-                            os.write(response.getBytes());
-                            os.close();
-                        }
-                    } catch (SQLException e) {
-                        System.out.println("Błąd podczas sprawdzania danych logowania: " + e.getMessage());
+            JSONObject jsonResponse = new JSONObject();
+            long start = Metrics.now();
+            try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                PreparedStatement statement = connection.prepare(loginQuery);
+                statement.setString(1, credentials.serviceNumber());
+                statement.setString(2, credentials.password());
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next()) {
+                        // Użytkownik znaleziony i dane logowania są poprawne
+                        jsonResponse.put("success", true);
+                        jsonResponse.put("message", "Zalogowano pomyślnie");
+                        // Token policjanta otwiera dostęp do danych kierowców, np. historii mandatu
+                        jsonResponse.put("token", officerSessions.create(credentials.serviceNumber()));
+                    } else {
+                        // Użytkownik nie znaleziony ale dane logowania są niepoprawne
+                        jsonResponse.put("success", false);
+                        jsonResponse.put("message", "Nieprawidłowe dane logowania");
                     }
                 }
             } catch (SQLException e) {
-                System.out.println("Błąd połączenia z bazą danych: " + e.getMessage());
+                // Także przekroczony czas oczekiwania na połączenie z puli, aplikacja nie może czekać na odpowiedź do swojego limitu
+                Metrics.jdbc(start);
+                Log.error("Błąd podczas sprawdzania danych logowania", "error", e.getMessage());
+                sendResponse(exchange, 500, new JSONObject().put("success", false).put("message", "Błąd wewnętrzny serwera"));
+                return;
             }
+            // Czas wysyłania odpowiedzi liczy TimedOutputStream, więc nie wlicza się do czasu bazy danych
+            Metrics.jdbc(start);
+            sendResponse(exchange, 200, jsonResponse);
         }
 
         /**
-         * Parsuje dane JSON i tworzy obiekt LoginCredentials.
+         * Dane logowania policjanta: numer służbowy i hasło.
          *
-         * @param json Ciało żądania w formacie JSON.
-         * @return Obiekt LoginCredentials zawierający dane logowania.
+         * @param serviceNumber Numer służbowy.
+         * @param password Hasło użytkownika.
          */
-        private LoginCredentials parseJson(String json) {
-            JSONObject jsonObject = new JSONObject(json);
-            String serviceNumber = jsonObject.getString("serviceNumber");
-            String password = jsonObject.getString("password");
-
-            LoginCredentials credentials = new LoginCredentials();
-            credentials.setServiceNumber(serviceNumber);
-            credentials.setPassword(password);
-
-            return credentials;
-        }
-
-        /**
-         * Klasa reprezentująca dane logowania użytkownika.
-         * Zawiera numer służbowy i hasło.
-         */
-        public static class LoginCredentials {
-            private String serviceNumber;
-            private String password;
-
-            /**
-             * Zwraca numer służbowy użytkownika.
-             *
-             * @return Numer służbowy.
-             */
-            public String getServiceNumber() {
-                return serviceNumber;
-            }
-
-            /**
-             * Ustawia numer służbowy użytkownika.
-             *
-             * @param serviceNumber Numer służbowy.
-             */
-            public void setServiceNumber(String serviceNumber) {
-                this.serviceNumber = serviceNumber;
-            }
-
-            /**
-             * Zwraca hasło użytkownika.
-             *
-             * @return Hasło użytkownika.
-             */
-            public String getPassword() {
-                return password;
-            }
+        record LoginCredentials(String serviceNumber, String password) {
 
             /**
-             * Ustawia hasło użytkownika.
+             * Odczytuje dane logowania z parsera, pomijając nieznane pola.
              *
-             * @param password Hasło użytkownika.
+             * @param reader parser treści żądania
+             * @return dane logowania
+             * @throws IOException jeśli treść nie jest poprawnym obiektem JSON lub brakuje pola
              */
-            public void setPassword(String password) {
-                this.password = password;
+            static LoginCredentials read(JsonBodyReader reader) throws IOException {
+                String serviceNumber = null, password = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "serviceNumber" -> serviceNumber = reader.nextScalar();
+                        case "password" -> password = reader.nextScalar();
+                        default -> reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (serviceNumber == null || password == null) {
+                    throw new JsonBodyReader.InvalidFieldException("Brak numeru służbowego lub hasła");
+                }
+                return new LoginCredentials(serviceNumber, password);
             }
         }
     }
 
     /**
-     * Obsługuje żądanie dotyczące pobrania wykroczeń z bazy danych.
-     * Wykonuje zapytanie do bazy danych, pobiera informacje o wykroczeniach i zwraca te dane w odpowiedzi w formacie JSON.
+     * Obsługuje żądanie dotyczące pobrania wykroczeń.
+     * Zwraca katalog wykroczeń z pamięci serwera w formacie JSON. Jeśli klient przesłał w nagłówku
+     * If-None-Match aktualny ETag katalogu, odpowiada kodem 304 bez treści.
      */
     public static class OffencesHandler implements HttpHandler {
 
         /**
-         * Obsługuje żądanie pobrania wykroczeń. Wykonuje zapytanie do bazy danych,
-         * aby uzyskać listę wykroczeń, a następnie zwraca ją w odpowiedzi w formacie JSON.
+         * Obsługuje żądanie pobrania wykroczeń. Pobiera katalog wykroczeń z pamięci
+         * (przy pierwszym żądaniu z bazy danych) i zwraca go w odpowiedzi w formacie JSON.
          *
          * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
          * @throws IOException Jeśli wystąpi błąd podczas przetwarzania żądania lub wysyłania odpowiedzi.
          */
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            InputStream inputStream = exchange.getRequestBody();
-            String requestBody = readInputStream(inputStream);
-
-            String query = "SELECT * FROM offenses";
-
-            JSONObject responseJson = new JSONObject();
-            JSONArray offencesArray = new JSONArray();
-
-            try (Connection connection = DriverManager.getConnection(dburl)) {
-                if (connection != null) {
-                    try (Statement stmt = connection.createStatement();
-                         ResultSet rs = stmt.executeQuery(query)) {
-
-                        while (rs.next()) {
-                            JSONObject offences = new JSONObject();
-                            offences.put("id", rs.getInt("id"));
-                            offences.put("name", rs.getString("name"));
-                            offences.put("penalty_points_min", rs.getInt("penalty_points_min"));
-                            offences.put("penalty_points_max", rs.getInt("penalty_points_max"));
-                            offences.put("fine_min", rs.getInt("fine_min"));
-                            offences.put("fine_max", rs.getInt("fine_max"));
-                            offences.put("is_recidivist", rs.getBoolean("is_recidivist"));
-
-                            offencesArray.put(offences);
-                        }
-
-                        responseJson.put("offences", offencesArray);
-
-                    } catch (SQLException e) {
-                        System.out.println("Błąd podczas ładowania wykroczeń: " + e.getMessage());
-                        exchange.sendResponseHeaders(500, 0);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write("{\"error\": \"Błąd podczas ładowania wykroczeń\"}".getBytes());
-                        os.close();
-                        return;
-                    }
-                }
+            OffenseCatalog.Snapshot catalog;
+            long start = Metrics.now();
+            try {
+                catalog = offenseCatalog.get();
+                Metrics.jdbc(start);
             } catch (SQLException e) {
-                System.out.println("Błąd połączenia z bazą danych: " + e.getMessage());
+                Log.error("Błąd podczas ładowania wykroczeń", "error", e.getMessage());
                 exchange.sendResponseHeaders(500, 0);
                 OutputStream os = exchange.getResponseBody();
-                os.write("{\"error\": \"Błąd połączenia z bazą danych\"}".getBytes());
+                os.write("{\"error\": \"Błąd podczas ładowania wykroczeń\"}".getBytes());
                 os.close();
                 return;
             }
 
+            exchange.getResponseHeaders().set("ETag", catalog.etag());
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+
+            // Klient ma aktualny katalog
+            if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), catalog.etag())) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
             // Wysyłanie poprawnej odpowiedzi HTTP 200
-            String response = responseJson.toString();
             exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, response.getBytes().length);
+            exchange.sendResponseHeaders(200, catalog.body().length);
 
             // Wysłanie odpowiedzi
             OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
+            os.write(catalog.body());
             os.close();
         }
     }
 
+    /**
+     * Unieważnia katalog wykroczeń trzymany w pamięci serwera po zmianie tabeli offenses.
+     * Przyjmuje żądania wyłącznie z komputera, na którym działa serwer.
+     */
+    static class InvalidateOffencesHandler implements HttpHandler {
+
+        /**
+         * Usuwa katalog wykroczeń z pamięci, następne żądanie /api/offences wczyta go z bazy danych.
+         *
+         * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
+         * @throws IOException Jeśli wystąpi błąd podczas wysyłania odpowiedzi.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                exchange.sendResponseHeaders(405, -1); // Metoda nieobsługiwana
+                return;
+            }
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            offenseCatalog.invalidate();
+            Log.info("Unieważniono katalog wykroczeń");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        }
+    }
+
+    /**
+     * Zwraca metryki serwera w formacie tekstowym Prometheusa. Metryki opisują stan wewnętrzny serwera,
+     * więc domyślnie są dostępne tylko z tego samego komputera, tak jak /api/offences/invalidate,
+     * a dla innych adresów po ustawieniu -Dmandaty.metrics.remote=true.
+     */
+    static class MetricsHandler implements HttpHandler {
+
+        /**
+         * Wysyła bieżące wartości wszystkich metryk.
+         *
+         * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
+         * @throws IOException Jeśli wystąpi błąd podczas wysyłania odpowiedzi.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(405, -1); // Metoda nieobsługiwana
+                return;
+            }
+            if (!metrics_remote && !exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            byte[] response = metrics.export().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        }
+    }
+
     /**
      * Obsługuje żądanie utworzenia nowego mandatu. Odczytuje dane z żądania w formacie JSON,
      * zapisuje te dane do bazy danych i zwraca odpowiedź z numerem wygenerowanego mandatu.
@@ -493,78 +1132,614 @@ public class Server {
                 return;
             }
 
-            InputStream inputStream = exchange.getRequestBody();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "utf-8"));
-            StringBuilder requestBody = new StringBuilder();
+            TicketRequest ticket;
+            try {
+                JsonBodyReader reader = JsonBodyReader.of(exchange);
+                ticket = TicketRequest.read(reader).withIdempotencyKey(idempotencyKey(exchange));
+                reader.endDocument();
+            } catch (JsonBodyReader.BadRequestException e) {
+                sendResponse(exchange, e.getStatus(), new JSONObject().put("success", false).put("message", e.getMessage()));
+                return;
+            }
+            TicketInsert insert;
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                requestBody.append(line);
+            IdempotencyCache.Entry<Integer> replayed = ticket.idempotencyKey() == null ? null : createKeys.get(ticket.idempotencyKey());
+            if (replayed != null) {
+                insert = replayed.matches(ticket.requestHash()) ? new TicketInsert(replayed.result(), null) : TicketInsert.conflicting();
+            } else {
+                TicketRequest checked;
+                try {
+                    checked = ticket.validate(offenseCatalog.get().rules(), offenseHistory);
+                } catch (JsonBodyReader.InvalidFieldException e) {
+                    sendResponse(exchange, e.getStatus(), new JSONObject().put("success", false).put("message", e.getMessage()));
+                    return;
+                } catch (SQLException e) {
+                    Log.error("Błąd podczas ładowania wykroczeń", "error", e.getMessage());
+                    sendResponse(exchange, 500, new JSONObject().put("success", false).put("message", "Błąd podczas ładowania wykroczeń"));
+                    return;
+                }
+                try {
+                    insert = writer.execute(connection -> insertTicket(connection, checked));
+                    committed(checked, insert);
+                } catch (SQLException e) {
+                    Log.error("Błąd zapisu mandatu", "error", e.getMessage());
+                    sendResponse(exchange, 200, new JSONObject().put("success", false));
+                    return;
+                }
+            }
+
+            // Przygotowanie odpowiedzi JSON
+            JSONObject jsonResponse = new JSONObject();
+            if (insert.ticketId() != -1) {
+                jsonResponse.put("success", true);
+                jsonResponse.put("ticketId", insert.ticketId());
+            } else {
+                jsonResponse.put("success", false);
+                jsonResponse.put("message", insert.error());
             }
-            reader.close();
+            sendResponse(exchange, insert.conflict() ? idempotency_conflict_status : 200, jsonResponse);
+        }
+    }
 
-            JSONObject jsonRequest = new JSONObject(requestBody.toString());
-            String driver = jsonRequest.getString("driver");
-            String pesel = jsonRequest.getString("pesel");
-            String offense = jsonRequest.getString("offense");
-            int fine = jsonRequest.getInt("fine");
-            int penaltyPoints = jsonRequest.getInt("penaltyPoints");
-            String serviceNumber = jsonRequest.getString("serviceNumber");
+    /**
+     * Zapytanie SQL do zapisania mandatu w bazie danych
+     */
+    final static String insertTicketQuery =
+            "INSERT INTO tickets (driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id, idempotency_key, request_hash) " +
+            "SELECT ?, ?, ?, ?, ?, id, ?, ? FROM users WHERE service_number = ? ON CONFLICT (idempotency_key) DO NOTHING " +
+            "RETURNING id, driver_name, fine_amount, penalty_points, issue_date";
 
-            // Zapytanie SQL do zapisania mandatu w bazie danych
-            String insertQuery = "INSERT INTO tickets (driver_name, pesel, offense, fine_amount, penalty_points, issued_by) VALUES (?, ?, ?, ?, ?, ?)";
-            int generatedTicketId = -1;
+    /**
+     * Zapytanie SQL o id i skrót treści mandatu zapisanego wcześniej z tym samym kluczem idempotentności
+     */
+    final static String ticketByKeyQuery = "SELECT id, request_hash FROM tickets WHERE idempotency_key = ?";
 
-            try (Connection connection = DriverManager.getConnection(dburl)) {
-                if (connection != null) {
-                    try (PreparedStatement stmt = connection.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS)) {
-                        stmt.setString(1, driver);
-                        stmt.setString(2, pesel);
-                        stmt.setString(3, offense);
-                        stmt.setInt(4, fine);
-                        stmt.setInt(5, penaltyPoints);
-                        stmt.setString(6, serviceNumber);
+    /**
+     * Podstawowy kod błędu SQLite naruszenia ograniczenia (SQLITE_CONSTRAINT), dotyczący tylko jednego wiersza
+     */
+    final static int sqlite_constraint = 19;
 
-                        int affectedRows = stmt.executeUpdate();
-                        if (affectedRows > 0) {
-                            ResultSet rs = stmt.getGeneratedKeys();
-                            if (rs.next()) {
-                                generatedTicketId = rs.getInt(1);
-                            }
+    /**
+     * Odpowiedź na mandat z numerem służbowym, którego nie ma w tabeli users
+     */
+    final static String unknown_officer = "Nieznany numer służbowy policjanta";
+
+    /**
+     * Odpowiedź na powtórzony klucz idempotentności z inną treścią żądania
+     */
+    final static String idempotency_conflict = "Klucz idempotentności został już użyty dla innego żądania";
+
+    /**
+     * Kod odpowiedzi na powtórzony klucz idempotentności z inną treścią żądania
+     */
+    final static int idempotency_conflict_status = 422;
+
+    /**
+     * Wynik zapisu jednego mandatu.
+     *
+     * @param ticketId id zapisanego lub wcześniej zapisanego mandatu, -1 jeśli mandat nie został zapisany
+     * @param error powód niezapisania mandatu albo null
+     * @param conflict true jeśli klucz idempotentności został już użyty dla innego mandatu
+     * @param stored wiersz listy mandatów odczytany z wstawionego wiersza, null jeśli w tym żądaniu nic nie wstawiono
+     */
+    record TicketInsert(int ticketId, String error, boolean conflict, JSONObject stored) {
+
+        TicketInsert(int ticketId, String error) {
+            this(ticketId, error, false, null);
+        }
+
+        /**
+         * @return wynik dla klucza idempotentności użytego wcześniej z inną treścią żądania
+         */
+        static TicketInsert conflicting() {
+            return new TicketInsert(-1, idempotency_conflict, true, null);
+        }
+    }
+
+    /**
+     * Nagłówek z kluczem idempotentności, alternatywa dla pola idempotencyKey w treści żądania
+     */
+    final static String idempotency_header = "Idempotency-Key";
+
+    /**
+     * Odczytuje klucz idempotentności z nagłówka żądania.
+     *
+     * @param exchange wymiana z żądaniem
+     * @return klucz albo null, jeśli żądanie go nie zawiera
+     * @throws JsonBodyReader.InvalidFieldException jeśli klucz jest za długi
+     */
+    static String idempotencyKey(HttpExchange exchange) throws JsonBodyReader.InvalidFieldException {
+        return checkIdempotencyKey(exchange.getRequestHeaders().getFirst(idempotency_header));
+    }
+
+    /**
+     * @param key klucz idempotentności przesłany przez klienta lub null
+     * @return klucz albo null, jeśli jest pusty
+     * @throws JsonBodyReader.InvalidFieldException jeśli klucz jest za długi
+     */
+    static String checkIdempotencyKey(String key) throws JsonBodyReader.InvalidFieldException {
+        if (key == null || key.isEmpty()) {
+            return null;
+        }
+        if (key.length() > IdempotencyCache.max_key_length) {
+            throw new JsonBodyReader.InvalidFieldException("Klucz idempotentności może mieć najwyżej " + IdempotencyCache.max_key_length + " znaków");
+        }
+        return key;
+    }
+
+    /**
+     * Przedrostek tokenu sesji policjanta w nagłówku Authorization
+     */
+    final static String bearer_prefix = "Bearer ";
+
+    /**
+     * Ustala policjanta na podstawie tokenu sesji z nagłówka "Authorization: Bearer ..." i przedłuża jego sesję.
+     *
+     * @param exchange wymiana z żądaniem
+     * @return numer służbowy policjanta albo null, jeśli żądanie nie ma ważnego tokenu policjanta
+     */
+    static String officer(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith(bearer_prefix)) {
+            return null;
+        }
+        return officerSessions.resolve(authorization.substring(bearer_prefix.length()));
+    }
+
+    /**
+     * Sprawdza, czy żądanie o dane kierowcy pochodzi od zalogowanego policjanta albo operatora łączącego się
+     * z tego samego komputera, a jeśli nie, odpowiada kodem 401.
+     *
+     * @param exchange wymiana z żądaniem
+     * @return true jeśli żądanie zostało odrzucone i handler powinien zakończyć obsługę
+     * @throws IOException jeśli nie uda się wysłać odpowiedzi
+     */
+    static boolean unauthorizedOfficer(HttpExchange exchange) throws IOException {
+        if (exchange.getRemoteAddress().getAddress().isLoopbackAddress() || officer(exchange) != null) {
+            return false;
+        }
+        sendResponse(exchange, 401, new JSONObject().put("success", false).put("message", "Wymagane zalogowanie policjanta"));
+        return true;
+    }
+
+    /**
+     * Format daty wystawienia mandatu zgodny z CURRENT_TIMESTAMP w SQLite
+     */
+    private final static DateTimeFormatter issue_date_format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    /**
+     * Zapamiętuje zatwierdzony mandat: id pod kluczem idempotentności, a jeśli mandat został wstawiony w tym żądaniu,
+     * także wykroczenie w historii kierowcy, i wysyła zapisany wiersz do otwartych strumieni kierowcy.
+     * Mandat odczytany z bazy jako powtórzenie nie jest ponownie dodawany do historii ani publikowany.
+     */
+    static void committed(TicketRequest ticket, TicketInsert insert) {
+        if (insert.ticketId() == -1) {
+            return;
+        }
+        if (ticket.idempotencyKey() != null) {
+            createKeys.put(ticket.idempotencyKey(), ticket.requestHash(), insert.ticketId());
+        }
+        JSONObject stored = insert.stored();
+        if (stored == null) {
+            return;
+        }
+        String issueDate = stored.getString("issue_date");
+        offenseHistory.add(ticket.pesel(), insert.ticketId(), ticket.offenseId(), issue_date_format.parse(issueDate, Instant::from).getEpochSecond());
+        ticketFeed.publish(ticket.pesel(), "ticket", insert.ticketId(), stored);
+    }
+
+    /**
+     * Dane mandatu przesyłane przez aplikację policjanta do /api/createTicket i /api/createTickets.
+     *
+     * @param driver imię i nazwisko kierowcy
+     * @param pesel pesel kierowcy
+     * @param offenseId id wykroczenia, 0 jeśli klient przesłał tylko nazwę
+     * @param offense nazwa wykroczenia, przesyłana przez starsze wersje aplikacji zamiast id
+     * @param fine kwota mandatu
+     * @param penaltyPoints liczba punktów karnych
+     * @param serviceNumber numer służbowy wystawiającego policjanta
+     * @param idempotencyKey klucz nadany mandatowi przez aplikację, taki sam przy każdym ponowieniu, lub null
+     * @param requestHash skrót pól mandatu w postaci przesłanej przez klienta, porównywany przy powtórzeniu klucza
+     */
+    record TicketRequest(String driver, String pesel, int offenseId, String offense, int fine, int penaltyPoints, String serviceNumber,
+                         String idempotencyKey, String requestHash) {
+
+        /**
+         * Poprawny pesel: dokładnie 11 cyfr
+         */
+        private final static Pattern pesel_format = Pattern.compile("[0-9]{11}");
+
+        /**
+         * Odczytuje jeden mandat z parsera, pomijając nieznane pola. Liczby są przyjmowane
+         * zarówno jako liczby JSON, jak i napisy.
+         *
+         * @param reader parser ustawiony na początku obiektu mandatu
+         * @return dane mandatu
+         * @throws JsonBodyReader.InvalidFieldException jeśli obiekt jest poprawny, ale brakuje pola lub ma ono zły typ
+         * @throws IOException jeśli treść nie jest poprawnym JSON
+         */
+        static TicketRequest read(JsonBodyReader reader) throws IOException {
+            String driver = null, pesel = null, offenseId = null, offense = null, fine = null, penaltyPoints = null, serviceNumber = null,
+                    idempotencyKey = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "driver" -> driver = reader.nextScalar();
+                    case "pesel" -> pesel = reader.nextScalar();
+                    case "offenseId" -> offenseId = reader.nextScalar();
+                    case "offense" -> offense = reader.nextScalar();
+                    case "fine" -> fine = reader.nextScalar();
+                    case "penaltyPoints" -> penaltyPoints = reader.nextScalar();
+                    case "serviceNumber" -> serviceNumber = reader.nextScalar();
+                    case "idempotencyKey" -> idempotencyKey = reader.nextScalar();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (driver == null || pesel == null || (offenseId == null && offense == null) || serviceNumber == null) {
+                throw new JsonBodyReader.InvalidFieldException("Brak wymaganego pola mandatu");
+            }
+            return new TicketRequest(driver, pesel, offenseId == null ? 0 : parseInt("offenseId", offenseId), offense,
+                    parseInt("fine", fine), parseInt("penaltyPoints", penaltyPoints), serviceNumber, checkIdempotencyKey(idempotencyKey),
+                    IdempotencyCache.requestHash(driver, pesel, offenseId, offense, fine, penaltyPoints, serviceNumber));
+        }
+
+        /**
+         * Sprawdza mandat według reguł wykroczeń. Reguła jest wyszukiwana po id, a gdy klient przesłał tylko nazwę, po nazwie.
+         * Podwojona kwota jest dozwolona tylko wtedy, gdy historia wykroczeń potwierdza recydywę kierowcy.
+         *
+         * @param rules reguły aktywnych wykroczeń
+         * @param history ostatnie wykroczenia kierowców
+         * @return mandat z ustalonym id wykroczenia
+         * @throws JsonBodyReader.InvalidFieldException jeśli pesel nie ma 11 cyfr, wykroczenie nie istnieje albo kwota lub punkty są poza widełkami
+         */
+        TicketRequest validate(OffenseRules rules, OffenseHistory history) throws JsonBodyReader.InvalidFieldException {
+            if (!pesel_format.matcher(pesel).matches()) {
+                throw new JsonBodyReader.InvalidFieldException("Pesel powinien zawierać 11 cyfr");
+            }
+            OffenseRules.Rule rule = offenseId != 0 ? rules.get(offenseId) : rules.get(offense);
+            if (rule == null) {
+                throw new JsonBodyReader.InvalidFieldException("Nieznane wykroczenie");
+            }
+            boolean repeat = rule.recidivist() && history.lastOffense(pesel, rule.id()) != null;
+            if (!rule.allowsFine(fine, repeat)) {
+                throw new JsonBodyReader.InvalidFieldException("Wysokość mandatu musi się zawierać pomiędzy " + rule.fineMin() + " a " + rule.fineMax()
+                        + (repeat ? " (dla recydywisty " + 2 * rule.fineMin() + " a " + 2 * rule.fineMax() + ")" : ""));
+            }
+            if (!rule.allowsPenaltyPoints(penaltyPoints)) {
+                throw new JsonBodyReader.InvalidFieldException("Ilość punktów karnych musi się zawierać pomiędzy "
+                        + rule.penaltyPointsMin() + " a " + rule.penaltyPointsMax());
+            }
+            return new TicketRequest(driver, pesel, rule.id(), rule.name(), fine, penaltyPoints, serviceNumber, idempotencyKey, requestHash);
+        }
+
+        /**
+         * @param headerKey klucz z nagłówka Idempotency-Key lub null
+         * @return mandat z kluczem z nagłówka, jeśli treść żądania nie zawierała własnego klucza
+         */
+        TicketRequest withIdempotencyKey(String headerKey) {
+            if (idempotencyKey != null || headerKey == null) {
+                return this;
+            }
+            return new TicketRequest(driver, pesel, offenseId, offense, fine, penaltyPoints, serviceNumber, headerKey, requestHash);
+        }
+
+        private static int parseInt(String name, String value) throws JsonBodyReader.InvalidFieldException {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new JsonBodyReader.InvalidFieldException("Pole " + name + " musi być liczbą całkowitą");
+            }
+        }
+    }
+
+    /**
+     * Zapisuje jeden mandat przy użyciu przygotowanego zapytania insertTicketQuery w transakcji wątku zapisującego.
+     * Id policjanta jest ustalane w tym samym zapytaniu na podstawie numeru służbowego.
+     * Jeśli mandat z tym samym kluczem idempotentności jest już w bazie, nic nie jest zapisywane
+     * i zwracane jest id wcześniej zapisanego mandatu, o ile zgadza się skrót treści żądania.
+     * Tylko nowo wstawiony mandat ma wypełnione {@link TicketInsert#stored()}, z datą wystawienia nadaną przez bazę.
+     *
+     * @param connection połączenie wątku zapisującego
+     * @param ticket dane mandatu sprawdzone przez {@link TicketRequest#validate(OffenseRules, OffenseHistory)}
+     * @return id mandatu albo błąd: nieznany numer służbowy lub klucz idempotentności użyty dla innego mandatu
+     * @throws SQLException jeśli zapis się nie powiedzie
+     */
+    static TicketInsert insertTicket(ConnectionPool.PooledConnection connection, TicketRequest ticket) throws SQLException {
+        PreparedStatement stmt = connection.prepare(insertTicketQuery);
+        stmt.setString(1, ticket.driver());
+        stmt.setString(2, ticket.pesel());
+        stmt.setInt(3, ticket.offenseId());
+        stmt.setInt(4, ticket.fine());
+        stmt.setInt(5, ticket.penaltyPoints());
+        stmt.setString(6, ticket.idempotencyKey());
+        stmt.setString(7, ticket.idempotencyKey() == null ? null : ticket.requestHash());
+        stmt.setString(8, ticket.serviceNumber());
+
+        try (ResultSet rs = stmt.executeQuery()) {
+            if (rs.next()) {
+                int ticketId = rs.getInt("id");
+                return new TicketInsert(ticketId, null, false, new JSONObject()
+                        .put("id", ticketId)
+                        .put("driver_name", rs.getString("driver_name"))
+                        .put("offense", ticket.offense())
+                        .put("fine_amount", Double.toString(rs.getDouble("fine_amount")))
+                        .put("penalty_points", Integer.toString(rs.getInt("penalty_points")))
+                        .put("issue_date", rs.getString("issue_date")));
+            }
+        }
+        if (ticket.idempotencyKey() != null) {
+            // Powtórzenie, którego klucza nie ma już w pamięci: wynik pierwszego zapisu jest odczytywany z bazy
+            PreparedStatement existing = connection.prepare(ticketByKeyQuery);
+            existing.setString(1, ticket.idempotencyKey());
+            try (ResultSet rs = existing.executeQuery()) {
+                if (rs.next()) {
+                    String storedHash = rs.getString("request_hash");
+                    if (storedHash != null && !storedHash.equals(ticket.requestHash())) {
+                        return TicketInsert.conflicting();
+                    }
+                    return new TicketInsert(rs.getInt("id"), null);
+                }
+            }
+        }
+        return new TicketInsert(-1, unknown_officer);
+    }
+
+    /**
+     * Obsługuje żądanie utworzenia wielu mandatów naraz, np. z punktu kontroli lub importu z fotoradarów.
+     * Wszystkie mandaty są zapisywane jednym przygotowanym zapytaniem w jednej transakcji,
+     * a odpowiedź zawiera ID albo błąd dla każdego mandatu z osobna.
+     */
+    public static class CreateTicketsHandler implements HttpHandler {
+
+        /**
+         * Maksymalna liczba mandatów w jednym żądaniu
+         */
+        private final static int max_batch_size = 500;
+
+        /**
+         * Maksymalny rozmiar treści żądania z partią mandatów w bajtach
+         */
+        private final static int max_batch_body = 1024 * 1024;
+
+        /**
+         * Obsługuje żądanie {"tickets": [...]}, gdzie każdy element ma te same pola co żądanie /api/createTicket.
+         * Odpowiada {"success": true, "results": [...]}, gdzie każdy wynik zawiera ticketId albo error,
+         * w kolejności mandatów z żądania. Błąd ma pole retryable: false dla mandatu, którego serwer nigdy nie przyjmie,
+         * np. niepoprawnych danych lub naruszenia ograniczenia bazy danych. Przejściowy błąd zapisu, np. brak miejsca
+         * na dysku, wycofuje całą transakcję, więc serwer odpowiada kodem 500 dla całej partii i nic z niej nie zapisuje.
+         *
+         * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
+         * @throws IOException Jeśli wystąpi błąd podczas odczytu danych wejściowych lub wysyłania odpowiedzi.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                exchange.sendResponseHeaders(405, -1); // Metoda nieobsługiwana
+                return;
+            }
+
+            // Mandat z brakującym lub niepoprawnym polem nie przerywa odczytu partii, trafia do wyników jako błąd
+            List<TicketRequest> tickets = new ArrayList<>();
+            List<String> invalid = new ArrayList<>();
+            try {
+                JsonBodyReader reader = JsonBodyReader.of(exchange, max_batch_body);
+                boolean found = false;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals("tickets")) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    found = true;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (tickets.size() == max_batch_size) {
+                            throw new JsonBodyReader.BadRequestException(400, "Maksymalnie " + max_batch_size + " mandatów w jednym zapytaniu");
+                        }
+                        try {
+                            tickets.add(TicketRequest.read(reader));
+                            invalid.add(null);
+                        } catch (JsonBodyReader.InvalidFieldException e) {
+                            tickets.add(null);
+                            invalid.add(e.getMessage());
                         }
-                    } catch (SQLException e) {
-                        System.out.println("Błąd SQL: " + e.getMessage());
                     }
+                    reader.endArray();
+                }
+                reader.endObject();
+                reader.endDocument();
+                if (!found) {
+                    throw new JsonBodyReader.BadRequestException(400, "Brak tablicy tickets");
                 }
+            } catch (JsonBodyReader.BadRequestException e) {
+                sendResponse(exchange, e.getStatus(), new JSONObject().put("success", false).put("message", e.getMessage()));
+                return;
+            }
+
+            // Mandaty są sprawdzane według reguł wykroczeń przed przekazaniem partii do wątku zapisującego
+            OffenseRules rules;
+            try {
+                rules = offenseCatalog.get().rules();
             } catch (SQLException e) {
-                System.out.println("Błąd połączenia z bazą danych: " + e.getMessage());
+                Log.error("Błąd podczas ładowania wykroczeń", "error", e.getMessage());
+                sendResponse(exchange, 500, new JSONObject().put("success", false).put("message", "Błąd podczas ładowania wykroczeń"));
+                return;
+            }
+            // Mandaty powtórzone z kluczem idempotentności dostają id z pamięci bez sprawdzania i zapisu
+            Integer[] replayed = new Integer[tickets.size()];
+            boolean[] conflicts = new boolean[tickets.size()];
+            for (int i = 0; i < tickets.size(); i++) {
+                TicketRequest ticket = tickets.get(i);
+                if (ticket == null) {
+                    continue;
+                }
+                IdempotencyCache.Entry<Integer> entry = ticket.idempotencyKey() == null ? null : createKeys.get(ticket.idempotencyKey());
+                if (entry != null) {
+                    if (entry.matches(ticket.requestHash())) {
+                        replayed[i] = entry.result();
+                    } else {
+                        tickets.set(i, null);
+                        conflicts[i] = true;
+                    }
+                    continue;
+                }
+                try {
+                    tickets.set(i, ticket.validate(rules, offenseHistory));
+                } catch (JsonBodyReader.InvalidFieldException e) {
+                    tickets.set(i, null);
+                    invalid.set(i, e.getMessage());
+                }
             }
 
-            // Przygotowanie odpowiedzi JSON
-            JSONObject jsonResponse = new JSONObject();
-            if (generatedTicketId != -1) {
-                jsonResponse.put("success", true);
-                jsonResponse.put("ticketId", generatedTicketId);
-            } else {
-                jsonResponse.put("success", false);
+            JSONArray results;
+            TicketInsert[] inserts = new TicketInsert[tickets.size()];
+            try {
+                // Cała partia jest jednym poleceniem wątku zapisującego, więc trafia do jednej transakcji
+                results = writer.execute(connection -> {
+                    JSONArray batchResults = new JSONArray();
+                    for (int i = 0; i < tickets.size(); i++) {
+                        JSONObject result = new JSONObject();
+                        if (tickets.get(i) == null) {
+                            result.put("error", conflicts[i] ? idempotency_conflict : "Niepoprawne dane mandatu: " + invalid.get(i));
+                            result.put("retryable", false);
+                            batchResults.put(result);
+                            continue;
+                        }
+                        if (replayed[i] != null) {
+                            batchResults.put(result.put("ticketId", replayed[i]));
+                            continue;
+                        }
+                        // Każdy mandat ma własny punkt zapisu, więc odrzucony wiersz wycofuje tylko swoje zmiany
+                        Savepoint savepoint = connection.getConnection().setSavepoint();
+                        try {
+                            TicketInsert insert = insertTicket(connection, tickets.get(i));
+                            connection.getConnection().releaseSavepoint(savepoint);
+                            inserts[i] = insert;
+                            if (insert.ticketId() != -1) {
+                                result.put("ticketId", insert.ticketId());
+                            } else {
+                                result.put("error", insert.error());
+                                result.put("retryable", false);
+                            }
+                        } catch (SQLException e) {
+                            if ((e.getErrorCode() & 0xff) != sqlite_constraint) {
+                                // Inne błędy (np. SQLITE_FULL, SQLITE_IOERR) mogą wycofać całą transakcję,
+                                // więc cała partia kończy się błędem zamiast zapisywać resztę mandatów poza nią
+                                throw e;
+                            }
+                            connection.getConnection().rollback(savepoint);
+                            connection.getConnection().releaseSavepoint(savepoint);
+                            result.put("error", "Błąd zapisu mandatu");
+                            result.put("retryable", false);
+                            Log.warn("Mandat z partii naruszył ograniczenie bazy danych", "error", e.getMessage());
+                        }
+                        batchResults.put(result);
+                    }
+                    return batchResults;
+                });
+            } catch (SQLException e) {
+                Log.error("Błąd zapisu mandatów", "tickets", tickets.size(), "error", e.getMessage());
+                sendResponse(exchange, 500, new JSONObject().put("success", false).put("message", "Błąd zapisu mandatów"));
+                return;
+            }
+            // Mandaty są zapamiętywane dopiero po zatwierdzeniu transakcji, aby nie zwrócić id wycofanego mandatu
+            for (int i = 0; i < tickets.size(); i++) {
+                if (inserts[i] != null) {
+                    committed(tickets.get(i), inserts[i]);
+                }
             }
 
-            // Wysłanie odpowiedzi
-            String response = jsonResponse.toString();
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            sendResponse(exchange, 200, new JSONObject().put("success", true).put("results", results));
+        }
+    }
+
+    /**
+     * Wysyła odpowiedź JSON o podanym kodzie.
+     *
+     * @param exchange wymiana, na którą wysyłana jest odpowiedź
+     * @param status kod odpowiedzi http
+     * @param json treść odpowiedzi
+     * @throws IOException jeśli nie uda się wysłać odpowiedzi
+     */
+    static void sendResponse(HttpExchange exchange, int status, JSONObject json) throws IOException {
+        long start = Metrics.now();
+        byte[] bs = json.toString().getBytes(StandardCharsets.UTF_8);
+        Metrics.json(start);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bs.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bs);
         }
     }
 
     /**
      * Obsługuje anulowanie mandatu na podstawie podanego ID. Odczytuje dane z żądania i
-     * wykonuje zapytanie SQL aby usunąć mandat z bazy danych i zwraca odpowiedź JSON
+     * wykonuje zapytanie SQL oznaczające mandat jako anulowany i zwraca odpowiedź JSON
      * wskazującą, czy operacja anulowania zakończyła się powodzeniem.
+     * Wiersz mandatu zostaje w tabeli tickets z ustawionym cancelled_at, a wyzwalacz dopisuje zdarzenie anulowania
+     * do dziennika, więc anulowanie jest zmianą jednego wiersza zamiast usunięcia. Wiersz usuwa później TicketEvents.compact.
      */
     public static class CancelTicketHandler implements HttpHandler {
+        /**
+         * Zapytanie SQL do anulowania mandatu w bazie danych, nie zmienia mandatu już anulowanego
+         */
+        final static String cancelQuery =
+                "UPDATE tickets SET cancelled_at = CURRENT_TIMESTAMP WHERE id = ? AND cancelled_at IS NULL RETURNING pesel";
+
+        /**
+         * Wynik anulowania mandatu.
+         *
+         * @param success true jeśli mandat został anulowany
+         * @param pesel pesel kierowcy anulowanego mandatu, null jeśli nic nie zostało anulowane w tym żądaniu
+         * @param conflict true jeśli klucz idempotentności został już użyty do anulowania innego mandatu
+         */
+        record Cancellation(boolean success, String pesel, boolean conflict) {
+        }
+
+        /**
+         * Zapytanie SQL o wynik i mandat anulowania wykonanego wcześniej z tym samym kluczem idempotentności
+         */
+        final static String cancellationByKeyQuery = "SELECT success, ticket_id FROM ticket_cancellations WHERE idempotency_key = ?";
+
+        /**
+         * Zapytanie SQL zapisujące wynik anulowania pod kluczem idempotentności
+         */
+        final static String insertCancellationQuery = "INSERT INTO ticket_cancellations (idempotency_key, ticket_id, success) VALUES (?, ?, ?)";
+
+        /**
+         * Żądanie anulowania mandatu.
+         *
+         * @param ticketId id anulowanego mandatu
+         * @param idempotencyKey klucz nadany anulowaniu przez aplikację, taki sam przy każdym ponowieniu, lub null
+         */
+        record CancelRequest(int ticketId, String idempotencyKey) {
+
+            /**
+             * Odczytuje żądanie z parsera, pomijając nieznane pola.
+             *
+             * @param reader parser treści żądania
+             * @return żądanie anulowania
+             * @throws IOException jeśli treść nie jest poprawnym obiektem JSON lub brakuje poprawnego ticketId
+             */
+            static CancelRequest read(JsonBodyReader reader) throws IOException {
+                String ticketId = null, idempotencyKey = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "ticketId" -> ticketId = reader.nextScalar();
+                        case "idempotencyKey" -> idempotencyKey = reader.nextScalar();
+                        default -> reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                try {
+                    return new CancelRequest(Integer.parseInt(ticketId), checkIdempotencyKey(idempotencyKey));
+                } catch (NumberFormatException e) {
+                    throw new JsonBodyReader.InvalidFieldException("Pole ticketId musi być liczbą całkowitą");
+                }
+            }
+        }
 
         /**
          * Obsługuje żądanie anulowania mandatu.
@@ -588,41 +1763,55 @@ public class Server {
                 return;
             }
 
-            StringBuilder requestBody = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "utf-8"))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    requestBody.append(line);
-                }
+            int ticketId;
+            String key;
+            try {
+                JsonBodyReader reader = JsonBodyReader.of(exchange);
+                CancelRequest request = CancelRequest.read(reader);
+                reader.endDocument();
+                ticketId = request.ticketId();
+                key = request.idempotencyKey() != null ? request.idempotencyKey() : idempotencyKey(exchange);
+            } catch (JsonBodyReader.BadRequestException e) {
+                sendResponse(exchange, e.getStatus(), new JSONObject().put("success", false).put("message", e.getMessage()));
+                return;
             }
-            //System.out.println("Received request body: " + requestBody);
-
-            JSONObject jsonRequest = new JSONObject(requestBody.toString());
-            int ticketId = jsonRequest.getInt("ticketId");
 
-            // Zapytanie SQL do anulowania mandatu w bazie danych
-            String deleteQuery = "DELETE FROM tickets WHERE id = ?";
             boolean success = false;
-
-            try (Connection connection = DriverManager.getConnection(dburl)) {
-                if (connection != null) {
-                    try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-                        stmt.setInt(1, ticketId);
-                        int affectedRows = stmt.executeUpdate();
-                        System.out.println("Rows deleted: " + affectedRows);
-                        if (affectedRows > 0) {
-                            success = true; // Mandat został anulowany
-                        }
-                    } catch (SQLException e) {
-                        System.out.println("SQL error: " + e.getMessage());
+            boolean conflict = false;
+
+            // Anulowanie rozpoznaje się po id mandatu, więc skrótem treści jest skrót samego ticketId
+            String requestHash = IdempotencyCache.requestHash(ticketId);
+            IdempotencyCache.Entry<Boolean> replayed = key == null ? null : cancelKeys.get(key);
+            if (replayed != null) {
+                conflict = !replayed.matches(requestHash);
+                success = !conflict && replayed.result();
+            } else {
+                try {
+                    Cancellation cancellation = writer.execute(connection -> cancelTicket(connection, ticketId, key));
+                    success = cancellation.success();
+                    conflict = cancellation.conflict();
+                    if (key != null && !conflict) {
+                        cancelKeys.put(key, requestHash, success);
                     }
+                    if (cancellation.pesel() != null) {
+                        offenseHistory.remove(cancellation.pesel(), ticketId);
+                        ticketFeed.publish(cancellation.pesel(), "cancel", ticketId, new JSONObject().put("id", ticketId));
+                    }
+                } catch (SQLException e) {
+                    // Przejściowy błąd zapisu nie jest odpowiedzią "mandat nie istnieje" ani nie trafia do cancelKeys,
+                    // więc ponowione żądanie z tym samym kluczem zostanie wykonane
+                    Log.error("Błąd anulowania mandatu", "ticketId", ticketId, "error", e.getMessage());
+                    sendResponse(exchange, 500, new JSONObject().put("success", false).put("message", "Błąd anulowania mandatu"));
+                    return;
                 }
-            } catch (SQLException e) {
-                System.out.println("Database connection error: " + e.getMessage());
             }
 
             // Przygotowanie odpowiedzi JSON
             JSONObject jsonResponse = new JSONObject();
+            if (conflict) {
+                sendResponse(exchange, idempotency_conflict_status, jsonResponse.put("success", false).put("message", idempotency_conflict));
+                return;
+            }
             if (success) {
                 jsonResponse.put("success", true);
                 jsonResponse.put("message", "Mandat został anulowany.");
@@ -641,11 +1830,317 @@ public class Server {
 
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(bs);
-                System.out.println("Response sent successfully.");
             } catch (IOException e) {
-                System.out.println("Error while writing response: " + e.getMessage());
+                Log.warn("Błąd wysyłania odpowiedzi", "error", e.getMessage());
                 exchange.sendResponseHeaders(500, -1);
             }
         }
+
+        /**
+         * Anuluje mandat w transakcji wątku zapisującego. Wynik anulowania z kluczem idempotentności jest zapisywany
+         * w tej samej transakcji, więc powtórzone żądanie dostaje ten sam wynik, nawet jeśli mandat został już anulowany.
+         * Klucz użyty wcześniej do anulowania innego mandatu daje konflikt i niczego nie anuluje.
+         *
+         * @param connection połączenie wątku zapisującego
+         * @param ticketId id anulowanego mandatu
+         * @param key klucz idempotentności lub null
+         * @return wynik anulowania razem z peselem kierowcy anulowanego mandatu
+         * @throws SQLException jeśli zapytanie się nie powiedzie
+         */
+        static Cancellation cancelTicket(ConnectionPool.PooledConnection connection, int ticketId, String key) throws SQLException {
+            if (key != null) {
+                PreparedStatement previous = connection.prepare(cancellationByKeyQuery);
+                previous.setString(1, key);
+                try (ResultSet rs = previous.executeQuery()) {
+                    if (rs.next()) {
+                        if (rs.getInt("ticket_id") != ticketId) {
+                            return new Cancellation(false, null, true);
+                        }
+                        return new Cancellation(rs.getBoolean("success"), null, false);
+                    }
+                }
+            }
+
+            PreparedStatement stmt = connection.prepare(cancelQuery);
+            stmt.setInt(1, ticketId);
+            String pesel = null;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    pesel = rs.getString(1);
+                }
+            }
+            boolean success = pesel != null;
+            Log.debug("Anulowanie mandatu", "ticketId", ticketId, "success", success);
+
+            if (key != null) {
+                PreparedStatement record = connection.prepare(insertCancellationQuery);
+                record.setString(1, key);
+                record.setInt(2, ticketId);
+                record.setBoolean(3, success);
+                record.executeUpdate();
+            }
+            return new Cancellation(success, pesel, false);
+        }
+    }
+
+    /**
+     * Obsługuje pytanie aplikacji policjanta, czy kierowca popełnił to samo wykroczenie w okresie recydywy.
+     * Odpowiedź pochodzi z historii wykroczeń w pamięci serwera, bez zapytania do bazy danych,
+     * więc aplikacja może pytać w trakcie wypełniania formularza. Odpowiedź zdradza historię kierowcy,
+     * więc handler jest dostępny tylko dla zalogowanego policjanta, tak jak /api/ticketHistory.
+     */
+    public static class RepeatOffenseHandler implements HttpHandler {
+
+        /**
+         * Pytanie o recydywę.
+         *
+         * @param pesel pesel kierowcy
+         * @param offenseId id wykroczenia
+         */
+        record RepeatOffenseRequest(String pesel, int offenseId) {
+
+            /**
+             * Odczytuje pytanie z parsera, pomijając nieznane pola.
+             *
+             * @param reader parser treści żądania
+             * @return pytanie o recydywę
+             * @throws IOException jeśli treść nie jest poprawnym obiektem JSON lub brakuje peselu albo poprawnego offenseId
+             */
+            static RepeatOffenseRequest read(JsonBodyReader reader) throws IOException {
+                String pesel = null, offenseId = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "pesel" -> pesel = reader.nextScalar();
+                        case "offenseId" -> offenseId = reader.nextScalar();
+                        default -> reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (pesel == null) {
+                    throw new JsonBodyReader.InvalidFieldException("Brak peselu kierowcy");
+                }
+                try {
+                    return new RepeatOffenseRequest(pesel, Integer.parseInt(offenseId));
+                } catch (NumberFormatException e) {
+                    throw new JsonBodyReader.InvalidFieldException("Pole offenseId musi być liczbą całkowitą");
+                }
+            }
+        }
+
+        /**
+         * Obsługuje żądanie {"pesel": ..., "offenseId": ...}. Odpowiada {"repeat": true, "lastIssued": ...}
+         * z chwilą wystawienia poprzedniego mandatu albo {"repeat": false}.
+         *
+         * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
+         * @throws IOException Jeśli wystąpi błąd podczas odczytu danych wejściowych lub wysyłania odpowiedzi.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                exchange.sendResponseHeaders(405, -1); // Metoda nieobsługiwana
+                return;
+            }
+
+            if (unauthorizedOfficer(exchange)) {
+                return;
+            }
+
+            RepeatOffenseRequest request;
+            try {
+                JsonBodyReader reader = JsonBodyReader.of(exchange);
+                request = RepeatOffenseRequest.read(reader);
+                reader.endDocument();
+            } catch (JsonBodyReader.BadRequestException e) {
+                sendResponse(exchange, e.getStatus(), new JSONObject().put("success", false).put("message", e.getMessage()));
+                return;
+            }
+
+            OffenseHistory.Entry last = offenseHistory.lastOffense(request.pesel(), request.offenseId());
+            JSONObject jsonResponse = new JSONObject().put("repeat", last != null);
+            if (last != null) {
+                jsonResponse.put("lastIssued", Instant.ofEpochSecond(last.issued()).toString());
+            }
+            sendResponse(exchange, 200, jsonResponse);
+        }
+    }
+
+    /**
+     * Obsługuje pytanie o historię mandatu: odtwarza mandat z dziennika zdarzeń do podanej chwili,
+     * także mandat anulowany i usunięty już z tabeli tickets przez kompaktowanie.
+     * Odpowiedź zawiera dane osobowe kierowcy, więc handler jest dostępny tylko dla zalogowanego policjanta
+     * albo operatora łączącego się z tego samego komputera, tak jak /api/offences/invalidate.
+     */
+    public static class TicketHistoryHandler implements HttpHandler {
+
+        /**
+         * Format chwili, do której odtwarzany jest mandat, zgodny z CURRENT_TIMESTAMP w SQLite
+         */
+        private final static Pattern as_of_format = Pattern.compile("\\d{4}-\\d{2}-\\d{2}( \\d{2}:\\d{2}:\\d{2})?");
+
+        /**
+         * Pytanie o historię mandatu.
+         *
+         * @param ticketId id mandatu
+         * @param asOf chwila, do której brane są zdarzenia, lub null dla stanu bieżącego
+         */
+        record TicketHistoryRequest(int ticketId, String asOf) {
+
+            /**
+             * Odczytuje pytanie z parsera, pomijając nieznane pola.
+             *
+             * @param reader parser treści żądania
+             * @return pytanie o historię mandatu
+             * @throws IOException jeśli treść nie jest poprawnym obiektem JSON, brakuje poprawnego ticketId lub asOf ma zły format
+             */
+            static TicketHistoryRequest read(JsonBodyReader reader) throws IOException {
+                String ticketId = null, asOf = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "ticketId" -> ticketId = reader.nextScalar();
+                        case "asOf" -> asOf = reader.nextScalar();
+                        default -> reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (asOf != null && !as_of_format.matcher(asOf).matches()) {
+                    throw new JsonBodyReader.InvalidFieldException("Pole asOf musi mieć format yyyy-MM-dd HH:mm:ss");
+                }
+                try {
+                    return new TicketHistoryRequest(Integer.parseInt(ticketId), asOf);
+                } catch (NumberFormatException e) {
+                    throw new JsonBodyReader.InvalidFieldException("Pole ticketId musi być liczbą całkowitą");
+                }
+            }
+        }
+
+        /**
+         * Obsługuje żądanie {"ticketId": ..., "asOf": ...}. Odpowiada stanem mandatu w podanej chwili
+         * (domyślnie teraz) i listą jego zdarzeń do tej chwili.
+         *
+         * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
+         * @throws IOException Jeśli wystąpi błąd podczas odczytu danych wejściowych lub wysyłania odpowiedzi.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                exchange.sendResponseHeaders(405, -1); // Metoda nieobsługiwana
+                return;
+            }
+
+            if (unauthorizedOfficer(exchange)) {
+                return;
+            }
+
+            TicketHistoryRequest request;
+            try {
+                JsonBodyReader reader = JsonBodyReader.of(exchange);
+                request = TicketHistoryRequest.read(reader);
+                reader.endDocument();
+            } catch (JsonBodyReader.BadRequestException e) {
+                sendResponse(exchange, e.getStatus(), new JSONObject().put("success", false).put("message", e.getMessage()));
+                return;
+            }
+
+            // Chwila bez godziny obejmuje cały podany dzień
+            String asOf = request.asOf() == null ? "9999-12-31 23:59:59"
+                    : request.asOf().length() == 10 ? request.asOf() + " 23:59:59" : request.asOf();
+            try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                sendResponse(exchange, 200, TicketEvents.replay(connection, request.ticketId(), asOf));
+            } catch (SQLException e) {
+                Log.error("Błąd odczytu historii mandatu", "ticketId", request.ticketId(), "error", e.getMessage());
+                sendResponse(exchange, 500, new JSONObject().put("success", false).put("message", "Błąd wewnętrzny serwera"));
+            }
+        }
+    }
+
+    /**
+     * Sprawdza i przywraca tabelę tickets na podstawie dziennika zdarzeń. Dostępny tylko z tego samego komputera,
+     * tak jak /api/offences/invalidate: GET zwraca wynik porównania bez zmian w bazie, POST przywraca tabelę.
+     */
+    static class RestoreTicketsHandler implements HttpHandler {
+
+        /**
+         * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
+         * @throws IOException Jeśli wystąpi błąd podczas wysyłania odpowiedzi.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            boolean restore = exchange.getRequestMethod().equalsIgnoreCase("POST");
+            if (!restore && !exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(405, -1); // Metoda nieobsługiwana
+                return;
+            }
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            try {
+                if (!restore) {
+                    try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                        sendResponse(exchange, 200, TicketEvents.verify(connection));
+                    }
+                    return;
+                }
+                JSONObject result = ticketEvents.restore();
+                // Przywrócone mandaty trafiają też do historii wykroczeń w pamięci, która pomija mandaty już wczytane
+                try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+                    offenseHistory.load(connection);
+                }
+                sendResponse(exchange, 200, result);
+            } catch (SQLException e) {
+                Log.error("Błąd przywracania mandatów z dziennika zdarzeń", "error", e.getMessage());
+                sendResponse(exchange, 500, new JSONObject().put("success", false).put("message", "Błąd wewnętrzny serwera"));
+            }
+        }
+    }
+
+    /**
+     * Obsługuje strumień zmian mandatów (Server-Sent Events) dla strony kierowcy. Przeglądarka łączy się przez
+     * EventSource z tokenem sesji w parametrze token, bo EventSource nie wysyła treści żądania ani własnych nagłówków.
+     * Handler wysyła nagłówki i przekazuje wymianę do rejestru strumieni, więc wątek żądania jest zwalniany od razu.
+     */
+    public static class TicketFeedHandler implements HttpHandler {
+
+        /**
+         * Obsługuje żądanie GET /api/ticketFeed?token=... Odpowiada strumieniem text/event-stream ze zdarzeniami
+         * "ticket" (nowy mandat) i "cancel" (anulowany mandat) albo kodem 401 przy nieważnej sesji.
+         *
+         * @param exchange Obiekt HttpExchange zawierający informacje o żądaniu i odpowiedzi.
+         * @throws IOException Jeśli wystąpi błąd podczas wysyłania odpowiedzi.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(405, -1); // Metoda nieobsługiwana
+                return;
+            }
+
+            String token = null;
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    if (parameter.startsWith("token=")) {
+                        token = URLDecoder.decode(parameter.substring("token=".length()), StandardCharsets.UTF_8);
+                    }
+                }
+            }
+            String pesel = sessions.resolve(token);
+            if (pesel == null) {
+                sendResponse(exchange, 401, new JSONObject().put("message", "Sesja wygasła, zaloguj się ponownie"));
+                return;
+            }
+            if (ticketFeed.isFull(pesel)) {
+                exchange.getResponseHeaders().set("Retry-After", "30");
+                sendResponse(exchange, 503, new JSONObject().put("message", "Zbyt wiele otwartych strumieni"));
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            ticketFeed.subscribe(pesel, token, exchange);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sesje kierowców trzymane w pamięci serwera. Po poprawnym logowaniu kierowca dostaje nieprzezroczysty
+ * token, a kolejne żądania są przypisywane do kierowcy jednym odczytem z mapy, bez zapytania do bazy.
+ * Sesja wygasa po okresie bezczynności. Wygasłe sesje są usuwane przez koło czasowe: każda sesja
+ * jest zapisana w przegródce odpowiadającej chwili jej wygaśnięcia, a co takt przeglądana jest tylko
+ * jedna przegródka zamiast wszystkich sesji.
+ * Serwer trzyma w osobnym magazynie także sesje policjantów, w których zamiast peselu zapisany jest numer służbowy.
+ */
+public class SessionStore {
+
+    /**
+     * Sesja kierowcy.
+     */
+    private static final class Session {
+        final String pesel;
+
+        /**
+         * Numer taktu, w którym sesja wygasa, przesuwany przy każdym użyciu sesji
+         */
+        volatile long expiryTick;
+
+        Session(String pesel, long expiryTick) {
+            this.pesel = pesel;
+            this.expiryTick = expiryTick;
+        }
+    }
+
+    private final static SecureRandom random = new SecureRandom();
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Przegródki koła czasowego z tokenami sesji wygasających w danym takcie
+     */
+    private final Queue<String>[] wheel;
+
+    private final long tickMillis;
+    private final long ttlTicks;
+
+    /**
+     * Numer ostatniego przetworzonego taktu
+     */
+    private long processedTick;
+
+    private final ScheduledExecutorService expiry;
+
+    /**
+     * Tworzy magazyn sesji i uruchamia wątek usuwający wygasłe sesje.
+     *
+     * @param ttlSeconds czas bezczynności, po którym sesja wygasa, w sekundach
+     * @param tickSeconds dokładność wygasania sesji w sekundach
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SessionStore(long ttlSeconds, long tickSeconds) {
+        this.tickMillis = TimeUnit.SECONDS.toMillis(tickSeconds);
+        this.ttlTicks = (ttlSeconds + tickSeconds - 1) / tickSeconds;
+        // Koło obejmuje cały czas życia sesji, więc żadna sesja nie wygasa dalej niż jeden obrót
+        this.wheel = new Queue[(int) ttlTicks + 2];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.processedTick = currentTick();
+        this.expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.expiry.scheduleWithFixedDelay(this::expire, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tworzy sesję kierowcy.
+     *
+     * @param pesel pesel zalogowanego kierowcy
+     * @return token sesji
+     */
+    public String create(String pesel) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        long expiryTick = currentTick() + ttlTicks;
+        sessions.put(token, new Session(pesel, expiryTick));
+        wheel[slot(expiryTick)].add(token);
+        return token;
+    }
+
+    /**
+     * Zwraca kierowcę przypisanego do tokenu i przedłuża jego sesję.
+     *
+     * @param token token sesji lub null
+     * @return pesel kierowcy albo null, jeśli sesja nie istnieje lub wygasła
+     */
+    public String resolve(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = currentTick();
+        if (session.expiryTick <= now) {
+            return null;
+        }
+        // Sesja zostaje w swojej przegródce, przy jej przeglądaniu zostanie przeniesiona na nowy takt wygaśnięcia
+        session.expiryTick = now + ttlTicks;
+        return session.pesel;
+    }
+
+    /**
+     * Sprawdza, czy sesja jest ważna, bez przedłużania jej, np. dla otwartego strumienia zdarzeń.
+     *
+     * @param token token sesji lub null
+     * @return true jeśli sesja istnieje i nie wygasła
+     */
+    public boolean isActive(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        return session != null && session.expiryTick > currentTick();
+    }
+
+    /**
+     * Kończy sesję, np. przy wylogowaniu.
+     *
+     * @param token token sesji
+     */
+    public void invalidate(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    /**
+     * @return liczba sesji w pamięci, łącznie z wygasłymi i jeszcze nieusuniętymi
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Przegląda przegródki taktów, które minęły od ostatniego przeglądania. Wygasłe sesje są usuwane,
+     * a sesje przedłużone w międzyczasie trafiają do przegródki swojego nowego taktu wygaśnięcia.
+     */
+    private void expire() {
+        long now = currentTick();
+        while (processedTick < now) {
+            processedTick++;
+            Queue<String> bucket = wheel[slot(processedTick)];
+            for (int i = bucket.size(); i > 0; i--) {
+                String token = bucket.poll();
+                if (token == null) {
+                    break;
+                }
+                Session session = sessions.get(token);
+                if (session == null) {
+                    continue;
+                }
+                long expiryTick = session.expiryTick;
+                if (expiryTick <= processedTick) {
+                    sessions.remove(token, session);
+                } else {
+                    wheel[slot(expiryTick)].add(token);
+                }
+            }
+        }
+    }
+
+    /**
+     * Zatrzymuje wątek usuwający wygasłe sesje.
+     */
+    public void close() {
+        expiry.shutdownNow();
+    }
+
+    private long currentTick() {
+        return System.currentTimeMillis() / tickMillis;
+    }
+
+    private int slot(long tick) {
+        return (int) (tick % wheel.length);
+    }
+}
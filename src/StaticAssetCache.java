@@ -0,0 +1,266 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Pamięć podręczna plików statycznych aplikacji klienta.
+ * Wszystkie pliki są wczytywane do pamięci przy starcie razem z typem MIME i wersją skompresowaną gzipem,
+ * a osobny wątek obserwuje katalog i wczytuje ponownie tylko zmienione pliki.
+ */
+public class StaticAssetCache {
+
+    /**
+     * Format daty używany w nagłówkach Last-Modified i If-Modified-Since
+     */
+    static final DateTimeFormatter httpDate = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    /**
+     * Typy MIME dla rozszerzeń, których system nie rozpoznaje
+     */
+    private static final Map<String, String> mimeTypes = Map.of(
+            "html", "text/html",
+            "css", "text/css",
+            "js", "text/javascript",
+            "map", "application/json",
+            "json", "application/json",
+            "png", "image/png",
+            "ico", "image/x-icon",
+            "svg", "image/svg+xml"
+    );
+
+    /**
+     * Plik statyczny przygotowany do wysłania.
+     *
+     * @param raw treść pliku
+     * @param gzip treść skompresowana gzipem lub null, jeśli kompresja się nie opłaca
+     * @param contentType wartość nagłówka Content-Type
+     * @param etag ETag treści w cudzysłowach
+     * @param lastModified czas ostatniej modyfikacji pliku z dokładnością do sekundy
+     */
+    public record Asset(byte[] raw, byte[] gzip, String contentType, String etag, Instant lastModified) {
+
+        /**
+         * @return ETag wersji skompresowanej gzipem.
+         */
+        public String gzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gz\"";
+        }
+
+        /**
+         * @return czas ostatniej modyfikacji w formacie nagłówka http.
+         */
+        public String lastModifiedHeader() {
+            return httpDate.format(lastModified);
+        }
+    }
+
+    /**
+     * Katalog główny klienta
+     */
+    private final Path root;
+
+    /**
+     * Pliki w pamięci według ścieżki żądania, np. /css/style.css
+     */
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+
+    /**
+     * Konstruktor wczytujący wszystkie pliki z katalogu klienta.
+     *
+     * @param basePath ścieżka do katalogu głównego klienta
+     * @throws IOException jeśli nie uda się odczytać katalogu
+     */
+    public StaticAssetCache(String basePath) throws IOException {
+        this.root = Paths.get(basePath).toAbsolutePath().normalize();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && !isHidden(file)) {
+                    load(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Zwraca plik dla ścieżki żądania.
+     *
+     * @param requestPath ścieżka żądania, np. /html/index.html
+     * @return plik lub null, jeśli nie istnieje
+     */
+    public Asset get(String requestPath) {
+        return assets.get(requestPath);
+    }
+
+    /**
+     * @return liczba plików w pamięci.
+     */
+    public int size() {
+        return assets.size();
+    }
+
+    /**
+     * Uruchamia wątek, który wczytuje ponownie pliki zmienione na dysku.
+     *
+     * @throws IOException jeśli nie uda się zarejestrować obserwacji katalogów
+     */
+    public void watch() throws IOException {
+        WatchService watchService = root.getFileSystem().newWatchService();
+        registerTree(watchService, root);
+        Thread watcher = new Thread(() -> watchLoop(watchService), "static-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Obsługuje zdarzenia zmian plików do czasu zamknięcia obserwacji.
+     *
+     * @param watchService usługa obserwacji katalogów
+     */
+    private void watchLoop(WatchService watchService) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    continue;
+                }
+                Path file = dir.resolve((Path) event.context());
+                if (isHidden(file)) {
+                    continue;
+                }
+                try {
+                    if (event.kind() == ENTRY_DELETE) {
+                        assets.remove(requestPath(file));
+                    } else if (Files.isDirectory(file)) {
+                        registerTree(watchService, file);
+                    } else if (Files.isRegularFile(file)) {
+                        load(file);
+                    }
+                } catch (IOException e) {
+                    Log.warn("Błąd odświeżania pliku", "file", file.toString(), "error", e.getMessage());
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Rejestruje obserwację katalogu i wszystkich jego podkatalogów, wczytując znalezione w nich pliki.
+     *
+     * @param watchService usługa obserwacji katalogów
+     * @param dir katalog do obserwacji
+     * @throws IOException jeśli nie uda się zarejestrować katalogu
+     */
+    private void registerTree(WatchService watchService, Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                if (isHidden(d)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                d.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root) && !isHidden(file)) {
+                    load(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Wczytuje plik do pamięci razem z wersją skompresowaną.
+     *
+     * @param file plik do wczytania
+     * @throws IOException jeśli nie uda się odczytać pliku
+     */
+    private void load(Path file) throws IOException {
+        byte[] raw = Files.readAllBytes(file);
+        Instant lastModified = Files.getLastModifiedTime(file).toInstant().truncatedTo(ChronoUnit.SECONDS);
+        String mime = mimeType(file);
+        byte[] gzip = isCompressible(mime) ? gzip(raw) : null;
+        if (gzip != null && gzip.length >= raw.length) {
+            gzip = null;
+        }
+        String contentType = mime.startsWith("text/") || mime.equals("application/json") ? mime + "; charset=UTF-8" : mime;
+        assets.put(requestPath(file), new Asset(raw, gzip, contentType, OffenseCatalog.etag(raw), lastModified));
+    }
+
+    /**
+     * @param file plik w katalogu klienta
+     * @return ścieżka żądania odpowiadająca plikowi
+     */
+    private String requestPath(Path file) {
+        return "/" + root.relativize(file.toAbsolutePath().normalize()).toString().replace('\\', '/');
+    }
+
+    /**
+     * @param file plik lub katalog w katalogu klienta
+     * @return true jeśli plik leży w katalogu ukrytym, np. .idea
+     */
+    private boolean isHidden(Path file) {
+        Path relative = root.relativize(file.toAbsolutePath().normalize());
+        for (Path part : relative) {
+            if (part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ustala typ MIME pliku.
+     *
+     * @param file plik
+     * @return typ MIME, domyślnie application/octet-stream
+     */
+    private static String mimeType(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        String mime = mimeTypes.get(extension);
+        if (mime == null) {
+            mime = Files.probeContentType(file);
+        }
+        return mime != null ? mime : "application/octet-stream";
+    }
+
+    /**
+     * @param mime typ MIME
+     * @return true jeśli treść tego typu dobrze się kompresuje
+     */
+    private static boolean isCompressible(String mime) {
+        return mime.startsWith("text/") || mime.equals("application/json") || mime.equals("image/svg+xml");
+    }
+
+    /**
+     * @param raw dane do skompresowania
+     * @return dane skompresowane gzipem
+     */
+    private static byte[] gzip(byte[] raw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(raw);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,266 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dziennik zdarzeń mandatów w tabeli ticket_events.
+ * Handlery nadal zapisują mandaty w tabeli tickets, a wyzwalacze na tickets dopisują do dziennika zdarzenie wystawienia
+ * i anulowania w tej samej transakcji co zmiana mandatu. Wyzwalacze na samym dzienniku nie pozwalają zmieniać
+ * ani usuwać zdarzeń, więc dziennik jest pełną historią, a tickets jej bieżącym widokiem: anulowanie nie usuwa wiersza,
+ * tylko ustawia cancelled_at. Anulowane mandaty są usuwane z tickets okresowo przez wątek zapisujący, małymi partiami,
+ * po upływie okresu przechowywania, a ich historia zostaje w dzienniku.
+ * Stan mandatu w dowolnej chwili odtwarza się z jego zdarzeń do tej chwili ({@link #replay}). {@link #verify} porównuje
+ * tabelę tickets ze zdarzeniami, a {@link #restore} przywraca w tickets wiersze zgubione lub zmienione poza handlerami.
+ */
+public final class TicketEvents {
+
+    /**
+     * Zapytanie o zdarzenia mandatu do podanej chwili, w kolejności dopisania
+     */
+    static final String historyQuery =
+            "SELECT ticket_events.seq, ticket_events.type, ticket_events.occurred, ticket_events.driver_name, ticket_events.pesel, " +
+                    "offenses.name AS offense, ticket_events.fine_amount, ticket_events.penalty_points, users.service_number " +
+                    "FROM ticket_events " +
+                    "LEFT JOIN offenses ON offenses.id = ticket_events.offense_id " +
+                    "LEFT JOIN users ON users.id = ticket_events.officer_id " +
+                    "WHERE ticket_events.ticket_id = ? AND ticket_events.occurred <= ? " +
+                    "ORDER BY ticket_events.seq";
+
+    /**
+     * Zapytanie usuwające z tickets partię mandatów anulowanych przed podaną chwilą
+     */
+    static final String compactQuery =
+            "DELETE FROM tickets WHERE id IN (SELECT id FROM tickets WHERE cancelled_at <= datetime('now', ?) LIMIT ?)";
+
+    /**
+     * Warunek na wiersz tickets, który nie zgadza się ze zdarzeniami swojego mandatu: inne dane niż w zdarzeniu
+     * wystawienia albo inna chwila anulowania niż w zdarzeniu anulowania
+     */
+    private static final String mismatchedCondition =
+            "EXISTS (SELECT 1 FROM ticket_events e WHERE e.ticket_id = tickets.id AND e.type = 'issued' AND (" +
+                    "tickets.driver_name IS NOT e.driver_name OR tickets.pesel IS NOT e.pesel OR tickets.offense_id IS NOT e.offense_id " +
+                    "OR tickets.fine_amount IS NOT e.fine_amount OR tickets.penalty_points IS NOT e.penalty_points " +
+                    "OR tickets.officer_id IS NOT e.officer_id OR tickets.issue_date IS NOT e.occurred " +
+                    "OR tickets.cancelled_at IS NOT (SELECT MIN(c.occurred) FROM ticket_events c WHERE c.ticket_id = tickets.id AND c.type = 'cancelled')))";
+
+    /**
+     * Warunek na zdarzenie wystawienia mandatu, który nie został anulowany, a nie ma go w tickets.
+     * Brak anulowanego mandatu jest zgodny ze zdarzeniami, bo usuwa go kompaktowanie
+     */
+    private static final String missingCondition =
+            "e.type = 'issued' AND NOT EXISTS (SELECT 1 FROM tickets WHERE tickets.id = e.ticket_id) " +
+                    "AND NOT EXISTS (SELECT 1 FROM ticket_events c WHERE c.ticket_id = e.ticket_id AND c.type = 'cancelled')";
+
+    /**
+     * Zapytania o liczbę mandatów niezgodnych ze zdarzeniami, brakujących w tickets i zapisanych w tickets bez zdarzenia
+     */
+    static final String mismatchedQuery = "SELECT COUNT(*) FROM tickets WHERE " + mismatchedCondition;
+    static final String missingQuery = "SELECT COUNT(*) FROM ticket_events e WHERE " + missingCondition;
+    static final String orphanedQuery =
+            "SELECT COUNT(*) FROM tickets WHERE NOT EXISTS (SELECT 1 FROM ticket_events e WHERE e.ticket_id = tickets.id AND e.type = 'issued')";
+
+    /**
+     * Zapytanie nadpisujące niezgodne wiersze tickets danymi ze zdarzeń
+     */
+    static final String repairQuery =
+            "UPDATE tickets SET (driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id, issue_date) = " +
+                    "(SELECT e.driver_name, e.pesel, e.offense_id, e.fine_amount, e.penalty_points, e.officer_id, e.occurred " +
+                    "FROM ticket_events e WHERE e.ticket_id = tickets.id AND e.type = 'issued'), " +
+                    "cancelled_at = (SELECT MIN(c.occurred) FROM ticket_events c WHERE c.ticket_id = tickets.id AND c.type = 'cancelled') " +
+                    "WHERE " + mismatchedCondition;
+
+    /**
+     * Zapytanie przywracające brakujące mandaty z ich zdarzeń wystawienia, z tym samym id.
+     * Klucz idempotentności nie jest zapisywany w dzienniku, więc przywrócony mandat go nie ma
+     */
+    static final String restoreQuery =
+            "INSERT INTO tickets (id, driver_name, pesel, offense_id, fine_amount, penalty_points, officer_id, issue_date) " +
+                    "SELECT e.ticket_id, e.driver_name, e.pesel, e.offense_id, e.fine_amount, e.penalty_points, e.officer_id, e.occurred " +
+                    "FROM ticket_events e WHERE " + missingCondition;
+
+    /**
+     * Zapytania przeliczające sumy punktów kierowców od nowa z tabeli tickets, po naprawie tabeli
+     */
+    static final String recountPointsQuery =
+            "UPDATE driver_points SET points = (SELECT COALESCE(SUM(tickets.penalty_points), 0) FROM tickets " +
+                    "WHERE tickets.pesel = driver_points.pesel AND tickets.cancelled_at IS NULL " +
+                    "AND tickets.issue_date > (SELECT cutoff FROM points_window WHERE id = 1))";
+    static final String missingPointsQuery =
+            "INSERT INTO driver_points (pesel, points) SELECT pesel, SUM(penalty_points) FROM tickets " +
+                    "WHERE cancelled_at IS NULL AND issue_date > (SELECT cutoff FROM points_window WHERE id = 1) " +
+                    "GROUP BY pesel ON CONFLICT (pesel) DO NOTHING";
+
+    /**
+     * Liczba mandatów usuwanych w jednej transakcji, aby kompaktowanie nie wstrzymywało zapisów mandatów
+     */
+    private final static int compact_batch = 500;
+
+    private final TicketWriter writer;
+
+    /**
+     * Okres przechowywania anulowanych mandatów w tabeli tickets w dniach
+     */
+    private final int retentionDays;
+
+    private final ScheduledExecutorService compaction;
+
+    private final AtomicLong compacted = new AtomicLong();
+
+    /**
+     * Uruchamia wątek okresowo zlecający kompaktowanie tabeli tickets.
+     *
+     * @param writer wątek zapisujący, w którym wykonywane jest kompaktowanie
+     * @param retentionDays okres przechowywania anulowanych mandatów w tabeli tickets w dniach
+     * @param intervalSeconds odstęp między kolejnymi kompaktowaniami w sekundach
+     */
+    public TicketEvents(TicketWriter writer, int retentionDays, long intervalSeconds) {
+        this.writer = writer;
+        this.retentionDays = retentionDays;
+        this.compaction = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tickets-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compaction.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (SQLException e) {
+                Log.error("Błąd kompaktowania mandatów", "error", e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Usuwa z tabeli tickets mandaty anulowane dawniej niż okres przechowywania. Każda partia jest osobnym
+     * poleceniem wątku zapisującego, więc zapisy mandatów czekają najwyżej na jedną partię.
+     * Zdarzenia usuniętych mandatów zostają w dzienniku.
+     *
+     * @return liczba usuniętych mandatów
+     * @throws SQLException jeśli transakcja się nie powiedzie
+     */
+    public int compact() throws SQLException {
+        int removed = 0;
+        int batch;
+        do {
+            batch = writer.execute(connection -> {
+                PreparedStatement stmt = connection.prepare(compactQuery);
+                stmt.setString(1, "-" + retentionDays + " days");
+                stmt.setInt(2, compact_batch);
+                return stmt.executeUpdate();
+            });
+            removed += batch;
+        } while (batch == compact_batch);
+        if (removed > 0) {
+            compacted.addAndGet(removed);
+            Log.info("Usunięto anulowane mandaty z tabeli tickets", "tickets", removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Odtwarza mandat ze zdarzeń do podanej chwili.
+     *
+     * @param connection połączenie z puli
+     * @param ticketId id mandatu
+     * @param asOf chwila w formacie "yyyy-MM-dd HH:mm:ss" (UTC), do której brane są zdarzenia
+     * @return {"ticketId", "asOf", "status", "events"} ze stanem "issued", "cancelled" lub "unknown", jeśli mandatu
+     *         w tej chwili jeszcze nie było, oraz danymi mandatu ze zdarzenia wystawienia
+     * @throws SQLException jeśli zapytanie się nie powiedzie
+     */
+    public static JSONObject replay(ConnectionPool.PooledConnection connection, int ticketId, String asOf) throws SQLException {
+        JSONObject ticket = new JSONObject().put("ticketId", ticketId).put("asOf", asOf).put("status", "unknown");
+        JSONArray events = new JSONArray();
+        PreparedStatement stmt = connection.prepare(historyQuery);
+        stmt.setInt(1, ticketId);
+        stmt.setString(2, asOf);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                String type = rs.getString("type");
+                events.put(new JSONObject()
+                        .put("seq", rs.getLong("seq"))
+                        .put("type", type)
+                        .put("occurred", rs.getString("occurred")));
+                ticket.put("status", type);
+                if ("issued".equals(type)) {
+                    ticket.put("driver_name", rs.getString("driver_name"));
+                    ticket.put("pesel", rs.getString("pesel"));
+                    ticket.put("offense", rs.getString("offense"));
+                    ticket.put("fine_amount", rs.getDouble("fine_amount"));
+                    ticket.put("penalty_points", rs.getInt("penalty_points"));
+                    ticket.put("serviceNumber", rs.getString("service_number"));
+                    ticket.put("issue_date", rs.getString("occurred"));
+                }
+            }
+        }
+        return ticket.put("events", events);
+    }
+
+    /**
+     * Porównuje tabelę tickets ze zdarzeniami w dzienniku.
+     *
+     * @param connection połączenie z puli
+     * @return {"mismatched", "missing", "orphaned"}: liczba wierszy innych niż w zdarzeniach, liczba nieanulowanych
+     *         mandatów z dziennika, których nie ma w tickets, i liczba wierszy tickets bez zdarzenia wystawienia
+     * @throws SQLException jeśli zapytanie się nie powiedzie
+     */
+    public static JSONObject verify(ConnectionPool.PooledConnection connection) throws SQLException {
+        return new JSONObject()
+                .put("mismatched", count(connection, mismatchedQuery))
+                .put("missing", count(connection, missingQuery))
+                .put("orphaned", count(connection, orphanedQuery));
+    }
+
+    private static int count(ConnectionPool.PooledConnection connection, String query) throws SQLException {
+        try (ResultSet rs = connection.prepare(query).executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Przywraca tabelę tickets do stanu wynikającego z dziennika w jednej transakcji wątku zapisującego:
+     * nadpisuje niezgodne wiersze danymi ze zdarzeń, wstawia brakujące nieanulowane mandaty z ich id
+     * i przelicza od nowa sumy punktów kierowców. Wyzwalacze nie dopisują przy tym zdarzeń, które już są w dzienniku.
+     * Wierszy bez zdarzenia wystawienia nie da się sprawdzić, więc są tylko liczone.
+     *
+     * @return {"repaired", "restored", "orphaned"}: liczba nadpisanych i wstawionych wierszy oraz wierszy bez zdarzeń
+     * @throws SQLException jeśli transakcja się nie powiedzie
+     */
+    public JSONObject restore() throws SQLException {
+        JSONObject result = writer.execute(connection -> {
+            int repaired = connection.prepare(repairQuery).executeUpdate();
+            int restored = connection.prepare(restoreQuery).executeUpdate();
+            if (repaired + restored > 0) {
+                connection.prepare(recountPointsQuery).executeUpdate();
+                connection.prepare(missingPointsQuery).executeUpdate();
+            }
+            return new JSONObject()
+                    .put("repaired", repaired)
+                    .put("restored", restored)
+                    .put("orphaned", count(connection, orphanedQuery));
+        });
+        Log.info("Przywrócono tabelę tickets z dziennika zdarzeń",
+                "repaired", result.getInt("repaired"), "restored", result.getInt("restored"), "orphaned", result.getInt("orphaned"));
+        return result;
+    }
+
+    /**
+     * @return liczba anulowanych mandatów usuniętych z tabeli tickets od startu serwera
+     */
+    public long getCompacted() {
+        return compacted.get();
+    }
+
+    /**
+     * Zatrzymuje wątek kompaktowania.
+     */
+    public void close() {
+        compaction.shutdownNow();
+    }
+}
@@ -0,0 +1,195 @@
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejestr otwartych strumieni zdarzeń (Server-Sent Events) kierowców.
+ * Strona kierowcy subskrybuje zmiany swoich mandatów, a handlery po zatwierdzeniu zapisu lub anulowania mandatu
+ * publikują zmianę tylko do subskrybentów tego peselu. Publikacja jedynie dopisuje zdarzenie do ograniczonej kolejki
+ * subskrybenta, a zapis do gniazda wykonuje osobny wątek wirtualny subskrybenta, więc wolny klient nie opóźnia
+ * zapisu mandatu. Subskrybent, którego kolejka się przepełni, jest rozłączany i po ponownym połączeniu
+ * pobiera listę mandatów od nowa. Strumień jest zamykany, gdy sesja kierowcy wygaśnie lub zostanie zakończona.
+ */
+public class TicketFeed {
+
+    /**
+     * Maksymalna liczba otwartych strumieni jednego kierowcy, np. kilka kart przeglądarki
+     */
+    private final static int max_per_driver = 8;
+
+    /**
+     * Maksymalna liczba zdarzeń czekających na wysłanie do jednego subskrybenta
+     */
+    private final static int queue_size = 64;
+
+    /**
+     * Czas, po którym przeglądarka łączy się ponownie po zerwaniu strumienia, w milisekundach
+     */
+    private final static int retry_millis = 3000;
+
+    /**
+     * Komentarz wysyłany, gdy nie ma zdarzeń, aby pośrednicy nie zamknęli bezczynnego połączenia
+     */
+    private final static byte[] heartbeat = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Otwarty strumień jednej strony kierowcy.
+     */
+    private final class Subscriber implements Runnable {
+        final String pesel;
+        final String token;
+        final HttpExchange exchange;
+        final BlockingQueue<byte[]> events = new ArrayBlockingQueue<>(queue_size);
+        volatile boolean closed;
+
+        Subscriber(String pesel, String token, HttpExchange exchange) {
+            this.pesel = pesel;
+            this.token = token;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run() {
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(("retry: " + retry_millis + "\n\n").getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                while (!closed) {
+                    byte[] event = events.poll(heartbeatSeconds, TimeUnit.SECONDS);
+                    if (closed || !sessions.isActive(token)) {
+                        break;
+                    }
+                    os.write(event != null ? event : heartbeat);
+                    os.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Kierowca zamknął stronę lub serwer jest zatrzymywany
+            } finally {
+                unsubscribe(this);
+                exchange.close();
+            }
+        }
+    }
+
+    private final Map<String, Set<Subscriber>> byPesel = new ConcurrentHashMap<>();
+
+    private final SessionStore sessions;
+
+    /**
+     * Maksymalna liczba otwartych strumieni wszystkich kierowców
+     */
+    private final int maxSubscribers;
+
+    /**
+     * Odstęp między komentarzami podtrzymującymi połączenie w sekundach
+     */
+    private final long heartbeatSeconds;
+
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param sessions sesje kierowców, których ważność jest sprawdzana przed każdym zapisem do strumienia
+     * @param maxSubscribers maksymalna liczba otwartych strumieni wszystkich kierowców
+     * @param heartbeatSeconds odstęp między komentarzami podtrzymującymi połączenie w sekundach
+     */
+    public TicketFeed(SessionStore sessions, int maxSubscribers, long heartbeatSeconds) {
+        this.sessions = sessions;
+        this.maxSubscribers = maxSubscribers;
+        this.heartbeatSeconds = heartbeatSeconds;
+    }
+
+    /**
+     * Rejestruje strumień kierowcy i uruchamia jego wątek. Nagłówki odpowiedzi muszą być już wysłane,
+     * a wymiana zostaje otwarta po powrocie z handlera i jest zamykana przez wątek subskrybenta.
+     *
+     * @param pesel pesel kierowcy przypisanego do sesji
+     * @param token token sesji kierowcy
+     * @param exchange wymiana z wysłanymi nagłówkami text/event-stream
+     */
+    public void subscribe(String pesel, String token, HttpExchange exchange) {
+        Subscriber subscriber = new Subscriber(pesel, token, exchange);
+        byPesel.compute(pesel, (key, current) -> {
+            Set<Subscriber> result = current == null ? ConcurrentHashMap.newKeySet() : current;
+            result.add(subscriber);
+            return result;
+        });
+        subscribers.incrementAndGet();
+        Thread.ofVirtual().name("ticket-feed").start(subscriber);
+    }
+
+    /**
+     * @param pesel pesel kierowcy
+     * @return true jeśli nie można otworzyć kolejnego strumienia, bo przekroczony jest limit kierowcy lub serwera
+     */
+    public boolean isFull(String pesel) {
+        Set<Subscriber> current = byPesel.get(pesel);
+        return subscribers.get() >= maxSubscribers || (current != null && current.size() >= max_per_driver);
+    }
+
+    /**
+     * Wysyła zdarzenie do wszystkich otwartych strumieni kierowcy. Wywoływana po zatwierdzeniu transakcji.
+     *
+     * @param pesel pesel kierowcy
+     * @param event nazwa zdarzenia, np. "ticket" lub "cancel"
+     * @param id id mandatu, wysyłane jako id zdarzenia
+     * @param data treść zdarzenia
+     */
+    public void publish(String pesel, String event, int id, JSONObject data) {
+        Set<Subscriber> current = byPesel.get(pesel);
+        if (current == null) {
+            return;
+        }
+        byte[] frame = ("id: " + id + "\nevent: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+        for (Subscriber subscriber : current) {
+            if (subscriber.events.offer(frame)) {
+                published.increment();
+            } else {
+                // Kolejka jest pełna, więc wątek subskrybenta nie czeka na zdarzenie i zamknie strumień przy kolejnym obiegu
+                subscriber.closed = true;
+                dropped.increment();
+            }
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        byPesel.computeIfPresent(subscriber.pesel, (key, current) -> {
+            if (current.remove(subscriber)) {
+                subscribers.decrementAndGet();
+            }
+            return current.isEmpty() ? null : current;
+        });
+    }
+
+    /**
+     * @return liczba otwartych strumieni
+     */
+    public int size() {
+        return subscribers.get();
+    }
+
+    /**
+     * @return liczba zdarzeń przekazanych do strumieni
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * @return liczba strumieni rozłączonych z powodu przepełnionej kolejki
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
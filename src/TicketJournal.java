@@ -0,0 +1,302 @@
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Lokalny dziennik mandatów aplikacji policjanta.
+ * Wystawiony mandat jest najpierw dopisywany na koniec pliku na dysku tabletu, a dopiero potem wysyłany
+ * na serwer przez osobny wątek synchronizacji, partiami przez /api/createTickets. Brak zasięgu nie blokuje
+ * więc wystawiania mandatów, a mandaty czekające na wysłanie przetrwają zamknięcie aplikacji.
+ * Każda linia pliku to jeden wpis JSON: mandat ("op": "ticket") albo wynik jego wysłania ("op": "sent"
+ * lub "rejected"). Po wysłaniu wszystkich mandatów plik jest czyszczony, a mandaty trwale odrzucone przez serwer
+ * (niepoprawne dane, nieznany policjant) trafiają do osobnego pliku z rozszerzeniem .rejected. Mandat z przejściowym
+ * błędem zapisu po stronie serwera (retryable) zostaje w dzienniku i jest wysyłany ponownie.
+ * Klucz mandatu w dzienniku jest jednocześnie jego kluczem idempotentności, więc partia wysłana ponownie
+ * po zerwanym połączeniu lub restarcie aplikacji nie zapisze na serwerze żadnego mandatu dwa razy.
+ */
+public final class TicketJournal {
+
+    /**
+     * Wysyła partię mandatów na serwer.
+     */
+    @FunctionalInterface
+    public interface Sender {
+        /**
+         * @param tickets mandaty w formacie żądania /api/createTicket
+         * @return wyniki w kolejności mandatów, każdy z ticketId albo error i retryable
+         * @throws IOException jeśli serwer jest nieosiągalny lub odpowiedział błędem całej partii
+         */
+        JSONArray send(JSONArray tickets) throws IOException;
+    }
+
+    /**
+     * Powiadomienia o stanie synchronizacji, wywoływane w wątku synchronizacji.
+     */
+    public interface Listener {
+        /**
+         * @param pending liczba mandatów czekających na wysłanie
+         * @param message opis stanu synchronizacji
+         */
+        void stateChanged(int pending, String message);
+
+        /**
+         * @param ticket wysłany mandat
+         * @param ticketId id nadane mandatowi przez serwer
+         */
+        void sent(JSONObject ticket, int ticketId);
+
+        /**
+         * @param ticket mandat odrzucony przez serwer
+         * @param error powód odrzucenia
+         */
+        void rejected(JSONObject ticket, String error);
+    }
+
+    /**
+     * Maksymalna liczba mandatów w jednej partii
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Początkowy i maksymalny odstęp między próbami wysłania po błędzie w milisekundach
+     */
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final Path path;
+    private final Path rejectedPath;
+    private final FileChannel channel;
+    private final Sender sender;
+    private final Listener listener;
+
+    /**
+     * Mandaty czekające na wysłanie według klucza, w kolejności wystawienia
+     */
+    private final Map<String, JSONObject> pending = new LinkedHashMap<>();
+
+    private final Thread syncThread;
+
+    /**
+     * Otwiera dziennik, odtwarza z pliku mandaty czekające na wysłanie i uruchamia wątek synchronizacji.
+     *
+     * @param path plik dziennika
+     * @param sender wysyłanie partii mandatów na serwer
+     * @param listener powiadomienia o stanie synchronizacji
+     * @throws IOException jeśli nie uda się odczytać lub otworzyć pliku
+     */
+    public TicketJournal(Path path, Sender sender, Listener listener) throws IOException {
+        this.path = path;
+        this.rejectedPath = path.resolveSibling(path.getFileName() + ".rejected");
+        this.sender = sender;
+        this.listener = listener;
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        replay();
+        rewrite();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.syncThread = new Thread(this::run, "ticket-sync");
+        this.syncThread.setDaemon(true);
+        this.syncThread.start();
+    }
+
+    /**
+     * Zapisuje mandat w dzienniku i zleca jego wysłanie. Metoda wraca po zapisaniu mandatu na dysk,
+     * bez czekania na serwer.
+     *
+     * @param ticket mandat w formacie żądania /api/createTicket, z kluczem idempotentności lub bez
+     * @return klucz mandatu w dzienniku
+     * @throws IOException jeśli nie uda się zapisać mandatu na dysk
+     */
+    public synchronized String append(JSONObject ticket) throws IOException {
+        String key = ticket.optString("idempotencyKey", UUID.randomUUID().toString());
+        ticket.put("idempotencyKey", key);
+        write(new JSONObject().put("op", "ticket").put("key", key).put("ticket", ticket));
+        pending.put(key, ticket);
+        notifyAll();
+        listener.stateChanged(pending.size(), "Mandat zapisany, oczekuje na wysłanie");
+        return key;
+    }
+
+    /**
+     * @return liczba mandatów czekających na wysłanie
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Pętla wątku synchronizacji: czeka na mandaty i wysyła je partiami, a po błędzie połączenia
+     * lub przejściowym błędzie mandatu ponawia próbę z coraz dłuższym odstępem.
+     */
+    private void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (true) {
+            Map<String, JSONObject> batch = new LinkedHashMap<>();
+            try {
+                synchronized (this) {
+                    while (pending.isEmpty()) {
+                        wait();
+                    }
+                    for (Map.Entry<String, JSONObject> entry : pending.entrySet()) {
+                        batch.put(entry.getKey(), entry.getValue());
+                        if (batch.size() == BATCH_SIZE) {
+                            break;
+                        }
+                    }
+                }
+                listener.stateChanged(getPending(), "Wysyłanie mandatów: " + batch.size());
+
+                JSONArray results = sender.send(new JSONArray(batch.values()));
+                List<String> keys = new ArrayList<>(batch.keySet());
+                int retried = 0;
+                for (int i = 0; i < keys.size(); i++) {
+                    JSONObject result = results.optJSONObject(i);
+                    if (result != null && result.has("ticketId")) {
+                        markSent(keys.get(i), result.getInt("ticketId"));
+                    } else if (result == null || result.optBoolean("retryable", false)) {
+                        // Mandat nie został zapisany z przyczyny przejściowej, więc zostaje w dzienniku
+                        markRetry(keys.get(i));
+                        retried++;
+                    } else {
+                        markRejected(keys.get(i), result.optString("error", "Nieznany błąd"));
+                    }
+                }
+                int left = getPending();
+                if (retried > 0) {
+                    listener.stateChanged(left, "Serwer nie zapisał mandatów: " + retried + ", ponowienie za " + backoff / 1000 + " s");
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                    continue;
+                }
+                backoff = MIN_BACKOFF_MILLIS;
+                listener.stateChanged(left, left == 0 ? "Wszystkie mandaty wysłane" : "Wysyłanie mandatów");
+            } catch (IOException | JSONException e) {
+                listener.stateChanged(getPending(), "Brak połączenia z serwerem, ponowienie za " + backoff / 1000 + " s");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void markSent(String key, int ticketId) throws IOException {
+        JSONObject ticket = pending.remove(key);
+        if (ticket == null) {
+            return;
+        }
+        write(new JSONObject().put("op", "sent").put("key", key).put("ticketId", ticketId));
+        listener.sent(ticket, ticketId);
+        compact();
+    }
+
+    /**
+     * Przenosi mandat na koniec kolejki wysyłania, aby mandat ponawiany po przejściowym błędzie nie blokował
+     * kolejnych. Dziennik na dysku się nie zmienia, bo mandat nadal czeka na wysłanie.
+     */
+    private synchronized void markRetry(String key) {
+        JSONObject ticket = pending.remove(key);
+        if (ticket != null) {
+            pending.put(key, ticket);
+        }
+    }
+
+    private synchronized void markRejected(String key, String error) throws IOException {
+        JSONObject ticket = pending.remove(key);
+        if (ticket == null) {
+            return;
+        }
+        // Odrzucony mandat zostaje na dysku, aby można go było poprawić i wystawić ponownie
+        String line = new JSONObject().put("key", key).put("error", error).put("ticket", ticket) + "\n";
+        Files.writeString(rejectedPath, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        write(new JSONObject().put("op", "rejected").put("key", key));
+        listener.rejected(ticket, error);
+        compact();
+    }
+
+    /**
+     * Dopisuje wpis na koniec dziennika i czeka, aż trafi na dysk.
+     */
+    private void write(JSONObject entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Czyści dziennik, gdy nie ma w nim mandatów czekających na wysłanie, aby plik nie rósł bez końca.
+     */
+    private void compact() throws IOException {
+        if (pending.isEmpty() && channel.size() > 0) {
+            channel.truncate(0);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Zapisuje dziennik od nowa z samymi mandatami czekającymi na wysłanie. Nowy plik zastępuje stary
+     * dopiero po zapisaniu go w całości, więc przerwanie w trakcie nie gubi mandatów.
+     */
+    private void rewrite() throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, JSONObject> entry : pending.entrySet()) {
+                String line = new JSONObject().put("op", "ticket").put("key", entry.getKey()).put("ticket", entry.getValue()) + "\n";
+                ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Odtwarza z pliku mandaty, które nie zostały jeszcze wysłane. Ostatnia linia może być niepełna,
+     * jeśli aplikacja została przerwana w trakcie zapisu, i wtedy jest pomijana.
+     */
+    private void replay() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject entry;
+                try {
+                    entry = new JSONObject(line);
+                } catch (JSONException e) {
+                    continue;
+                }
+                String key = entry.optString("key");
+                if ("ticket".equals(entry.optString("op"))) {
+                    // Mandaty zapisane przed wprowadzeniem kluczy idempotentności dostają klucz z dziennika
+                    pending.put(key, entry.getJSONObject("ticket").put("idempotencyKey", key));
+                } else {
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Jedyny wątek zapisujący do bazy danych.
+ * SQLite pozwala na jednego piszącego naraz, więc zamiast ścigać się o blokadę zapisu, handlery
+ * przekazują polecenia do kolejki. Wątek zapisujący zbiera polecenia, które nadeszły w krótkim oknie czasu,
+ * wykonuje je w jednej transakcji (każde we własnym punkcie zapisu) i po zatwierdzeniu
+ * przekazuje każdemu handlerowi jego wynik, np. wygenerowane ID mandatu.
+ */
+public class TicketWriter implements AutoCloseable {
+
+    /**
+     * Polecenie zapisu wykonywane przez wątek zapisujący wewnątrz transakcji.
+     *
+     * @param <T> typ wyniku polecenia
+     */
+    @FunctionalInterface
+    public interface Command<T> {
+        /**
+         * @param connection połączenie wątku zapisującego z pamięcią podręczną przygotowanych zapytań
+         * @return wynik polecenia przekazywany do handlera po zatwierdzeniu transakcji
+         * @throws SQLException jeśli polecenie się nie powiedzie, jego zmiany zostaną wycofane
+         */
+        T apply(ConnectionPool.PooledConnection connection) throws SQLException;
+    }
+
+    /**
+     * Polecenie czekające w kolejce razem z przyszłym wynikiem.
+     *
+     * @param claimed ustawiane przez wątek zapisujący, który bierze polecenie do transakcji, albo przez handler,
+     *                który przestał czekać na wynik; polecenie porzucone przez handler nie jest wykonywane
+     */
+    private record Pending<T>(Command<T> command, CompletableFuture<T> result, AtomicBoolean claimed) {
+
+        Pending(Command<T> command, CompletableFuture<T> result) {
+            this(command, result, new AtomicBoolean());
+        }
+
+        /**
+         * @return true jeśli wywołujący jako pierwszy przejął polecenie
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Maksymalny czas zbierania poleceń do jednej transakcji w mikrosekundach
+     */
+    private final static long groupWindowMicros = Long.getLong("mandaty.db.writeWindowMicros", 1000);
+
+    /**
+     * Maksymalna liczba poleceń w jednej transakcji
+     */
+    private final static int maxGroupSize = Integer.getInteger("mandaty.db.writeGroupSize", 256);
+
+    /**
+     * Maksymalny czas oczekiwania handlera na wynik polecenia w milisekundach
+     */
+    private final static long resultTimeoutMillis = Long.getLong("mandaty.db.writeTimeout", 10000);
+
+    /**
+     * Pula z jednym połączeniem należącym wyłącznie do wątku zapisującego
+     */
+    private final ConnectionPool writerPool;
+
+    /**
+     * Kolejka poleceń czekających na zapis
+     */
+    private final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>(Integer.getInteger("mandaty.db.writeQueue", 10000));
+
+    /**
+     * Wątek zapisujący
+     */
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong failedTransactions = new AtomicLong();
+    private final AtomicInteger largestGroup = new AtomicInteger();
+
+    /**
+     * Otwiera połączenie do zapisu i uruchamia wątek zapisujący.
+     *
+     * @param url adres bazy danych JDBC
+     * @throws SQLException jeśli nie uda się otworzyć połączenia
+     */
+    public TicketWriter(String url) throws SQLException {
+        this.writerPool = new ConnectionPool(url, 1, 0);
+        this.thread = new Thread(this::run, "ticket-writer");
+        // Polecenia z kolejki zapisuje close() wywoływane przy zamknięciu serwera, więc wątek nie musi
+        // podtrzymywać maszyny wirtualnej, np. gdy serwer http nie wystartował
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Przekazuje polecenie do kolejki zapisu.
+     *
+     * @param command polecenie zapisu
+     * @param <T> typ wyniku polecenia
+     * @return wynik dostępny po zatwierdzeniu transakcji zawierającej polecenie
+     */
+    public <T> CompletableFuture<T> submit(Command<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        enqueue(new Pending<>(command, result));
+        return result;
+    }
+
+    /**
+     * Przekazuje polecenie do kolejki zapisu i czeka na jego wynik. Jeśli wynik nie nadejdzie w czasie, a polecenie
+     * nadal czeka w kolejce, jest porzucane i nie zostanie wykonane. Polecenie wzięte już do transakcji jest
+     * oczekiwane do końca, aby handler nie zgłosił błędu zapisu, który mimo to zostanie zatwierdzony.
+     *
+     * @param command polecenie zapisu
+     * @param <T> typ wyniku polecenia
+     * @return wynik polecenia po zatwierdzeniu transakcji
+     * @throws SQLException jeśli polecenie lub transakcja się nie powiodły albo polecenie nie zostało wzięte do zapisu w czasie
+     */
+    public <T> T execute(Command<T> command) throws SQLException {
+        long start = Metrics.now();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Pending<T> pending = new Pending<>(command, result);
+        try {
+            enqueue(pending);
+            try {
+                return result.get(resultTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (pending.claim()) {
+                    throw e;
+                }
+                return result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw new SQLException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new SQLException("Przekroczono czas oczekiwania na zapis do bazy danych", e);
+        } catch (InterruptedException e) {
+            // Polecenie jeszcze niewzięte do transakcji nie zostanie wykonane
+            pending.claim();
+            Thread.currentThread().interrupt();
+            throw new SQLException("Przerwano oczekiwanie na zapis do bazy danych", e);
+        } finally {
+            // Czas oczekiwania na wątek zapisujący jest dla żądania czasem spędzonym w bazie danych
+            Metrics.jdbc(start);
+        }
+    }
+
+    /**
+     * Dopisuje polecenie do kolejki albo kończy jego wynik błędem, jeśli zapis jest zatrzymany lub kolejka pełna.
+     */
+    private <T> void enqueue(Pending<T> pending) {
+        if (!running) {
+            pending.result().completeExceptionally(new SQLException("Zapis do bazy danych został zatrzymany"));
+        } else if (!queue.offer(pending)) {
+            pending.result().completeExceptionally(new SQLException("Kolejka zapisu do bazy danych jest pełna"));
+        } else if (!running && queue.remove(pending)) {
+            // Wątek zapisujący zatrzymał się po sprawdzeniu running i mógł już opróżnić kolejkę,
+            // więc polecenie, które nadal w niej jest, nie doczekałoby się wyniku
+            pending.result().completeExceptionally(new SQLException("Zapis do bazy danych został zatrzymany"));
+        }
+    }
+
+    /**
+     * Pętla wątku zapisującego: zbiera grupę poleceń i wykonuje ją w jednej transakcji.
+     * Polecenia porzucone przez handlery po przekroczeniu czasu są pomijane.
+     */
+    private void run() {
+        List<Pending<?>> group = new ArrayList<>(maxGroupSize);
+        try (ConnectionPool.PooledConnection connection = writerPool.acquire()) {
+            while (running || !queue.isEmpty()) {
+                Pending<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null || !first.claim()) {
+                    continue;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(groupWindowMicros);
+                while (group.size() < maxGroupSize) {
+                    Pending<?> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (next.claim()) {
+                        group.add(next);
+                    }
+                }
+                commitGroup(connection, group);
+                group.clear();
+            }
+        } catch (SQLException e) {
+            Log.error("Błąd połączenia wątku zapisującego", "error", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+            for (Pending<?> pending : group) {
+                pending.result().completeExceptionally(new SQLException("Zapis do bazy danych został zatrzymany"));
+            }
+            Pending<?> pending;
+            while ((pending = queue.poll()) != null) {
+                pending.result().completeExceptionally(new SQLException("Zapis do bazy danych został zatrzymany"));
+            }
+        }
+    }
+
+    /**
+     * Wykonuje grupę poleceń w jednej transakcji. Nieudane polecenie jest wycofywane do swojego punktu zapisu,
+     * a pozostałe polecenia grupy są zatwierdzane.
+     *
+     * @param connection połączenie wątku zapisującego
+     * @param group polecenia do wykonania
+     */
+    private void commitGroup(ConnectionPool.PooledConnection connection, List<Pending<?>> group) {
+        Connection jdbc = connection.getConnection();
+        Object[] results = new Object[group.size()];
+        Throwable[] errors = new Throwable[group.size()];
+        try {
+            jdbc.setAutoCommit(false);
+            for (int i = 0; i < group.size(); i++) {
+                Savepoint savepoint = jdbc.setSavepoint();
+                try {
+                    results[i] = group.get(i).command().apply(connection);
+                    jdbc.releaseSavepoint(savepoint);
+                } catch (SQLException | RuntimeException e) {
+                    jdbc.rollback(savepoint);
+                    jdbc.releaseSavepoint(savepoint);
+                    errors[i] = e;
+                }
+            }
+            jdbc.commit();
+            jdbc.setAutoCommit(true);
+        } catch (SQLException e) {
+            Log.error("Błąd zatwierdzania transakcji zapisu", "commands", group.size(), "error", e.getMessage());
+            failedTransactions.incrementAndGet();
+            try {
+                jdbc.rollback();
+                jdbc.setAutoCommit(true);
+            } catch (SQLException rollbackError) {
+                Log.error("Błąd wycofywania transakcji zapisu", "error", rollbackError.getMessage());
+            }
+            for (Pending<?> pending : group) {
+                pending.result().completeExceptionally(e);
+            }
+            return;
+        }
+
+        transactions.incrementAndGet();
+        commands.addAndGet(group.size());
+        largestGroup.accumulateAndGet(group.size(), Math::max);
+        for (int i = 0; i < group.size(); i++) {
+            complete(group.get(i), results[i], errors[i]);
+        }
+    }
+
+    /**
+     * Przekazuje wynik lub błąd polecenia do czekającego handlera.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void complete(Pending<T> pending, Object result, Throwable error) {
+        if (error != null) {
+            pending.result().completeExceptionally(error);
+        } else {
+            pending.result().complete((T) result);
+        }
+    }
+
+    /**
+     * @return liczba poleceń czekających w kolejce zapisu.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return liczba poleceń wykonanych w zatwierdzonych transakcjach.
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * @return liczba zatwierdzonych transakcji.
+     */
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    /**
+     * @return liczba transakcji, których nie udało się zatwierdzić.
+     */
+    public long getFailedTransactions() {
+        return failedTransactions.get();
+    }
+
+    /**
+     * @return największa liczba poleceń zatwierdzonych w jednej transakcji.
+     */
+    public int getLargestGroup() {
+        return largestGroup.get();
+    }
+
+    /**
+     * Przestaje przyjmować polecenia, zapisuje polecenia pozostałe w kolejce i zamyka połączenie.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join(resultTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerPool.close();
+    }
+}
@@ -2,53 +2,161 @@
  * Obsługa wyświetlania mandatów przez klienta w main_page
  */
 document.addEventListener('DOMContentLoaded', () => {
-    const pesel = sessionStorage.getItem('pesel');
-    if (!pesel) {
-        // Przekierowanie do strony głównej przy braku numeru Pesel
+    const token = sessionStorage.getItem('token');
+    if (!token) {
+        // Przekierowanie do strony głównej przy braku sesji
         window.location.href = '/';
         return;
     }
 
-    // Wysłanie POST z PESEL
-    fetch('/api', {
-        method: 'POST',
-        headers: {
-            'Content-Type': 'application/json',
-        },
-        body: JSON.stringify({
+    const container = document.getElementById('tickets-container');
+
+    // Przycisk doładowania kolejnej strony mandatów
+    const moreButton = document.createElement('button');
+    moreButton.classList.add('btn', 'btn-outline-primary', 'w-100', 'd-none');
+    moreButton.textContent = 'Pokaż starsze mandaty';
+
+    let nextCursor = null;
+
+    /**
+     * Tworzy element jednego mandatu
+     */
+    const renderTicket = (ticket) => {
+        const ticketDiv = document.createElement('div');
+        ticketDiv.classList.add('ticket');
+        ticketDiv.dataset.ticketId = ticket.id;
+        ticketDiv.innerHTML = `
+                    <p><strong>Imię i nazwisko:</strong> ${ticket.driver_name}</p>
+                    <p><strong>Wykroczenie:</strong> ${ticket.offense}</p>
+                    <p><strong>Kwota mandatu:</strong> ${ticket.fine_amount} zł</p>
+                    <p><strong>Punkty karne:</strong> ${ticket.penalty_points}</p>
+                    <p><strong>Data wystawienia:</strong> ${ticket.issue_date}</p>
+                `;
+        return ticketDiv;
+    };
+
+    /**
+     * Pobiera jedną stronę mandatów, zaczynając za kursorem (null oznacza pierwszą stronę)
+     */
+    const loadPage = (cursor) => {
+        const body = {
             action: 'main_page',  // Dodajemy action w body
-            pesel: pesel
+            token: token
+        };
+        if (cursor) {
+            body.cursor = cursor;
+        }
+
+        // Wysłanie POST z tokenem sesji
+        return fetch('/api', {
+            method: 'POST',
+            headers: {
+                'Content-Type': 'application/json',
+            },
+            body: JSON.stringify(body)
         })
-    })
-        .then(response => response.json())
-        .then(tickets => {
-            const container = document.getElementById('tickets-container');
+            .then(response => {
+                if (response.status === 401) {
+                    // Sesja wygasła, powrót do logowania
+                    sessionStorage.removeItem('token');
+                    window.location.href = '/';
+                    return new Promise(() => {});
+                }
+                return response.json();
+            })
+            .then(page => {
+                // Usuwanie napisu "Ładowanie mandatów..."
+                if (!cursor) {
+                    container.innerHTML = '';
+                }
 
-            // Usuwanie napisu "Ładowanie mandatów..."
-            container.innerHTML = '';
+                if (!cursor && page.tickets.length === 0) {
+                    container.innerHTML = '<p>Brak mandatów.</p>';
+                    return;
+                }
 
-            if (tickets.length === 0) {
-                container.innerHTML = '<p>Brak mandatów.</p>';
-                return;
-            }
+                // Wyświetlanie mandatów
+                page.tickets.forEach(ticket => container.appendChild(renderTicket(ticket)));
 
-            // Wyświetlanie mandatów
-            tickets.forEach(ticket => {
-                const ticketDiv = document.createElement('div');
-                ticketDiv.classList.add('ticket');
-                ticketDiv.innerHTML = `
-                <p><strong>Imię i nazwisko:</strong> ${ticket.driver_name}</p>
-                <p><strong>Wykroczenie:</strong> ${ticket.offense}</p>
-                <p><strong>Kwota mandatu:</strong> ${ticket.fine_amount} zł</p>
-                <p><strong>Punkty karne:</strong> ${ticket.penalty_points}</p>
-                <p><strong>Data wystawienia:</strong> ${ticket.issue_date}</p>
-            `;
-                container.appendChild(ticketDiv);
+                nextCursor = page.next_cursor;
+                container.appendChild(moreButton);
+                moreButton.classList.toggle('d-none', !nextCursor);
             });
+    };
+
+    /**
+     * Pobiera sumę ważnych punktów karnych kierowcy
+     */
+    const loadPoints = () => {
+        return fetch('/api', {
+            method: 'POST',
+            headers: {
+                'Content-Type': 'application/json',
+            },
+            body: JSON.stringify({action: 'points', token: token})
         })
+            .then(response => response.ok ? response.json() : null)
+            .then(summary => {
+                if (summary) {
+                    document.getElementById('points-summary').innerHTML =
+                        `<strong>Punkty karne:</strong> ${summary.points} (ważne przez ${summary.validity_days} dni)`;
+                }
+            });
+    };
+
+    moreButton.addEventListener('click', () => {
+        moreButton.disabled = true;
+        loadPage(nextCursor)
+            .catch(err => console.error('Błąd podczas ładowania mandatów:', err))
+            .finally(() => moreButton.disabled = false);
+    });
+
+    loadPoints()
+        .catch(err => console.error('Błąd podczas ładowania punktów karnych:', err));
+
+    /**
+     * Subskrybuje zmiany mandatów kierowcy, aby nowe i anulowane mandaty pojawiały się bez przeładowania strony
+     */
+    const subscribe = () => {
+        const feed = new EventSource('/api/ticketFeed?token=' + encodeURIComponent(token));
+        let connected = false;
+
+        feed.addEventListener('open', () => {
+            // Po ponownym połączeniu lista jest pobierana od nowa, bo zmiany z czasu przerwy nie zostały wysłane
+            if (connected) {
+                loadPage(null).catch(err => console.error('Błąd podczas ładowania mandatów:', err));
+                loadPoints().catch(err => console.error('Błąd podczas ładowania punktów karnych:', err));
+            }
+            connected = true;
+        });
+
+        feed.addEventListener('ticket', event => {
+            const ticket = JSON.parse(event.data);
+            if (container.querySelector(`[data-ticket-id="${ticket.id}"]`)) {
+                return;
+            }
+            const empty = container.querySelector('p');
+            if (empty && !container.querySelector('.ticket')) {
+                empty.remove();
+            }
+            container.prepend(renderTicket(ticket));
+            loadPoints().catch(err => console.error('Błąd podczas ładowania punktów karnych:', err));
+        });
+
+        feed.addEventListener('cancel', event => {
+            const ticket = JSON.parse(event.data);
+            const ticketDiv = container.querySelector(`[data-ticket-id="${ticket.id}"]`);
+            if (ticketDiv) {
+                ticketDiv.remove();
+            }
+            loadPoints().catch(err => console.error('Błąd podczas ładowania punktów karnych:', err));
+        });
+    };
+
+    loadPage(null)
+        .then(subscribe)
         .catch(err => {
             console.error('Błąd podczas ładowania mandatów:', err);
-            const container = document.getElementById('tickets-container');
             container.innerHTML = '<p>Błąd podczas ładowania mandatów.</p>';
         });
-});
\ No newline at end of file
+});